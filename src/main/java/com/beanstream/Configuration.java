@@ -22,8 +22,35 @@
  */
 package com.beanstream;
 
+import com.beanstream.connection.AdaptiveConcurrencyLimiter;
+import com.beanstream.connection.ApiType;
+import com.beanstream.connection.ConcurrencyLimiter;
+import com.beanstream.connection.ConnectionPool;
+import com.beanstream.connection.Endpoints;
+import com.beanstream.connection.Operation;
+import com.beanstream.connection.Priority;
+import com.beanstream.connection.RateLimiter;
+import com.beanstream.connection.RequestInterceptor;
+import com.beanstream.connection.Timeouts;
+import com.beanstream.connection.Tracer;
+import com.beanstream.connection.Transport;
+import com.beanstream.data.ProfileCache;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.DnsResolver;
 
 /**
  * Holds the configuration for connecting to the REST API. It holds the API version,
@@ -32,6 +59,12 @@ import org.apache.http.client.config.RequestConfig;
  * @author bowens
  */
 public class Configuration {
+
+    /**
+     * How many async calls can wait for a thread of the default executor.
+     */
+    public static final int EXECUTOR_QUEUE_SIZE = 1000;
+
     private int merchantId;
     private String paymentsApiPasscode;
     private String profilesApiPasscode;
@@ -40,6 +73,23 @@ public class Configuration {
     private String platform = "www";
 
     private HttpClient customHttpClient;
+    private final Map<ApiType, RateLimiter> rateLimiters = new EnumMap<ApiType, RateLimiter>(ApiType.class);
+    private final ConnectionPool connectionPool = new ConnectionPool();
+    private final Map<ApiType, ConnectionPool> apiConnectionPools = new EnumMap<ApiType, ConnectionPool>(ApiType.class);
+    private final Map<ApiType, ConcurrencyLimiter> apiConcurrencyLimiters = new EnumMap<ApiType, ConcurrencyLimiter>(ApiType.class);
+    private final Map<Operation, Priority> operationPriorities = new EnumMap<Operation, Priority>(Operation.class);
+    private ConcurrencyLimiter concurrencyLimiter;
+    private Transport transport;
+    private boolean stacklessDeclines;
+    private Tracer tracer;
+    private Timeouts timeouts = Timeouts.NONE;
+    private volatile ExecutorService executor;
+    private ProfileCache profileCache;
+    private Endpoints endpoints;
+    private final Map<ApiType, Timeouts> apiTimeouts = new EnumMap<ApiType, Timeouts>(ApiType.class);
+    private final Map<Operation, Timeouts> operationTimeouts = new EnumMap<Operation, Timeouts>(Operation.class);
+    private final List<RequestInterceptor> interceptors = new CopyOnWriteArrayList<RequestInterceptor>();
+    private final Set<ApiType> compressedApis = EnumSet.of(ApiType.Profiles, ApiType.Reporting);
     
     public Configuration() {
     }
@@ -110,6 +160,476 @@ public class Configuration {
     public HttpClient getCustomHttpClient() {
         return customHttpClient;
     }
-    
-    
+
+    /**
+     * Limit how many requests per second this merchant sends to an API. Requests
+     * over the limit fail straight away with a TooManyRequestsException.
+     * The rate is lowered automatically when the gateway responds with 429 or 503.
+     * 
+     * @param api the API to limit
+     * @param requestsPerSecond the most requests per second to send
+     * @return this configuration
+     */
+    public Configuration setRateLimit(ApiType api, double requestsPerSecond) {
+        return setRateLimit(api, requestsPerSecond, 0);
+    }
+
+    /**
+     * Limit how many requests per second this merchant sends to an API. Requests
+     * over the limit wait for up to maxWaitMillis for their turn before failing
+     * with a TooManyRequestsException.
+     * 
+     * @param api the API to limit
+     * @param requestsPerSecond the most requests per second to send
+     * @param maxWaitMillis how long a request can wait, 0 to fail fast
+     * @return this configuration
+     */
+    public Configuration setRateLimit(ApiType api, double requestsPerSecond, long maxWaitMillis) {
+        return setRateLimiter(api, new RateLimiter(requestsPerSecond).setMaxWaitMillis(maxWaitMillis));
+    }
+
+    /**
+     * Use your own RateLimiter for an API, for example to share one limiter
+     * between several APIs. Null removes the limit.
+     */
+    public Configuration setRateLimiter(ApiType api, RateLimiter rateLimiter) {
+        if (rateLimiter == null)
+            rateLimiters.remove(api);
+        else
+            rateLimiters.put(api, rateLimiter);
+        return this;
+    }
+
+    public RateLimiter getRateLimiter(ApiType api) {
+        return rateLimiters.get(api);
+    }
+
+    /**
+     * The keep-alive connections shared by every API created with this configuration.
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * @return the API's own connection pool if it was given one, or else the shared pool
+     */
+    public ConnectionPool getConnectionPool(ApiType api) {
+        ConnectionPool pool = apiConnectionPools.get(api);
+        return pool != null ? pool : connectionPool;
+    }
+
+    /**
+     * Set the most connections kept open to the gateway. Defaults to 20.
+     * 
+     * @param maxConnections the size of the connection pool
+     * @return this configuration
+     */
+    public Configuration setMaxConnections(int maxConnections) {
+        connectionPool.setMaxConnections(maxConnections);
+        return this;
+    }
+
+    /**
+     * Give an API a connection pool of its own, so its requests never wait
+     * for connections held by other APIs, like a long report export holding
+     * up payments. Set it before the API is first used. This has no effect
+     * with a custom HttpClient, which brings its own connections; use
+     * setMaxConcurrentRequests(ApiType, ...) to keep APIs apart then.
+     * 
+     * @param api the API to give its own pool
+     * @param maxConnections the size of its pool
+     * @return this configuration
+     */
+    public Configuration setMaxConnections(ApiType api, int maxConnections) {
+        ConnectionPool pool = apiConnectionPools.get(api);
+        if (pool == null) {
+            pool = new ConnectionPool().setDnsResolver(connectionPool.getDnsResolver());
+            apiConnectionPools.put(api, pool);
+        }
+        pool.setMaxConnections(maxConnections);
+        return this;
+    }
+
+    /**
+     * Change how the connection pool resolves host names. The pool caches
+     * lookups in a DnsCache by default.
+     * 
+     * @param dnsResolver the resolver, like a DnsCache with other times
+     * @return this configuration
+     */
+    public Configuration setDnsResolver(DnsResolver dnsResolver) {
+        connectionPool.setDnsResolver(dnsResolver);
+        for (ConnectionPool pool : apiConnectionPools.values()) {
+            pool.setDnsResolver(dnsResolver);
+        }
+        return this;
+    }
+
+    /**
+     * Spread requests over several gateway hosts or regions, and fail over
+     * between them when one can't be connected to. Without endpoints every
+     * request goes to the platform's host.
+     * 
+     * @param urls base urls like "https://www.beanstream.com", each with a weight of 1
+     * @return this configuration
+     */
+    public Configuration setEndpoints(String... urls) {
+        return setEndpoints(urls.length > 0 ? new Endpoints(urls) : null);
+    }
+
+    /**
+     * @param endpoints the weighted endpoints, or null to use the platform's host
+     * @return this configuration
+     */
+    public Configuration setEndpoints(Endpoints endpoints) {
+        this.endpoints = endpoints;
+        return this;
+    }
+
+    public Endpoints getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Limit how many requests this merchant has in flight at the same time,
+     * across all APIs. Requests over the limit fail straight away with a
+     * TooManyRequestsException.
+     * 
+     * @param maxRequests the most requests in flight at once
+     * @return this configuration
+     */
+    public Configuration setMaxConcurrentRequests(int maxRequests) {
+        return setMaxConcurrentRequests(maxRequests, 0);
+    }
+
+    /**
+     * Limit how many requests this merchant has in flight at the same time,
+     * across all APIs. Requests over the limit wait for up to maxWaitMillis
+     * for a free slot before failing with a TooManyRequestsException.
+     * 
+     * @param maxRequests the most requests in flight at once
+     * @param maxWaitMillis how long a request can wait, 0 to fail fast
+     * @return this configuration
+     */
+    public Configuration setMaxConcurrentRequests(int maxRequests, long maxWaitMillis) {
+        return setConcurrencyLimiter(new ConcurrencyLimiter(maxRequests).setMaxWaitMillis(maxWaitMillis));
+    }
+
+    /**
+     * Let the limit of requests in flight at the same time follow the
+     * gateway's latency, between 1 and maxRequests. See
+     * AdaptiveConcurrencyLimiter. Requests over the limit wait for up to
+     * maxWaitMillis for a free slot before failing with a
+     * TooManyRequestsException.
+     * 
+     * @param initialRequests the limit to start from
+     * @param maxRequests the highest the limit goes
+     * @param maxWaitMillis how long a request can wait, 0 to fail fast
+     * @return this configuration
+     */
+    public Configuration setAdaptiveConcurrentRequests(int initialRequests, int maxRequests, long maxWaitMillis) {
+        return setConcurrencyLimiter(new AdaptiveConcurrencyLimiter(initialRequests, 1, maxRequests)
+                .setMaxWaitMillis(maxWaitMillis));
+    }
+
+    /**
+     * Use your own ConcurrencyLimiter, for example to share one limit between
+     * several merchants. Null removes the limit.
+     */
+    public Configuration setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+        return this;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Give an API a limit of requests in flight of its own. Its requests
+     * then no longer count against the shared limit, so a flood of them
+     * can't take slots other APIs need. Requests over the limit wait for up
+     * to maxWaitMillis for a free slot before failing with a
+     * TooManyRequestsException.
+     * 
+     * @param api the API to limit
+     * @param maxRequests the most requests of that API in flight at once
+     * @param maxWaitMillis how long a request can wait, 0 to fail fast
+     * @return this configuration
+     */
+    public Configuration setMaxConcurrentRequests(ApiType api, int maxRequests, long maxWaitMillis) {
+        return setConcurrencyLimiter(api, new ConcurrencyLimiter(maxRequests).setMaxWaitMillis(maxWaitMillis));
+    }
+
+    /**
+     * Use your own ConcurrencyLimiter for an API in place of the shared one.
+     * Null puts the API back under the shared limit.
+     */
+    public Configuration setConcurrencyLimiter(ApiType api, ConcurrencyLimiter concurrencyLimiter) {
+        if (concurrencyLimiter == null)
+            apiConcurrencyLimiters.remove(api);
+        else
+            apiConcurrencyLimiters.put(api, concurrencyLimiter);
+        return this;
+    }
+
+    /**
+     * @return the API's own limiter if it was given one, or else the shared limiter
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter(ApiType api) {
+        ConcurrencyLimiter limiter = apiConcurrencyLimiters.get(api);
+        return limiter != null ? limiter : concurrencyLimiter;
+    }
+
+    /**
+     * Choose the lane an operation waits in for a concurrency slot. Each
+     * operation has its own by default: payments and pre-auths are
+     * Interactive, transaction queries are Bulk and the rest NearRealTime.
+     * Lanes only matter under a concurrency limit; see ConcurrencyLimiter.
+     * 
+     * @param operation the operation
+     * @param priority its lane, or null for the operation's own
+     * @return this configuration
+     */
+    public Configuration setPriority(Operation operation, Priority priority) {
+        if (priority == null)
+            operationPriorities.remove(operation);
+        else
+            operationPriorities.put(operation, priority);
+        return this;
+    }
+
+    public Map<Operation, Priority> getPriorities() {
+        return Collections.unmodifiableMap(operationPriorities);
+    }
+
+    /**
+     * Choose the HTTP engine that sends requests, for example a
+     * UrlConnectionTransport to use the JDK's own HTTP client. Null, the
+     * default, sends them with Apache HttpClient over the connection pool.
+     * 
+     * @param transport the transport used by every API
+     * @return this configuration
+     */
+    public Configuration setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Ask the gateway to compress responses from an API. This is on by default
+     * for Profiles and Reporting, whose responses are large, and off for Payments.
+     * 
+     * @param api the API
+     * @param compressed true to accept gzip and deflate responses
+     * @return this configuration
+     */
+    public Configuration setCompression(ApiType api, boolean compressed) {
+        if (compressed)
+            compressedApis.add(api);
+        else
+            compressedApis.remove(api);
+        return this;
+    }
+
+    public boolean isCompression(ApiType api) {
+        return compressedApis.contains(api);
+    }
+
+    /**
+     * Throw declines (402) and rejected requests (400) without a stack trace.
+     * They are normal outcomes, and when many arrive at once filling in their
+     * stack traces is a real cost. Their messages are also only built when
+     * asked for. Off by default.
+     * 
+     * @param stacklessDeclines true to throw declines without stack traces
+     * @return this configuration
+     */
+    public Configuration setStacklessDeclines(boolean stacklessDeclines) {
+        this.stacklessDeclines = stacklessDeclines;
+        return this;
+    }
+
+    public boolean isStacklessDeclines() {
+        return stacklessDeclines;
+    }
+
+    /**
+     * Trace every request with the given tracer. Each request gets a span
+     * named after its operation, with a child span for each phase: serialize,
+     * wait (for the rate and concurrency limits), send, parse and map_error.
+     * 
+     * @param tracer the tracer, or null to trace nothing
+     * @return this configuration
+     */
+    public Configuration setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Add an interceptor that is called before every request is sent and
+     * after its response is read, in the order they were added. Set it up
+     * before creating the Gateway.
+     * 
+     * @param interceptor the interceptor, for example a CorrelationIdInterceptor
+     * @return this configuration
+     */
+    public Configuration addInterceptor(RequestInterceptor interceptor) {
+        interceptors.add(interceptor);
+        return this;
+    }
+
+    public List<RequestInterceptor> getInterceptors() {
+        return interceptors;
+    }
+
+    /**
+     * The connect, lease, read and deadline timeouts of every request, unless
+     * its API or operation has its own. There are no limits by default.
+     * 
+     * @param timeouts the timeouts, or null for no limits
+     * @return this configuration
+     */
+    public Configuration setTimeouts(Timeouts timeouts) {
+        this.timeouts = timeouts != null ? timeouts : Timeouts.NONE;
+        return this;
+    }
+
+    /**
+     * The timeouts of the requests to one API, in place of the default ones.
+     * 
+     * @param api the API
+     * @param timeouts the timeouts, or null to use the default ones
+     * @return this configuration
+     */
+    public Configuration setTimeouts(ApiType api, Timeouts timeouts) {
+        if (timeouts == null)
+            apiTimeouts.remove(api);
+        else
+            apiTimeouts.put(api, timeouts);
+        return this;
+    }
+
+    /**
+     * The timeouts of one operation, in place of those of its API. For example
+     * a short deadline for GetProfile and a long one for QueryTransactions.
+     * 
+     * @param operation the operation
+     * @param timeouts the timeouts, or null to use those of its API
+     * @return this configuration
+     */
+    public Configuration setTimeouts(Operation operation, Timeouts timeouts) {
+        if (timeouts == null)
+            operationTimeouts.remove(operation);
+        else
+            operationTimeouts.put(operation, timeouts);
+        return this;
+    }
+
+    /**
+     * @return the timeouts of the API, or the default ones if it has none
+     */
+    public Timeouts getTimeouts(ApiType api) {
+        Timeouts apiTimeout = apiTimeouts.get(api);
+        return apiTimeout != null ? apiTimeout : timeouts;
+    }
+
+    public Timeouts getTimeouts(Operation operation) {
+        return operationTimeouts.get(operation);
+    }
+
+    public Map<Operation, Timeouts> getOperationTimeouts() {
+        return operationTimeouts;
+    }
+
+    /**
+     * The executor that runs async calls, such as TokenizationAPI.tokenizeAsync.
+     * 
+     * @param executor the executor, or null to use a default pool
+     * @return this configuration
+     */
+    public synchronized Configuration setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return the executor for async calls. Unless one was set, this is a
+     * pool of daemon threads, one for each connection of the shared pool and
+     * of the pools given to single APIs, created when first needed.
+     * 
+     * Up to EXECUTOR_QUEUE_SIZE calls wait for a thread. Once that many are
+     * waiting, a call runs on the thread that made it instead, which slows
+     * callers down to the pace of the pool rather than failing their calls
+     * or queueing them without limit.
+     */
+    public ExecutorService getExecutor() {
+        ExecutorService result = executor;
+        if (result == null) {
+            synchronized (this) {
+                result = executor;
+                if (result == null) {
+                    result = createExecutor();
+                    executor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private ExecutorService createExecutor() {
+        int threads = connectionPool.getMaxConnections();
+        Set<ConnectionPool> counted = Collections.newSetFromMap(new IdentityHashMap<ConnectionPool, Boolean>());
+        counted.add(connectionPool);
+        for (ConnectionPool pool : apiConnectionPools.values()) {
+            if (counted.add(pool))
+                threads += pool.getMaxConnections();
+        }
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(EXECUTOR_QUEUE_SIZE), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "beanstream-async-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Cache the cards of payment profiles, so ProfilesAPI.getCard and getCards
+     * are answered locally after the first lookup. Off by default.
+     * 
+     * @param maxProfiles the most profiles to hold the cards of
+     * @param ttlMillis how long cards are kept after they were fetched
+     * @return this configuration
+     */
+    public Configuration setProfileCache(int maxProfiles, long ttlMillis) {
+        return setProfileCache(new ProfileCache(maxProfiles, ttlMillis));
+    }
+
+    /**
+     * @param profileCache the cache, or null to turn caching off
+     * @return this configuration
+     */
+    public Configuration setProfileCache(ProfileCache profileCache) {
+        this.profileCache = profileCache;
+        return this;
+    }
+
+    public ProfileCache getProfileCache() {
+        return profileCache;
+    }
 }
@@ -1,10 +1,21 @@
 package com.beanstream;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.http.HttpStatus;
 
 import com.beanstream.api.PaymentsAPI;
 import com.beanstream.api.ProfilesAPI;
 import com.beanstream.api.ReportingAPI;
+import com.beanstream.api.TokenizationAPI;
+import com.beanstream.connection.ApiType;
+import com.beanstream.connection.BeanstreamUrls;
 import com.beanstream.connection.HttpsConnector;
 import com.beanstream.exceptions.BeanstreamApiException;
 import com.beanstream.responses.BeanstreamResponse;
@@ -44,6 +55,8 @@ public class Gateway {
 	private Configuration config;
 	private PaymentsAPI paymentsApi;
 	private ReportingAPI reportingApi;
+	private TokenizationAPI tokenizationApi;
+	private volatile boolean ready;
 
 	public Gateway(String version, int merchantId, String apiKeyPayments) {
 		config = new Configuration(merchantId, apiKeyPayments);
@@ -106,6 +119,16 @@ public class Gateway {
 		return getProfilesApi();
 	}
 
+	/**
+	 * Turn cards into single-use Legato tokens from the server, one at a time,
+	 * asynchronously or in batches.
+	 * 
+	 * @return API that tokenizes cards for token payments and profiles.
+	 */
+	public TokenizationAPI tokenization() {
+		return getTokenizationApi();
+	}
+
 	private ProfilesAPI profilesApi;
 
 	private ProfilesAPI getProfilesApi() {
@@ -136,6 +159,94 @@ public class Gateway {
 		this.reportingApi = api;
 	}
 
+	private TokenizationAPI getTokenizationApi() {
+		if (tokenizationApi == null)
+			tokenizationApi = new TokenizationAPI(config);
+		return tokenizationApi;
+	}
+
+	public void setTokenizationApi(TokenizationAPI api) {
+		this.tokenizationApi = api;
+	}
+
+	/**
+	 * Get the gateway ready for traffic before the first payment: builds the
+	 * Gson adapters of every API, then opens up to connections keep-alive
+	 * connections to the server so they are waiting in the pool. Runs on the
+	 * configuration's executor.
+	 * 
+	 * With the default transport the connections are leased from the pool
+	 * and connected all at once, so that many are really opened. A custom
+	 * transport or HttpClient is sent that many pings at once instead, which
+	 * opens at least one connection but may share them.
+	 * 
+	 * @param connections how many connections to open, at most the size of
+	 * the connection pool
+	 * @return completes when the gateway is warm, or fails with the
+	 * BeanstreamApiException of the first connection that could not be opened
+	 */
+	public Future<Void> warmUp(final int connections) {
+		if (connections < 0)
+			throw new IllegalArgumentException("connections must not be negative");
+		return config.getExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getPaymentApi().warmUp();
+				getProfilesApi().warmUp();
+				getReportingApi().warmUp();
+				getTokenizationApi().warmUp();
+				openConnections(Math.min(connections, config.getConnectionPool(ApiType.Payments).getMaxConnections()));
+				ready = true;
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return true once warmUp has finished without errors
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	private void openConnections(int count) throws Exception {
+		if (count == 0)
+			return;
+		final HttpsConnector connector = new HttpsConnector(config.getMerchantId(), config.getPaymentsApiPasscode());
+		connector.configureConnector(config, ApiType.Payments);
+		// pings must not use up the permits and slots of real payments
+		connector.setRateLimiter(null);
+		connector.setConcurrencyLimiter(null);
+		final String url = BeanstreamUrls.getBaseUrl(config.getPlatform());
+		if (connector.preconnect(url, count))
+			return;
+
+		// every ping needs its own thread, or they would share one connection
+		ExecutorService pinger = Executors.newFixedThreadPool(count);
+		try {
+			List<Future<Integer>> pings = new ArrayList<Future<Integer>>(count);
+			for (int i = 0; i < count; i++) {
+				pings.add(pinger.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						return connector.ping(url);
+					}
+				}));
+			}
+			for (Future<Integer> ping : pings) {
+				try {
+					ping.get();
+				} catch (ExecutionException ex) {
+					if (ex.getCause() instanceof Exception)
+						throw (Exception) ex.getCause();
+					throw ex;
+				}
+			}
+		} finally {
+			pinger.shutdownNow();
+		}
+	}
+
 	public static void assertNotEmpty(String value, String errorMessage)
             throws BeanstreamApiException {
         // could use StringUtils.assertNotNull();
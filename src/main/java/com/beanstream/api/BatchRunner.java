@@ -0,0 +1,130 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.api;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the tasks of a batch job on a fixed number of worker threads, with no
+ * more than twice that many submitted and not yet finished. The first
+ * IOException a task throws, from writing its progress file, stops further
+ * submissions and is rethrown once the submitted tasks are done.
+ * 
+ * <pre>
+ * BatchRunner runner = new BatchRunner(concurrency);
+ * try {
+ *     while (...) {
+ *         if (!runner.submit(task))
+ *             break;
+ *     }
+ * } finally {
+ *     runner.finish(LOG, "Waiting for ...: {0}", summary);
+ * }
+ * runner.rethrow();
+ * </pre>
+ */
+class BatchRunner {
+
+    interface Task {
+        void run() throws IOException;
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private IOException writeError;
+
+    /**
+     * @param concurrency how many tasks to run at once
+     */
+    BatchRunner(int concurrency) {
+        this.executor = Executors.newFixedThreadPool(concurrency);
+        this.inFlight = new Semaphore(concurrency * 2);
+    }
+
+    /**
+     * Submit a task, waiting while too many are queued.
+     * 
+     * @return false if a task has failed to write, and nothing more should be submitted
+     */
+    boolean submit(final Task task) throws InterruptedException {
+        inFlight.acquire();
+        synchronized (this) {
+            if (writeError != null) {
+                inFlight.release();
+                return false;
+            }
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (IOException ex) {
+                    synchronized (BatchRunner.this) {
+                        if (writeError == null)
+                            writeError = ex;
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Wait for the submitted tasks to finish, logging progress every minute.
+     * An interrupt doesn't cut the wait short, since the tasks still write
+     * their progress: the thread's interrupt flag is set again once they
+     * are done.
+     */
+    void finish(Logger log, String waitingMessage, Object progress) {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES))
+                    break;
+                log.log(Level.INFO, waitingMessage, progress);
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @throws IOException the first write failure of a task, if there was one
+     */
+    synchronized void rethrow() throws IOException {
+        if (writeError != null)
+            throw writeError;
+    }
+}
@@ -24,9 +24,12 @@ package com.beanstream.api;
 
 import com.beanstream.Configuration;
 import com.beanstream.Gateway;
+import com.beanstream.connection.ApiType;
 import com.beanstream.connection.BeanstreamUrls;
 import com.beanstream.connection.HttpMethod;
 import com.beanstream.connection.HttpsConnector;
+import com.beanstream.connection.Operation;
+import com.beanstream.connection.Priority;
 import com.beanstream.exceptions.BeanstreamApiException;
 import com.beanstream.requests.CardPaymentRequest;
 import com.beanstream.requests.CashPaymentRequest;
@@ -36,9 +39,11 @@ import com.beanstream.requests.ReturnRequest;
 import com.beanstream.requests.UnreferencedCardReturnRequest;
 import com.beanstream.requests.UnreferencedSwipeReturnRequest;
 import com.beanstream.responses.BeanstreamResponse;
+import com.beanstream.responses.PaymentOutcome;
 import com.beanstream.responses.PaymentResponse;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 
 import org.apache.http.HttpStatus;
 
@@ -60,19 +65,48 @@ public class PaymentsAPI {
     private Configuration config;
     private HttpsConnector connector;
     private final Gson gson = new Gson();
+    private Priority priority;
 
     public PaymentsAPI(Configuration config) {
         this.config = config;
         connector = new HttpsConnector(config.getMerchantId(),
                 config.getPaymentsApiPasscode());
-        connector.setCustomHttpClient(config.getCustomHttpClient());
+        connector.configureConnector(config, ApiType.Payments);
     }
     
     public void setConfig(Configuration config) {
         this.config = config;
         connector = new HttpsConnector(config.getMerchantId(),
                 config.getPaymentsApiPasscode());
-        connector.setCustomHttpClient(config.getCustomHttpClient());
+        connector.configureConnector(config, ApiType.Payments);
+        connector.setPriority(priority);
+    }
+
+    /**
+     * Get a PaymentsAPI whose calls all wait in the given lane for a
+     * concurrency slot, whatever their operation. For example batch jobs can
+     * complete or return payments through withPriority(Priority.Bulk) so they
+     * never hold up checkout.
+     * 
+     * @param priority the lane, or null to go by operation
+     * @return a new PaymentsAPI on the same configuration
+     */
+    public PaymentsAPI withPriority(Priority priority) {
+        PaymentsAPI api = new PaymentsAPI(config);
+        api.priority = priority;
+        api.connector.setPriority(priority);
+        return api;
+    }
+
+    /**
+     * Build the Gson adapters of the payment calls ahead of the first
+     * payment. Gateway.warmUp() calls this.
+     */
+    public void warmUp() {
+        gson.getAdapter(PaymentResponse.class);
+        connector.warmUp(CardPaymentRequest.class, TokenPaymentRequest.class, ProfilePaymentRequest.class,
+                CashPaymentRequest.class, ChequePaymentRequest.class, PaymentRequest.class, ReturnRequest.class,
+                UnreferencedCardReturnRequest.class, UnreferencedSwipeReturnRequest.class, JsonObject.class);
     }
 
     /**
@@ -95,7 +129,7 @@ public class PaymentsAPI {
         String url = BeanstreamUrls.getPaymentUrl(config.getPlatform(), config.getVersion());
 
         // process the transaction using the REST API
-        String response = connector.ProcessTransaction(HttpMethod.post, url,
+        String response = connector.ProcessTransaction(Operation.MakePayment, HttpMethod.post, url,
                 paymentRequest);
 
         // parse the output and return a PaymentResponse
@@ -120,7 +154,7 @@ public class PaymentsAPI {
         String url = BeanstreamUrls.getPaymentUrl( config.getPlatform(), config.getVersion());
 
         // process the transaction using the REST API
-        String response = connector.ProcessTransaction(HttpMethod.post, url, paymentRequest);
+        String response = connector.ProcessTransaction(Operation.MakePayment, HttpMethod.post, url, paymentRequest);
 
         // parse the output and return a PaymentResponse
         return gson.fromJson(response, PaymentResponse.class);
@@ -143,7 +177,7 @@ public class PaymentsAPI {
         String url = BeanstreamUrls.getPaymentUrl( config.getPlatform(), config.getVersion());
 
         // process the transaction using the REST API
-        String response = connector.ProcessTransaction(HttpMethod.post, url, paymentRequest);
+        String response = connector.ProcessTransaction(Operation.MakePayment, HttpMethod.post, url, paymentRequest);
 
         // parse the output and return a PaymentResponse
         return gson.fromJson(response, PaymentResponse.class);
@@ -164,7 +198,7 @@ public class PaymentsAPI {
         String url = BeanstreamUrls.getPaymentUrl( config.getPlatform(), config.getVersion());
 
         // process the transaction using the REST API
-        String response = connector.ProcessTransaction(HttpMethod.post, url, paymentRequest);
+        String response = connector.ProcessTransaction(Operation.MakePayment, HttpMethod.post, url, paymentRequest);
 
         // parse the output and return a PaymentResponse
         return gson.fromJson(response, PaymentResponse.class);
@@ -185,12 +219,91 @@ public class PaymentsAPI {
         String url = BeanstreamUrls.getPaymentUrl( config.getPlatform(), config.getVersion());
 
         // process the transaction using the REST API
-        String response = connector.ProcessTransaction(HttpMethod.post, url, paymentRequest);
+        String response = connector.ProcessTransaction(Operation.MakePayment, HttpMethod.post, url, paymentRequest);
 
         // parse the output and return a PaymentResponse
         return gson.fromJson(response, PaymentResponse.class);
     }
 
+    /**
+     * Make a credit card payment without throwing for declines or errors. The
+     * outcome says whether the payment was approved, declined or failed, with
+     * the gateway's code, category and details.
+     *
+     * @param paymentRequest the payment request including a credit card data
+     * @return the outcome of the payment, never null
+     */
+    public PaymentOutcome tryMakePayment(CardPaymentRequest paymentRequest) {
+        paymentRequest.setMerchantId("" + config.getMerchantId());
+        paymentRequest.getCard().setComplete(true); // false for pre-auth
+        return tryPayment(paymentRequest);
+    }
+
+    /**
+     * Make a tokenized payment without throwing for declines or errors.
+     *
+     * @param paymentRequest the payment request including a token
+     * @return the outcome of the payment, never null
+     */
+    public PaymentOutcome tryMakePayment(TokenPaymentRequest paymentRequest) {
+        paymentRequest.setMerchantId("" + config.getMerchantId());
+        paymentRequest.getToken().setComplete(true); // true to make the payment
+        return tryPayment(paymentRequest);
+    }
+
+    /**
+     * Make a payment with a Payment Profile without throwing for declines or errors.
+     *
+     * @param paymentRequest the payment request including a profile token
+     * @return the outcome of the payment, never null
+     */
+    public PaymentOutcome tryMakePayment(ProfilePaymentRequest paymentRequest) {
+        paymentRequest.setMerchantId("" + config.getMerchantId());
+        paymentRequest.getProfile().setComplete(true); // true to make the payment
+        return tryPayment(paymentRequest);
+    }
+
+    /**
+     * Make a cash payment without throwing for errors.
+     *
+     * @param paymentRequest the cash payment request
+     * @return the outcome of the payment, never null
+     */
+    public PaymentOutcome tryMakePayment(CashPaymentRequest paymentRequest) {
+        return tryPayment(paymentRequest);
+    }
+
+    /**
+     * Make a payment by cheque without throwing for declines or errors.
+     *
+     * @param paymentRequest the payment request including a cheque
+     * @return the outcome of the payment, never null
+     */
+    public PaymentOutcome tryMakePayment(ChequePaymentRequest paymentRequest) {
+        return tryPayment(paymentRequest);
+    }
+
+    private PaymentOutcome tryPayment(Object paymentRequest) {
+        String url = BeanstreamUrls.getPaymentUrl(config.getPlatform(), config.getVersion());
+
+        BeanstreamResponse response;
+        try {
+            response = connector.sendRequest(Operation.MakePayment, HttpMethod.post, url, paymentRequest);
+        } catch (BeanstreamApiException ex) {
+            return PaymentOutcome.fromException(ex);
+        }
+
+        int httpStatus = response.getHttpStatusCode();
+        if (httpStatus < 200 || httpStatus >= 300)
+            return PaymentOutcome.fromErrorResponse(response);
+        try {
+            return PaymentOutcome.fromPaymentResponse(httpStatus,
+                    gson.fromJson(response.getResponseBody(), PaymentResponse.class));
+        } catch (JsonParseException ex) {
+            return PaymentOutcome.fromException(new BeanstreamApiException(ex, "Invalid payment response"));
+        }
+    }
+
     /**
      * Void the specified paymentId. Voids generally need to occur before end of
      * business on the same day that the transaction was processed. Voids are
@@ -221,7 +334,7 @@ public class PaymentsAPI {
                 String.valueOf(config.getMerchantId()));
         voidRequest.addProperty(AMOUNT_PARAM, String.valueOf(amount));
 
-        String response = connector.ProcessTransaction(HttpMethod.post, url,
+        String response = connector.ProcessTransaction(Operation.VoidPayment, HttpMethod.post, url,
                 voidRequest);
 
         // parse the output and return a PaymentResponse
@@ -258,7 +371,7 @@ public class PaymentsAPI {
         String preAuthUrl = getPaymentUrl(config.getPlatform(),
                 config.getVersion());
 
-        String response = connector.ProcessTransaction(HttpMethod.post,
+        String response = connector.ProcessTransaction(Operation.PreAuth, HttpMethod.post,
                 preAuthUrl, paymentRequest);
         return gson.fromJson(response, PaymentResponse.class);
     }
@@ -292,7 +405,7 @@ public class PaymentsAPI {
         String preAuthUrl = getPaymentUrl(config.getPlatform(),
                 config.getVersion());
 
-        String response = connector.ProcessTransaction(HttpMethod.post,
+        String response = connector.ProcessTransaction(Operation.PreAuth, HttpMethod.post,
                 preAuthUrl, paymentRequest);
         return gson.fromJson(response, PaymentResponse.class);
     }
@@ -324,7 +437,7 @@ public class PaymentsAPI {
 
         String preAuthUrl = getPaymentUrl(config.getPlatform(), config.getVersion());
 
-        String response = connector.ProcessTransaction(HttpMethod.post, preAuthUrl, paymentRequest);
+        String response = connector.ProcessTransaction(Operation.PreAuth, HttpMethod.post, preAuthUrl, paymentRequest);
         return gson.fromJson(response, PaymentResponse.class);
     }
 
@@ -349,7 +462,7 @@ public class PaymentsAPI {
                 String.valueOf(config.getMerchantId()));
         authorizeRequest.addProperty(AMOUNT_PARAM, String.valueOf(amount));
         
-        String response = connector.ProcessTransaction(HttpMethod.post,
+        String response = connector.ProcessTransaction(Operation.PreAuthCompletion, HttpMethod.post,
                 authorizePaymentUrl, authorizeRequest);
 
         return gson.fromJson(response, PaymentResponse.class);
@@ -370,7 +483,7 @@ public class PaymentsAPI {
         String authorizePaymentUrl = getPreAuthCompletionsUrl(
                 config.getPlatform(), config.getVersion(), paymentId);
         
-        String response = connector.ProcessTransaction(HttpMethod.post, authorizePaymentUrl, request);
+        String response = connector.ProcessTransaction(Operation.PreAuthCompletion, HttpMethod.post, authorizePaymentUrl, request);
         return gson.fromJson(response, PaymentResponse.class);
     }
     
@@ -392,7 +505,7 @@ public class PaymentsAPI {
         returnRequest.setMerchantId( String.valueOf(config.getMerchantId()) );
         returnRequest.setAmount( amount );
         
-        String response = connector.ProcessTransaction(HttpMethod.post, returnPaymentUrl, returnRequest);
+        String response = connector.ProcessTransaction(Operation.ReturnPayment, HttpMethod.post, returnPaymentUrl, returnRequest);
 
         return gson.fromJson(response, PaymentResponse.class);
 
@@ -414,7 +527,7 @@ public class PaymentsAPI {
 
         returnRequest.setMerchantId( String.valueOf(config.getMerchantId()) );
 
-        String response = connector.ProcessTransaction(HttpMethod.post, unreferencedReturnUrl, returnRequest);
+        String response = connector.ProcessTransaction(Operation.UnreferencedReturn, HttpMethod.post, unreferencedReturnUrl, returnRequest);
 
         return gson.fromJson(response, PaymentResponse.class);
 
@@ -436,7 +549,7 @@ public class PaymentsAPI {
 
         returnRequest.setMerchantId( String.valueOf(config.getMerchantId()) );
 
-        String response = connector.ProcessTransaction(HttpMethod.post, unreferencedReturnUrl, returnRequest);
+        String response = connector.ProcessTransaction(Operation.UnreferencedReturn, HttpMethod.post, unreferencedReturnUrl, returnRequest);
 
         return gson.fromJson(response, PaymentResponse.class);
 
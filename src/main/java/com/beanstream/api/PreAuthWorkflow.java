@@ -0,0 +1,829 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.api;
+
+import com.beanstream.api.BatchRunner.Task;
+import com.beanstream.connection.Priority;
+import com.beanstream.domain.Adjustment;
+import com.beanstream.domain.Transaction;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.requests.CardPaymentRequest;
+import com.beanstream.requests.PaymentRequest;
+import com.beanstream.requests.ProfilePaymentRequest;
+import com.beanstream.requests.TokenPaymentRequest;
+import com.beanstream.responses.PaymentResponse;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of outstanding pre-authorizations until they are completed,
+ * for example a marketplace that pre-authorizes at checkout and completes
+ * when the order ships.
+ * 
+ * Every pre-auth is recorded by order number in a journal file, one tab
+ * separated line per change: order number, payment id, amount, status, time
+ * and message. The latest line for an order wins, and the journal is read
+ * back when the workflow is opened, so outstanding pre-auths survive a
+ * restart. compact() rewrites it with one line per order.
+ * 
+ * A completion or void the gateway turned down is recorded as
+ * CompletionFailed or VoidFailed, and is only ever tried again as the same
+ * operation: completeAll retries failed completions, voidExpired and cancel
+ * retry failed voids, and neither touches the other's orders. When no answer
+ * came back at all, a network error, a timeout or a 5xx, the call may still
+ * have gone through, so the order is recorded as CompletionUnknown or
+ * VoidUnknown. Before acting on it again the workflow looks the pre-auth up
+ * with ReportingAPI.getTransaction: if the completion or a void shows up in
+ * its adjustments the order is marked Completed or Voided, and only if
+ * neither does is the same operation tried again.
+ * 
+ * An order is claimed, as Completing or Voiding, before its completion or
+ * void is queued, so overlapping calls never send two for the same
+ * pre-auth: the second call skips it. The claim is journaled too, and an
+ * order still being sent when the process stopped is read back as
+ * CompletionUnknown or VoidUnknown.
+ * 
+ * Completions and voids are sent by a fixed number of worker threads, so no
+ * more than that many are in flight at once. They wait in the Bulk lane of
+ * a concurrency limit, so they never hold up pre-auths made at checkout.
+ * Pre-auths older than the expiry, or abandoned with cancel(), are voided
+ * with voidPayment.
+ * 
+ * <pre>
+ * PreAuthWorkflow workflow = new PreAuthWorkflow(beanstream.payments(), beanstream.reports(),
+ *         new File("preauths.tsv"));
+ * workflow.preAuth(paymentRequest);
+ * ...
+ * PreAuthWorkflow.Summary summary = workflow.completeAll(shippedOrderNumbers);
+ * workflow.voidExpired();
+ * </pre>
+ */
+public class PreAuthWorkflow implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Logger LOG = Logger.getLogger(PreAuthWorkflow.class.getName());
+
+    /**
+     * Where a pre-auth is in the workflow.
+     */
+    public enum Status {
+        /** Pre-authorized and waiting to be completed */
+        Authorized,
+        /** Completed, so the funds will be captured */
+        Completed,
+        /** Voided because it expired or was cancelled */
+        Voided,
+        /** The gateway turned the completion down, completeAll tries it again */
+        CompletionFailed,
+        /** The gateway turned the void down, voidExpired and cancel try it again */
+        VoidFailed,
+        /** No answer to the completion, it is looked up before completeAll acts again */
+        CompletionUnknown,
+        /** No answer to the void, it is looked up before voidExpired or cancel act again */
+        VoidUnknown,
+        /** A completion is queued or being sent, other calls skip the order */
+        Completing,
+        /** A void is queued or being sent, other calls skip the order */
+        Voiding
+    }
+
+    // adjustment types of a completion and of a void
+    private static final String COMPLETION = "PAC";
+    private static final String VOID_PREFIX = "V";
+
+    private final PaymentsAPI payments;
+    private final PaymentsAPI batchPayments;
+    private final ReportingAPI reports;
+    private final File journalFile;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private Writer journal;
+    private int concurrency = 4;
+    private long expiryMillis = TimeUnit.DAYS.toMillis(5);
+
+    /**
+     * Open the workflow without a way to look pre-auths up. Orders whose
+     * completion or void got no answer are then left as CompletionUnknown or
+     * VoidUnknown for you to check.
+     * 
+     * @param payments the API used to complete and void the pre-auths
+     * @param journalFile where the pre-auths are recorded
+     * @throws IOException if the journal could not be read or opened
+     */
+    public PreAuthWorkflow(PaymentsAPI payments, File journalFile) throws IOException {
+        this(payments, null, journalFile);
+    }
+
+    /**
+     * Open the workflow, reading back the pre-auths in the journal.
+     * 
+     * @param payments the API used to complete and void the pre-auths
+     * @param reports the API used to look up pre-auths whose completion or
+     * void got no answer
+     * @param journalFile where the pre-auths are recorded
+     * @throws IOException if the journal could not be read or opened
+     */
+    public PreAuthWorkflow(PaymentsAPI payments, ReportingAPI reports, File journalFile) throws IOException {
+        this.payments = payments;
+        this.batchPayments = payments.withPriority(Priority.Bulk);
+        this.reports = reports != null ? reports.withPriority(Priority.Bulk) : null;
+        this.journalFile = journalFile;
+        readJournal();
+        journal = open(journalFile, true);
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @param concurrency the most completions or voids to send at once
+     */
+    public PreAuthWorkflow setConcurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1!");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public long getExpiryMillis() {
+        return expiryMillis;
+    }
+
+    /**
+     * @param expiryMillis how long after it was made voidExpired() voids a
+     * pre-auth that was not completed. Defaults to 5 days.
+     */
+    public PreAuthWorkflow setExpiryMillis(long expiryMillis) {
+        if (expiryMillis < 1)
+            throw new IllegalArgumentException("Expiry must be positive!");
+        this.expiryMillis = expiryMillis;
+        return this;
+    }
+
+    public PaymentResponse preAuth(CardPaymentRequest paymentRequest) throws BeanstreamApiException, IOException {
+        return track(paymentRequest, payments.preAuth(paymentRequest));
+    }
+
+    public PaymentResponse preAuth(ProfilePaymentRequest paymentRequest) throws BeanstreamApiException, IOException {
+        return track(paymentRequest, payments.preAuth(paymentRequest));
+    }
+
+    public PaymentResponse preAuth(TokenPaymentRequest paymentRequest) throws BeanstreamApiException, IOException {
+        return track(paymentRequest, payments.preAuth(paymentRequest));
+    }
+
+    private PaymentResponse track(PaymentRequest request, PaymentResponse response) throws IOException {
+        if (response.isApproved())
+            track(request.getOrderNumber(), response.id, Double.parseDouble(request.getAmount()));
+        return response;
+    }
+
+    /**
+     * Track a pre-auth that was made some other way.
+     * 
+     * @param orderNumber the order, it cannot contain tabs or new lines
+     * @param paymentId the id of the pre-auth
+     * @param amount the amount that was pre-authorized
+     */
+    public void track(String orderNumber, String paymentId, double amount) throws IOException {
+        if (orderNumber == null || paymentId == null)
+            throw new IllegalArgumentException("Order number and payment id are required!");
+        record(new Entry(orderNumber, paymentId, amount, Status.Authorized, System.currentTimeMillis(), null));
+    }
+
+    /**
+     * @return the status of the order's pre-auth, or null if it is not tracked
+     */
+    public Status getStatus(String orderNumber) {
+        Entry entry = entries.get(orderNumber);
+        return entry != null ? entry.status : null;
+    }
+
+    /**
+     * @return the order's pre-auth, or null if it is not tracked
+     */
+    public Entry getEntry(String orderNumber) {
+        return entries.get(orderNumber);
+    }
+
+    /**
+     * @return every tracked pre-auth with the given status
+     */
+    public List<Entry> getEntries(Status status) {
+        List<Entry> found = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (entry.status == status)
+                found.add(entry);
+        }
+        return found;
+    }
+
+    /**
+     * Complete the pre-auths of the orders for the amounts they were
+     * authorized for. Blocks until they have all been sent.
+     * 
+     * @param orderNumbers the orders to complete
+     * @return how many were completed, failed or skipped because they are
+     * not tracked or not waiting to be completed
+     */
+    public Summary completeAll(Collection<String> orderNumbers) throws IOException, InterruptedException {
+        Map<String, Double> amounts = new LinkedHashMap<String, Double>();
+        for (String orderNumber : orderNumbers) {
+            amounts.put(orderNumber, null);
+        }
+        return completeAll(amounts);
+    }
+
+    /**
+     * Complete the pre-auths of the orders, each for the given amount, or the
+     * amount it was authorized for if that is null. Orders whose last
+     * completion failed are tried again, and those whose last completion got
+     * no answer are looked up first. Orders with a failed or unanswered void
+     * are skipped. Blocks until they have all been sent.
+     * 
+     * @param amounts the amount to complete for each order
+     * @return how many were completed, failed, left unknown or skipped
+     * because they are not tracked or not waiting to be completed
+     */
+    public Summary completeAll(Map<String, Double> amounts) throws IOException, InterruptedException {
+        final Summary summary = new Summary();
+        List<Claim> claims = new ArrayList<Claim>(amounts.size());
+        try {
+            for (Map.Entry<String, Double> order : amounts.entrySet()) {
+                Entry entry = entries.get(order.getKey());
+                Entry claimed = entry != null && isCompletable(entry) ? claim(entry, Status.Completing) : null;
+                if (claimed == null) {
+                    summary.skipped.incrementAndGet();
+                    continue;
+                }
+                final double amount = order.getValue() != null ? order.getValue() : entry.amount;
+                claims.add(new Claim(entry, claimed) {
+                    @Override
+                    void send() throws IOException {
+                        if (previous.status == Status.CompletionUnknown
+                                && !reconcile(claimed, Status.CompletionUnknown, summary))
+                            return;
+                        try {
+                            batchPayments.preAuthCompletion(claimed.paymentId, amount);
+                            record(claimed.withStatus(Status.Completed, null));
+                            summary.completed.incrementAndGet();
+                        } catch (BeanstreamApiException ex) {
+                            failed(claimed, ex, Status.CompletionFailed, Status.CompletionUnknown, summary);
+                        }
+                    }
+                });
+            }
+            runAll(claims, summary);
+        } finally {
+            releaseUnsent(claims);
+        }
+        return summary;
+    }
+
+    /**
+     * Void every pre-auth that is older than the expiry and that no
+     * completion was tried for. Blocks until they have all been sent.
+     * 
+     * @return how many were voided, failed or left unknown
+     */
+    public Summary voidExpired() throws IOException, InterruptedException {
+        long cutoff = System.currentTimeMillis() - expiryMillis;
+        List<String> expired = new ArrayList<String>();
+        for (Entry entry : entries.values()) {
+            if (isVoidable(entry) && entry.authorizedAt < cutoff)
+                expired.add(entry.orderNumber);
+        }
+        return voidAll(expired);
+    }
+
+    /**
+     * Void the pre-auths of orders that were abandoned. Blocks until they have
+     * all been sent.
+     * 
+     * @param orderNumbers the orders to void
+     * @return how many were voided, failed, left unknown or skipped because
+     * they are not tracked, already completed or voided, or a completion was
+     * tried for them
+     */
+    public Summary cancel(Collection<String> orderNumbers) throws IOException, InterruptedException {
+        return voidAll(orderNumbers);
+    }
+
+    private Summary voidAll(Collection<String> orderNumbers) throws IOException, InterruptedException {
+        final Summary summary = new Summary();
+        List<Claim> claims = new ArrayList<Claim>(orderNumbers.size());
+        try {
+            for (String orderNumber : orderNumbers) {
+                Entry entry = entries.get(orderNumber);
+                Entry claimed = entry != null && isVoidable(entry) ? claim(entry, Status.Voiding) : null;
+                if (claimed == null) {
+                    summary.skipped.incrementAndGet();
+                    continue;
+                }
+                claims.add(new Claim(entry, claimed) {
+                    @Override
+                    void send() throws IOException {
+                        if (previous.status == Status.VoidUnknown
+                                && !reconcile(claimed, Status.VoidUnknown, summary))
+                            return;
+                        try {
+                            batchPayments.voidPayment(claimed.paymentId, claimed.amount);
+                            record(claimed.withStatus(Status.Voided, null));
+                            summary.voided.incrementAndGet();
+                        } catch (BeanstreamApiException ex) {
+                            failed(claimed, ex, Status.VoidFailed, Status.VoidUnknown, summary);
+                        }
+                    }
+                });
+            }
+            runAll(claims, summary);
+        } finally {
+            releaseUnsent(claims);
+        }
+        return summary;
+    }
+
+    private static boolean isCompletable(Entry entry) {
+        return entry.status == Status.Authorized || entry.status == Status.CompletionFailed
+                || entry.status == Status.CompletionUnknown;
+    }
+
+    private static boolean isVoidable(Entry entry) {
+        return entry.status == Status.Authorized || entry.status == Status.VoidFailed
+                || entry.status == Status.VoidUnknown;
+    }
+
+    /**
+     * Claim an order for a completion or void, unless another call changed
+     * it since it was read.
+     * 
+     * @return the claimed entry, or null if the order was changed
+     */
+    private synchronized Entry claim(Entry entry, Status status) throws IOException {
+        Entry claimed = entry.withStatus(status, entry.message);
+        if (!entries.replace(entry.orderNumber, entry, claimed))
+            return null;
+        try {
+            writeLine(journal(), claimed);
+        } catch (IOException ex) {
+            entries.replace(entry.orderNumber, claimed, entry);
+            throw ex;
+        }
+        return claimed;
+    }
+
+    /**
+     * Give back the claims whose completion or void was never sent, because
+     * the batch stopped early.
+     */
+    private synchronized void releaseUnsent(List<Claim> claims) {
+        for (Claim claim : claims) {
+            if (claim.started || !entries.replace(claim.claimed.orderNumber, claim.claimed, claim.previous))
+                continue;
+            try {
+                writeLine(journal(), claim.previous);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Could not record the release of " + claim.previous.orderNumber, ex);
+            }
+        }
+    }
+
+    /**
+     * Record a completion or void that did not go through: as failed if the
+     * gateway turned it down, or as unknown if no answer came back.
+     */
+    private void failed(Entry entry, BeanstreamApiException ex, Status failed, Status unknown, Summary summary)
+            throws IOException {
+        int status = ex.getHttpStatusCode();
+        if (status < 0 || status >= 500) {
+            record(entry.withStatus(unknown, ex.getMessage()));
+            summary.unknown.incrementAndGet();
+        } else {
+            record(entry.withStatus(failed, ex.getMessage()));
+            summary.failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Look up a claimed pre-auth whose last completion or void got no answer.
+     * 
+     * @param unknown the status to go back to if it could not be looked up
+     * @return true if neither a completion nor a void shows up and the
+     * operation can be tried again, the order stays claimed
+     */
+    private boolean reconcile(Entry entry, Status unknown, Summary summary) throws IOException {
+        if (reports == null) {
+            record(entry.withStatus(unknown, entry.message));
+            summary.unknown.incrementAndGet();
+            return false;
+        }
+        Transaction transaction;
+        try {
+            transaction = reports.getTransaction(entry.paymentId);
+        } catch (BeanstreamApiException ex) {
+            record(entry.withStatus(unknown, "Lookup failed: " + ex.getMessage()));
+            summary.unknown.incrementAndGet();
+            return false;
+        }
+        if (transaction.getAdjustments() != null) {
+            for (Adjustment adjustment : transaction.getAdjustments()) {
+                if (!"1".equals(adjustment.getApproval()) || adjustment.getType() == null)
+                    continue;
+                if (COMPLETION.equals(adjustment.getType())) {
+                    record(entry.withStatus(Status.Completed, "Found completion " + adjustment.getId()));
+                    if (unknown == Status.CompletionUnknown)
+                        summary.completed.incrementAndGet();
+                    else
+                        summary.skipped.incrementAndGet();
+                    return false;
+                }
+                if (adjustment.getType().startsWith(VOID_PREFIX)) {
+                    record(entry.withStatus(Status.Voided, "Found void " + adjustment.getId()));
+                    if (unknown == Status.VoidUnknown)
+                        summary.voided.incrementAndGet();
+                    else
+                        summary.skipped.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void runAll(List<? extends Task> tasks, Summary summary) throws IOException, InterruptedException {
+        if (tasks.isEmpty())
+            return;
+        BatchRunner runner = new BatchRunner(Math.min(concurrency, tasks.size()));
+        try {
+            for (Task task : tasks) {
+                if (!runner.submit(task))
+                    break;
+            }
+        } finally {
+            runner.finish(LOG, "Waiting for pre-auths to be sent: {0}", summary);
+        }
+        runner.rethrow();
+    }
+
+    /**
+     * Rewrite the journal with only the latest line for each order, leaving
+     * out the orders that were completed or voided before the given time.
+     * 
+     * The old journal is kept as a backup until the new one is in place, and
+     * is read back instead if the swap was interrupted. If the journal can't
+     * be put back after a failed swap, the workflow stops recording changes
+     * until it is opened again, which restores the journal from the backup.
+     * 
+     * @param keepSince orders that were completed or voided before this time
+     * (in milliseconds since the epoch) are dropped, use 0 to keep them all
+     */
+    public synchronized void compact(long keepSince) throws IOException {
+        Writer current = journal();
+        File temp = new File(journalFile.getPath() + ".tmp");
+        List<String> dropped = new ArrayList<String>();
+        Writer writer = open(temp, false);
+        try {
+            for (Entry entry : entries.values()) {
+                if ((entry.status == Status.Completed || entry.status == Status.Voided) && entry.updatedAt < keepSince) {
+                    dropped.add(entry.orderNumber);
+                    continue;
+                }
+                writeLine(writer, entry);
+            }
+        } catch (IOException ex) {
+            writer.close();
+            temp.delete();
+            throw ex;
+        }
+        writer.close();
+        current.close();
+        File backup = backupFile();
+        try {
+            if (!journalFile.renameTo(backup))
+                throw new IOException("Could not move " + journalFile + " to " + backup);
+            if (!temp.renameTo(journalFile)) {
+                if (!backup.renameTo(journalFile))
+                    throw new IOException("Could not replace " + journalFile + ", the pre-auths are in " + backup);
+                temp.delete();
+                throw new IOException("Could not replace " + journalFile);
+            }
+        } finally {
+            // a new empty journal would hide the backup, so record() fails instead
+            journal = journalFile.exists() ? open(journalFile, true) : null;
+        }
+        for (String orderNumber : dropped) {
+            entries.remove(orderNumber);
+        }
+        if (!backup.delete())
+            LOG.log(Level.WARNING, "Could not delete {0}", backup);
+    }
+
+    private File backupFile() {
+        return new File(journalFile.getPath() + ".bak");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal != null)
+            journal.close();
+    }
+
+    private synchronized void record(Entry entry) throws IOException {
+        writeLine(journal(), entry);
+        entries.put(entry.orderNumber, entry);
+    }
+
+    /**
+     * @throws IOException if compact() could not put the journal back
+     */
+    private Writer journal() throws IOException {
+        if (journal == null)
+            throw new IOException("The journal " + journalFile + " is missing, the pre-auths are in "
+                    + backupFile() + " until the workflow is opened again");
+        return journal;
+    }
+
+    private static Writer open(File file, boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), UTF8));
+    }
+
+    /**
+     * Write one tab separated line and flush it, so it survives a crash.
+     */
+    private static void writeLine(Writer writer, Entry entry) throws IOException {
+        String message = entry.message != null
+                ? entry.message.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ') : "";
+        writer.write(entry.orderNumber + '\t' + entry.paymentId + '\t' + entry.amount + '\t' + entry.status
+                + '\t' + entry.authorizedAt + '\t' + entry.updatedAt + '\t' + message + '\n');
+        writer.flush();
+    }
+
+    private void readJournal() throws IOException {
+        File backup = backupFile();
+        if (backup.exists()) {
+            // compact() stopped part way: before the new journal was in place
+            // the backup has every pre-auth, after it the backup is not needed
+            if (!journalFile.exists()) {
+                if (!backup.renameTo(journalFile))
+                    throw new IOException("Could not restore " + journalFile + " from " + backup);
+            } else if (backup.lastModified() > journalFile.lastModified() || backup.length() > journalFile.length()) {
+                // the journal may be one that was started over while the pre-auths were in the backup
+                restore(backup);
+            } else if (!backup.delete()) {
+                LOG.log(Level.WARNING, "Could not delete {0}", backup);
+            }
+        }
+        if (!journalFile.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 7) {
+                    // a line cut short by a crash
+                    continue;
+                }
+                try {
+                    Status status = Status.valueOf(fields[3]);
+                    // it was being sent when the process stopped, so it may have gone through
+                    if (status == Status.Completing)
+                        status = Status.CompletionUnknown;
+                    else if (status == Status.Voiding)
+                        status = Status.VoidUnknown;
+                    entries.put(fields[0], new Entry(fields[0], fields[1], Double.parseDouble(fields[2]),
+                            status, Long.parseLong(fields[4]), Long.parseLong(fields[5]),
+                            fields[6].isEmpty() ? null : fields[6]));
+                } catch (IllegalArgumentException ex) {
+                    LOG.log(Level.WARNING, "Skipping bad line in {0}: {1}", new Object[] {journalFile, line});
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Put the lines of the backup in front of those of the journal. The
+     * latest line for an order wins, so nothing in either is lost.
+     */
+    private void restore(File backup) throws IOException {
+        LOG.log(Level.WARNING, "Restoring {0} from {1}", new Object[] {journalFile, backup});
+        File temp = new File(journalFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            if (copy(backup, out) != '\n')
+                out.write('\n'); // a line cut short by a crash
+            copy(journalFile, out);
+        } catch (IOException ex) {
+            out.close();
+            temp.delete();
+            throw ex;
+        }
+        out.close();
+        if (!temp.renameTo(journalFile))
+            throw new IOException("Could not restore " + journalFile + " from " + backup);
+        if (!backup.delete())
+            LOG.log(Level.WARNING, "Could not delete {0}", backup);
+    }
+
+    /**
+     * @return the last byte of the file, or '\n' if it is empty
+     */
+    private static int copy(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int last = '\n';
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (read > 0)
+                    last = buffer[read - 1];
+            }
+            return last;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A completion or void of a claimed order.
+     */
+    private abstract static class Claim implements Task {
+        final Entry previous;
+        final Entry claimed;
+        volatile boolean started;
+
+        Claim(Entry previous, Entry claimed) {
+            this.previous = previous;
+            this.claimed = claimed;
+        }
+
+        @Override
+        public final void run() throws IOException {
+            started = true;
+            send();
+        }
+
+        abstract void send() throws IOException;
+    }
+
+    /**
+     * A tracked pre-auth, as of its latest change.
+     */
+    public static class Entry {
+        private final String orderNumber;
+        private final String paymentId;
+        private final double amount;
+        private final Status status;
+        private final long authorizedAt;
+        private final long updatedAt;
+        private final String message;
+
+        private Entry(String orderNumber, String paymentId, double amount, Status status,
+                long authorizedAt, String message) {
+            this(orderNumber, paymentId, amount, status, authorizedAt, authorizedAt, message);
+        }
+
+        private Entry(String orderNumber, String paymentId, double amount, Status status,
+                long authorizedAt, long updatedAt, String message) {
+            this.orderNumber = orderNumber;
+            this.paymentId = paymentId;
+            this.amount = amount;
+            this.status = status;
+            this.authorizedAt = authorizedAt;
+            this.updatedAt = updatedAt;
+            this.message = message;
+        }
+
+        private Entry withStatus(Status status, String message) {
+            return new Entry(orderNumber, paymentId, amount, status, authorizedAt,
+                    System.currentTimeMillis(), message);
+        }
+
+        public String getOrderNumber() {
+            return orderNumber;
+        }
+
+        public String getPaymentId() {
+            return paymentId;
+        }
+
+        public double getAmount() {
+            return amount;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return when the pre-auth was tracked, in milliseconds since the epoch
+         */
+        public long getAuthorizedAt() {
+            return authorizedAt;
+        }
+
+        /**
+         * @return when the status last changed, in milliseconds since the epoch
+         */
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+
+        /**
+         * @return why the last completion or void failed or is unknown, or null
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * The outcome of a batch of completions or voids.
+     */
+    public static class Summary {
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger voided = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger unknown = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+
+        public int getCompleted() {
+            return completed.get();
+        }
+
+        public int getVoided() {
+            return voided.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return orders that got no answer and could not be looked up, see
+         * CompletionUnknown and VoidUnknown
+         */
+        public int getUnknown() {
+            return unknown.get();
+        }
+
+        /**
+         * @return orders that were not tracked, or not waiting to be completed
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        @Override
+        public String toString() {
+            return "completed: " + completed + " voided: " + voided + " failed: " + failed + " unknown: " + unknown
+                    + " skipped: " + skipped;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.api;
+
+import com.beanstream.domain.Address;
+import com.beanstream.domain.Card;
+import com.beanstream.domain.CustomFields;
+import com.beanstream.domain.Token;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.responses.ProfileResponse;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Creates payment profiles in bulk, for example when migrating an existing
+ * customer base onto Beanstream.
+ * 
+ * Rows are read one at a time from an Iterator and are validated and
+ * submitted by a fixed number of worker threads, so no more than that many
+ * profiles are being created at once. Requests go through the profiles API
+ * connector and so honour any rate limit set with
+ * Configuration.setRateLimit(ApiType.Profiles, ...).
+ * 
+ * Progress is written as it happens to two tab separated files:
+ * <ul>
+ * <li>the mapping file: input key, customer_code - one line per created profile</li>
+ * <li>the error file: input key, http status, code, category, message - one
+ * line per row that failed</li>
+ * </ul>
+ * These files are also the checkpoint. If the job is run again with the same
+ * files, any key already in the mapping file is skipped, so an import that
+ * crashed can simply be restarted. Keys in the error file are skipped too,
+ * unless setRetryFailed(true) is used.
+ * 
+ * <pre>
+ * ProfileImporter importer = new ProfileImporter(beanstream.profiles(),
+ *         new File("customer_codes.tsv"), new File("errors.tsv"));
+ * importer.setConcurrency(8);
+ * ProfileImporter.Summary summary = importer.run(rows);
+ * </pre>
+ */
+public class ProfileImporter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Logger LOG = Logger.getLogger(ProfileImporter.class.getName());
+
+    private final ProfilesAPI profiles;
+    private final File mappingFile;
+    private final File errorFile;
+    private int concurrency = 4;
+    private boolean retryFailed;
+
+    /**
+     * @param profiles the API used to create the profiles
+     * @param mappingFile where the input key to customer_code mapping is written
+     * @param errorFile where the rows that failed are written
+     */
+    public ProfileImporter(ProfilesAPI profiles, File mappingFile, File errorFile) {
+        this.profiles = profiles;
+        this.mappingFile = mappingFile;
+        this.errorFile = errorFile;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @param concurrency the most profiles to validate and create at once
+     */
+    public ProfileImporter setConcurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1!");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public boolean isRetryFailed() {
+        return retryFailed;
+    }
+
+    /**
+     * @param retryFailed true to try the rows in the error file again when resuming
+     */
+    public ProfileImporter setRetryFailed(boolean retryFailed) {
+        this.retryFailed = retryFailed;
+        return this;
+    }
+
+    /**
+     * Import the rows, skipping any that were done by a previous run.
+     * Blocks until every row has been processed.
+     * 
+     * @param rows the profiles to create, each with a unique key
+     * @return how many profiles were created, failed or skipped
+     * @throws IOException if the mapping or error file could not be read or written
+     * @throws InterruptedException if interrupted while rows are being
+     * submitted. Rows already submitted are finished and written first, and
+     * an interrupt while waiting for them only sets the interrupt flag again.
+     */
+    public Summary run(Iterator<Row> rows) throws IOException, InterruptedException {
+        Set<String> done = new HashSet<String>();
+        readKeys(mappingFile, done);
+        if (!retryFailed) {
+            readKeys(errorFile, done);
+        }
+
+        final Summary summary = new Summary();
+        final Writer mapping = open(mappingFile);
+        final Writer errors;
+        try {
+            errors = open(errorFile);
+        } catch (IOException ex) {
+            mapping.close();
+            throw ex;
+        }
+
+        BatchRunner runner = new BatchRunner(concurrency);
+        try {
+            while (rows.hasNext()) {
+                final Row row = rows.next();
+                if (row.getKey() == null || done.contains(row.getKey())) {
+                    summary.skipped.incrementAndGet();
+                    continue;
+                }
+                done.add(row.getKey());
+                boolean submitted = runner.submit(new BatchRunner.Task() {
+                    @Override
+                    public void run() throws IOException {
+                        importRow(row, summary, mapping, errors);
+                    }
+                });
+                if (!submitted)
+                    break;
+            }
+        } finally {
+            runner.finish(LOG, "Waiting for profile import to finish: {0}", summary);
+            try {
+                mapping.close();
+            } finally {
+                errors.close();
+            }
+        }
+        runner.rethrow();
+        return summary;
+    }
+
+    private void importRow(Row row, Summary summary, Writer mapping, Writer errors) throws IOException {
+        try {
+            ProfileResponse response;
+            if (row.getCard() != null) {
+                response = profiles.createProfile(row.getCard(), row.getBilling(),
+                        row.getCustom(), row.getLanguage(), row.getComments());
+            } else {
+                response = profiles.createProfile(row.getToken(), row.getBilling(),
+                        row.getCustom(), row.getLanguage(), row.getComments());
+            }
+            writeLine(mapping, row.getKey(), response.getId());
+            summary.created.incrementAndGet();
+        } catch (BeanstreamApiException ex) {
+            writeLine(errors, row.getKey(), String.valueOf(ex.getHttpStatusCode()),
+                    String.valueOf(ex.getCode()), String.valueOf(ex.getCategory()), ex.getMessage());
+            summary.failed.incrementAndGet();
+        } catch (RuntimeException ex) {
+            writeLine(errors, row.getKey(), "-1", "-1", "-1", String.valueOf(ex));
+            summary.failed.incrementAndGet();
+        }
+    }
+
+    private static Writer open(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+    }
+
+    /**
+     * Write one tab separated line and flush it, so it survives a crash.
+     */
+    private static void writeLine(Writer writer, String... fields) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            if (fields[i] != null) {
+                sb.append(fields[i].replace('\t', ' ').replace('\r', ' ').replace('\n', ' '));
+            }
+        }
+        sb.append('\n');
+        synchronized (writer) {
+            writer.write(sb.toString());
+            writer.flush();
+        }
+    }
+
+    private static void readKeys(File file, Set<String> keys) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    keys.add(line.substring(0, tab));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * One profile to create. The key identifies the row in your source data
+     * and is written to the mapping and error files, it must be unique and
+     * cannot contain tabs or new lines. Either a card or a token is required.
+     */
+    public static class Row {
+        private final String key;
+        private Card card;
+        private Token token;
+        private Address billing;
+        private CustomFields custom;
+        private String language;
+        private String comments;
+
+        public Row(String key, Card card, Address billing) {
+            this.key = key;
+            this.card = card;
+            this.billing = billing;
+        }
+
+        public Row(String key, Token token, Address billing) {
+            this.key = key;
+            this.token = token;
+            this.billing = billing;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Card getCard() {
+            return card;
+        }
+
+        public Token getToken() {
+            return token;
+        }
+
+        public Address getBilling() {
+            return billing;
+        }
+
+        public CustomFields getCustom() {
+            return custom;
+        }
+
+        public Row setCustom(CustomFields custom) {
+            this.custom = custom;
+            return this;
+        }
+
+        public String getLanguage() {
+            return language;
+        }
+
+        public Row setLanguage(String language) {
+            this.language = language;
+            return this;
+        }
+
+        public String getComments() {
+            return comments;
+        }
+
+        public Row setComments(String comments) {
+            this.comments = comments;
+            return this;
+        }
+    }
+
+    /**
+     * The outcome of an import run.
+     */
+    public static class Summary {
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+
+        public int getCreated() {
+            return created.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return rows that were done by a previous run, or had no key
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        @Override
+        public String toString() {
+            return "created: " + created + " failed: " + failed + " skipped: " + skipped;
+        }
+    }
+}
@@ -22,13 +22,31 @@
  */
 package com.beanstream.api;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.beanstream.Configuration;
 import com.beanstream.Gateway;
+import com.beanstream.connection.ApiType;
 import com.beanstream.connection.BeanstreamUrls;
 import com.beanstream.connection.HttpMethod;
 import com.beanstream.connection.HttpsConnector;
+import com.beanstream.connection.Operation;
+import com.beanstream.data.ProfileCache;
 import com.beanstream.domain.Address;
 import com.beanstream.domain.Card;
 import com.beanstream.domain.CustomFields;
@@ -36,12 +54,15 @@ import com.beanstream.domain.PaymentProfile;
 import com.beanstream.domain.Token;
 import com.beanstream.exceptions.BeanstreamApiException;
 import com.beanstream.requests.ProfileRequest;
+import com.beanstream.responses.BatchResult;
 import com.beanstream.responses.ProfileCardsResponse;
 import com.beanstream.responses.ProfileResponse;
 import com.beanstream.util.ProfilesUtils;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 /**
  * Payment Profiles allow you to store a customer's card number and other
@@ -62,18 +83,23 @@ public class ProfilesAPI {
 	private HttpsConnector connector;
 	private final Gson gson = new Gson();
 
+	/**
+	 * How many profiles getProfiles fetches at the same time by default.
+	 */
+	public static final int DEFAULT_PARALLELISM = 8;
+
 	public ProfilesAPI(Configuration config) {
 		this.config = config;
 		connector = new HttpsConnector(config.getMerchantId(),
 				config.getProfilesApiPasscode());
-                connector.setCustomHttpClient(config.getCustomHttpClient());
+		connector.configureConnector(config, ApiType.Profiles);
 	}
 
 	public void setConfig(Configuration config) {
 		this.config = config;
 		connector = new HttpsConnector(config.getMerchantId(),
 				config.getProfilesApiPasscode());
-                connector.setCustomHttpClient(config.getCustomHttpClient());
+		connector.configureConnector(config, ApiType.Profiles);
 	}
 
 	/**
@@ -191,7 +217,7 @@ public class ProfilesAPI {
 		String url = BeanstreamUrls.getProfilesUrl(config.getPlatform(),
 				config.getVersion());
 
-		String response = connector.ProcessTransaction(HttpMethod.post, url,
+		String response = connector.ProcessTransaction(Operation.CreateProfile, HttpMethod.post, url,
 				req);
 		return gson.fromJson(response, ProfileResponse.class);
 
@@ -214,12 +240,164 @@ public class ProfilesAPI {
 		String url = BeanstreamUrls.getProfilesUrl(config.getPlatform(),
 				config.getVersion(), profileId);
 
-		String response = connector.ProcessTransaction(HttpMethod.get, url,
+		String response = connector.ProcessTransaction(Operation.GetProfile, HttpMethod.get, url,
 				null);
 		return gson.fromJson(response, PaymentProfile.class);
 
 	}
 
+	/**
+	 * Build the Gson adapters of the profile calls ahead of the first call.
+	 * Gateway.warmUp() calls this.
+	 */
+	public void warmUp() {
+		gson.getAdapter(PaymentProfile.class);
+		gson.getAdapter(ProfileResponse.class);
+		gson.getAdapter(ProfileCardsResponse.class);
+		gson.getAdapter(Card.class);
+		connector.warmUp(ProfileRequest.class, CardWrapper.class, JsonObject.class, JsonElement.class);
+	}
+
+	/**
+	 * Retrieve many profiles at once, DEFAULT_PARALLELISM at a time.
+	 * 
+	 * @param profileIds
+	 *            the IDs of the profiles
+	 * @return the profile for each ID that was found and the exception for
+	 *         each one that was not
+	 * @throws BeanstreamApiException
+	 *             if interrupted while waiting for the profiles
+	 * @see #getProfiles(Collection, int)
+	 */
+	public BatchResult<PaymentProfile> getProfiles(Collection<String> profileIds)
+			throws BeanstreamApiException {
+		return getProfiles(profileIds, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * Retrieve many profiles at once. They are fetched on the calling thread
+	 * and up to maxParallel - 1 tasks on the executor of the Configuration,
+	 * over the shared connection pool and within the rate limits of the
+	 * Profiles API. A profile that could not be fetched does not stop the
+	 * others.
+	 * 
+	 * The calling thread never just waits for the executor: tasks that have
+	 * not started by the time it runs out of IDs are cancelled. So this can
+	 * be called from a task on that same executor, which could otherwise be
+	 * waiting for threads held by its own callers.
+	 * 
+	 * @param profileIds
+	 *            the IDs of the profiles, duplicates are fetched once
+	 * @param maxParallel
+	 *            the most profiles to fetch at the same time
+	 * @return the profile for each ID that was found and the exception for
+	 *         each one that was not, in the order of the IDs
+	 * @throws BeanstreamApiException
+	 *             if interrupted while waiting for the profiles
+	 */
+	public BatchResult<PaymentProfile> getProfiles(Collection<String> profileIds,
+			int maxParallel) throws BeanstreamApiException {
+		if (maxParallel < 1)
+			throw new IllegalArgumentException("At least one profile must be fetched at a time!");
+
+		Set<String> ids = new LinkedHashSet<String>(profileIds);
+		if (ids.contains(null))
+			throw new IllegalArgumentException("Profile IDs cannot be null!");
+		final Map<String, PaymentProfile> found = new ConcurrentHashMap<String, PaymentProfile>();
+		final Map<String, BeanstreamApiException> failed = new ConcurrentHashMap<String, BeanstreamApiException>();
+		final Iterator<String> pending = ids.iterator();
+
+		// each worker takes the next ID until there are none left
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				String profileId;
+				while ((profileId = nextId(pending)) != null) {
+					try {
+						found.put(profileId, getProfileById(profileId));
+					} catch (BeanstreamApiException ex) {
+						failed.put(profileId, ex);
+					} catch (RuntimeException ex) {
+						failed.put(profileId, new BeanstreamApiException(ex, "Error getting profile " + profileId));
+					}
+				}
+			}
+		};
+
+		ExecutorService executor = config.getExecutor();
+		int helpers = Math.min(maxParallel, ids.size()) - 1;
+		List<Helper> started = new ArrayList<Helper>(Math.max(helpers, 0));
+		List<Future<?>> futures = new ArrayList<Future<?>>(Math.max(helpers, 0));
+		try {
+			try {
+				for (int i = 0; i < helpers; i++) {
+					Helper helper = new Helper(worker);
+					futures.add(executor.submit(helper));
+					started.add(helper);
+				}
+			} catch (RejectedExecutionException ex) {
+				// the executor is full, so fetch with fewer helpers
+			}
+			worker.run();
+			for (int i = 0; i < started.size(); i++) {
+				// a helper that hasn't started has nothing left to do, so it never will
+				if (started.get(i).claim())
+					futures.get(i).cancel(false);
+				else
+					futures.get(i).get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BeanstreamApiException(ex, "Interrupted while getting profiles");
+		} catch (ExecutionException ex) {
+			throw new BeanstreamApiException(ex, "Error getting profiles");
+		} finally {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		Map<String, PaymentProfile> results = new LinkedHashMap<String, PaymentProfile>();
+		Map<String, BeanstreamApiException> errors = new LinkedHashMap<String, BeanstreamApiException>();
+		for (String profileId : ids) {
+			if (found.containsKey(profileId))
+				results.put(profileId, found.get(profileId));
+			else if (failed.containsKey(profileId))
+				errors.put(profileId, failed.get(profileId));
+		}
+		return new BatchResult<PaymentProfile>(results, errors);
+	}
+
+	/**
+	 * Runs the worker on the executor unless the calling thread claimed it
+	 * first, which it does for each helper once it runs out of work itself.
+	 */
+	private static final class Helper implements Runnable {
+
+		private final Runnable worker;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		Helper(Runnable worker) {
+			this.worker = worker;
+		}
+
+		@Override
+		public void run() {
+			if (claim())
+				worker.run();
+		}
+
+		boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+	}
+
+	private static String nextId(Iterator<String> pending) {
+		synchronized (pending) {
+			return pending.hasNext() ? pending.next() : null;
+		}
+	}
+
 	/**
 	 * Delete the profile. You must send and valid profileId
 	 * 
@@ -234,7 +412,7 @@ public class ProfilesAPI {
 		String url = BeanstreamUrls.getProfilesUrl(config.getPlatform(),
 				config.getVersion(), profileId);
 
-		String response = connector.ProcessTransaction(HttpMethod.delete, url,
+		String response = sendChange(profileId, Operation.DeleteProfile, HttpMethod.delete, url,
 				null);
 		return gson.fromJson(response, ProfileResponse.class);
 
@@ -264,8 +442,7 @@ public class ProfilesAPI {
 				gson.toJsonTree(profile.getCustom(), CustomFields.class));
 		req.addProperty("language", profile.getLanguage());
 		req.addProperty("comments", profile.getComments());
-		String response = connector
-				.ProcessTransaction(HttpMethod.put, url, req);
+		String response = sendChange(profile.getId(), Operation.UpdateProfile, HttpMethod.put, url, req);
 		return gson.fromJson(response, ProfileResponse.class);
 	}
 
@@ -282,13 +459,24 @@ public class ProfilesAPI {
 	 */
 	public List<Card> getCards(String profileId) throws BeanstreamApiException {
 		ProfilesUtils.validateProfileId(profileId);
+		ProfileCache cache = config.getProfileCache();
+		long version = 0;
+		if (cache != null) {
+			List<Card> cards = cache.getCards(profileId);
+			if (cards != null)
+				return cards;
+			// a change that lands while the cards are downloaded must win
+			version = cache.getVersion(profileId);
+		}
 		String url = BeanstreamUrls.getProfileCardsUrl(config.getPlatform(),
 				config.getVersion(), profileId);
 
-		String response = connector.ProcessTransaction(HttpMethod.get, url,
+		String response = connector.ProcessTransaction(Operation.GetCards, HttpMethod.get, url,
 				null);
 		ProfileCardsResponse pcr = gson.fromJson(response,
 				ProfileCardsResponse.class);
+		if (cache != null)
+			cache.putCards(profileId, pcr.getCards(), version);
 		return pcr.getCards();
 
 	}
@@ -297,9 +485,13 @@ public class ProfilesAPI {
 	 * Get a particular card on a profile, Card IDs are their index in
 	 * getCards(), starting a 1 and going up: 1, 2, 3, 4...
 	 * 
+	 * Only the wanted card is read out of the response. With a profile cache
+	 * in the Configuration the card comes from the cached cards of the
+	 * profile instead, which are fetched if they are not cached yet.
+	 * 
 	 * @param profileId
 	 * @param cardId
-	 * @return the Card you are looking for
+	 * @return the Card you are looking for, or null if the profile has no cards
 	 * @throws BeanstreamApiException
 	 */
 	public Card getCard(String profileId, String cardId)
@@ -307,26 +499,66 @@ public class ProfilesAPI {
 
 		ProfilesUtils.validateProfileId(profileId);
 		Gateway.assertNotEmpty(cardId, "card id is empty");
-		String url = BeanstreamUrls.getProfileCardUrl(config.getPlatform(),
-				config.getVersion(), profileId, cardId);
-
-		String response = connector.ProcessTransaction(HttpMethod.get, url,
-				null);
-		ProfileCardsResponse pcr = gson.fromJson(response,
-				ProfileCardsResponse.class);
-
-		Card card = null;
-		if (!pcr.getCards().isEmpty()) {
-                    int cid = new Integer(cardId) -1;
-                    if (cid < 0 || cid > pcr.getCards().size())
-                        throw new IllegalArgumentException("Card ID was larger than the number of cards on the profile!");
-                    card = pcr.getCards().get(cid);
-                    card.setId(cardId);
+		int index = Integer.parseInt(cardId.trim()) - 1;
+		if (index < 0)
+			throw new IllegalArgumentException("Card IDs start at 1!");
+
+		Card card;
+		if (config.getProfileCache() != null) {
+			List<Card> cards = getCards(profileId);
+			if (cards.isEmpty())
+				return null;
+			if (index >= cards.size())
+				throw cardIdTooLarge();
+			card = cards.get(index);
+		} else {
+			String url = BeanstreamUrls.getProfileCardUrl(config.getPlatform(),
+					config.getVersion(), profileId, cardId);
+
+			String response = connector.ProcessTransaction(Operation.GetCard, HttpMethod.get, url,
+					null);
+			card = readCard(response, index);
 		}
+		if (card != null)
+			card.setId(cardId);
 		return card;
 
 	}
 
+	private static IllegalArgumentException cardIdTooLarge() {
+		return new IllegalArgumentException("Card ID was larger than the number of cards on the profile!");
+	}
+
+	/**
+	 * Read one card out of the card array of a response, skipping over the
+	 * cards before it and not reading the ones after it.
+	 */
+	private Card readCard(String response, int index) throws BeanstreamApiException {
+		JsonReader reader = new JsonReader(new StringReader(response));
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!"card".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+					reader.skipValue();
+					continue;
+				}
+				reader.beginArray();
+				int count = 0;
+				for (; reader.hasNext(); count++) {
+					if (count == index)
+						return gson.fromJson(reader, Card.class);
+					reader.skipValue();
+				}
+				if (count > 0)
+					throw cardIdTooLarge();
+				return null;
+			}
+			return null;
+		} catch (IOException ex) {
+			throw new BeanstreamApiException(ex, "Error reading the cards of the profile");
+		}
+	}
+
 	/**
 	 * Updates the profile. You must first retrieve the profile using
 	 * ProfilesAPI.GetProfile(id)
@@ -354,7 +586,7 @@ public class ProfilesAPI {
                 
 		// send the card json without id
 		JsonElement _card = gson.toJsonTree(cw, CardWrapper.class);
-		String response = connector.ProcessTransaction(HttpMethod.put, url,
+		String response = sendChange(profileId, Operation.UpdateCard, HttpMethod.put, url,
 				_card);
 		return gson.fromJson(response, ProfileResponse.class);
 
@@ -381,7 +613,7 @@ public class ProfilesAPI {
 		ProfilesUtils.validateCard(card);
                 
                 CardWrapper cw = new CardWrapper(card);
-		String response = connector.ProcessTransaction(HttpMethod.post, url, cw);
+		String response = sendChange(profileId, Operation.AddCard, HttpMethod.post, url, cw);
 		return gson.fromJson(response, ProfileResponse.class);
 
 	}
@@ -418,10 +650,27 @@ public class ProfilesAPI {
 		String url = BeanstreamUrls.getProfileCardUrl(config.getPlatform(),
 				config.getVersion(), profileId, cardId);
 
-		String response = connector.ProcessTransaction(HttpMethod.delete, url,
+		String response = sendChange(profileId, Operation.RemoveCard, HttpMethod.delete, url,
 				null);
 		return gson.fromJson(response, ProfileResponse.class);
 
 	}
 
+	/**
+	 * Send a request that changes a profile or its cards, and drop the cards of
+	 * the profile from the cache. That happens even if the request failed,
+	 * since it may still have gone through.
+	 */
+	private String sendChange(String profileId, Operation operation,
+			HttpMethod httpMethod, String url, Object data)
+			throws BeanstreamApiException {
+		try {
+			return connector.ProcessTransaction(operation, httpMethod, url, data);
+		} finally {
+			ProfileCache cache = config.getProfileCache();
+			if (cache != null)
+				cache.invalidate(profileId);
+		}
+	}
+
 }
@@ -23,9 +23,15 @@
 package com.beanstream.api;
 
 import com.beanstream.Configuration;
+import com.beanstream.connection.ApiType;
 import com.beanstream.connection.BeanstreamUrls;
 import com.beanstream.connection.HttpMethod;
 import com.beanstream.connection.HttpsConnector;
+import com.beanstream.connection.Operation;
+import com.beanstream.connection.Priority;
+import com.beanstream.connection.ResponseReader;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.data.RecordHandler;
 import com.beanstream.data.Records;
 import com.beanstream.domain.Transaction;
 import com.beanstream.domain.TransactionRecord;
@@ -36,6 +42,10 @@ import com.beanstream.requests.SearchQuery;
 import com.beanstream.responses.BeanstreamResponse;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
@@ -53,7 +63,9 @@ public class ReportingAPI {
     
     private Configuration config;
     private HttpsConnector connector;
+    private Priority priority;
     private final String DATE_FORMAT_STRING = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
+    private static final int MAX_ROWS_PER_QUERY = 1000;
 
     private GsonBuilder getGsonBuilder() {
         GsonBuilder gsonBuilder = new GsonBuilder();
@@ -62,22 +74,54 @@ public class ReportingAPI {
         return gsonBuilder;
     }
     
+    private final Gson gson = getGsonBuilder().create();
+
     private Gson getGson() {
-        return getGsonBuilder().create();
+        return gson;
     }
     
     public ReportingAPI(Configuration config) {
         this.config = config;
         connector = new HttpsConnector(config.getMerchantId(), config.getReportingApiPasscode());
-        connector.setCustomHttpClient(config.getCustomHttpClient());
+        connector.configureConnector(config, ApiType.Reporting);
+        connector.setGsonBuilder(getGsonBuilder());
     }
 
     public void setConfig(Configuration config) {
         this.config = config;
         connector = new HttpsConnector(config.getMerchantId(), config.getReportingApiPasscode());
-        connector.setCustomHttpClient(config.getCustomHttpClient());
+        connector.configureConnector(config, ApiType.Reporting);
+        connector.setPriority(priority);
+        connector.setGsonBuilder(getGsonBuilder());
+    }
+
+    /**
+     * Get a ReportingAPI whose calls all wait in the given lane for a
+     * concurrency slot, whatever their operation. For example a single
+     * transaction looked up for a customer on the phone can use
+     * withPriority(Priority.Interactive).
+     * 
+     * @param priority the lane, or null to go by operation
+     * @return a new ReportingAPI on the same configuration
+     */
+    public ReportingAPI withPriority(Priority priority) {
+        ReportingAPI api = new ReportingAPI(config);
+        api.priority = priority;
+        api.connector.setPriority(priority);
+        return api;
     }
     
+    /**
+     * Build the Gson adapters of the reporting calls ahead of the first
+     * query. Gateway.warmUp() calls this.
+     */
+    public void warmUp() {
+        getGson().getAdapter(Transaction.class);
+        getGson().getAdapter(Records.class);
+        getGson().getAdapter(TransactionRecord.class);
+        connector.warmUp(SearchQuery.class);
+    }
+
     /**
      * Get a single transaction
      * @param paymentId
@@ -92,9 +136,8 @@ public class ReportingAPI {
         connector.setApiPasscode(config.getPaymentsApiPasscode());
         
         // get the transaction using the REST API
-        String response = connector.ProcessTransaction(HttpMethod.get, url, null);
-        
-        return getGson().fromJson(response, Transaction.class);
+        return connector.ProcessTransaction(Operation.GetTransaction, HttpMethod.get, url, null,
+                readJson(Transaction.class));
     }
     
     
@@ -116,9 +159,52 @@ public class ReportingAPI {
             throw new IllegalArgumentException("End Date cannot be less than Start Date!");
         if (endRow < startRow)
             throw new IllegalArgumentException("End Row cannot be less than Start Row!");
-        if (endRow - startRow > 1000)
+        if (endRow - startRow > MAX_ROWS_PER_QUERY)
             throw new IllegalArgumentException("You cannot query more than 1000 rows at a time!");
 
+        Records records = search(startDate, endDate, startRow, endRow, searchCriteria, readJson(Records.class));
+
+        return records.records;
+    }
+    
+    /**
+     * Query every transaction between the two dates that matches the criteria,
+     * no matter how many there are. The records are fetched from the API one
+     * page (1000 rows) at a time and each record is handed to the handler as
+     * it is read, so only a single page is ever held in memory.
+     * 
+     * @param startDate the start of the date range
+     * @param endDate the end of the date range
+     * @param searchCriteria the search criteria, can be null
+     * @param handler receives each record, in the order returned by the API.
+     * If it returns false no more records or pages are read.
+     * @return the number of records handed to the handler
+     * @throws BeanstreamApiException if any page could not be fetched, or the
+     * handler failed with an IOException
+     */
+    public int query(Date startDate, Date endDate, Criteria[] searchCriteria, RecordHandler handler) throws BeanstreamApiException
+    {
+        if (endDate == null || startDate == null)
+            throw new IllegalArgumentException("Start Date and End Date cannot be null!");
+        if (endDate.compareTo(startDate)<0)
+            throw new IllegalArgumentException("End Date cannot be less than Start Date!");
+        if (handler == null)
+            throw new IllegalArgumentException("Record handler cannot be null!");
+        
+        PageReader page = new PageReader(getGson(), handler);
+        int startRow = 1;
+        while (true) {
+            int endRow = startRow + MAX_ROWS_PER_QUERY - 1;
+            // each record is parsed as the page is received and decompressed
+            int count = search(startDate, endDate, startRow, endRow, searchCriteria, page);
+            if (page.stopped || count < MAX_ROWS_PER_QUERY)
+                return page.total;
+            startRow = endRow + 1;
+        }
+    }
+    
+    private <T> T search(Date startDate, Date endDate, int startRow, int endRow, Criteria[] searchCriteria,
+            ResponseReader<T> reader) throws BeanstreamApiException {
         if (searchCriteria == null)
             searchCriteria = new Criteria[]{};
         
@@ -127,12 +213,81 @@ public class ReportingAPI {
         final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT_STRING);
         SearchQuery query = new SearchQuery(dateFormat.format(startDate), dateFormat.format(endDate), startRow, endRow, searchCriteria);
         
-        connector.setGsonBuilder(getGsonBuilder());
-
-        String response = connector.ProcessTransaction(HttpMethod.post, url, query);
-        System.out.println("Response:\n"+response);
-        Records records = getGson().fromJson(response, Records.class);
-
-        return records.records;
+        return connector.ProcessTransaction(Operation.QueryTransactions, HttpMethod.post, url, query, reader);
+    }
+    
+    private <T> ResponseReader<T> readJson(final Class<T> type) {
+        return new ResponseReader<T>() {
+            @Override
+            public T read(TransportResponse response) throws IOException {
+                Reader body = response.getBodyAsReader();
+                try {
+                    return getGson().fromJson(body, type);
+                } finally {
+                    body.close();
+                }
+            }
+        };
+    }
+    
+    /**
+     * Hands the records of each page to the handler as they are read, and
+     * returns how many the page had.
+     */
+    private static class PageReader implements ResponseReader<Integer> {
+        
+        private final Gson gson;
+        private final RecordHandler handler;
+        private int total;
+        private boolean stopped;
+        
+        PageReader(Gson gson, RecordHandler handler) {
+            this.gson = gson;
+            this.handler = handler;
+        }
+        
+        @Override
+        public Integer read(TransportResponse response) throws BeanstreamApiException {
+            int count = 0;
+            JsonReader reader = null;
+            try {
+                reader = new JsonReader(response.getBodyAsReader());
+                if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("records".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                TransactionRecord record = gson.fromJson(reader, TransactionRecord.class);
+                                count++;
+                                total++;
+                                if (!handler.handle(record)) {
+                                    stopped = true;
+                                    return count;
+                                }
+                            }
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                }
+                return count;
+            } catch (IOException ex) {
+                throw new BeanstreamApiException(ex, "Error reading transaction records");
+            } finally {
+                closeQuietly(reader);
+            }
+        }
+        
+        private static void closeQuietly(JsonReader reader) {
+            if (reader == null)
+                return;
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                // the body is in memory, there is nothing to release
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.api;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.connection.ApiType;
+import com.beanstream.connection.BeanstreamUrls;
+import com.beanstream.connection.HttpMethod;
+import com.beanstream.connection.HttpsConnector;
+import com.beanstream.connection.Operation;
+import com.beanstream.domain.Card;
+import com.beanstream.domain.Token;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.requests.LegatoTokenRequest;
+import com.beanstream.responses.BeanstreamResponse;
+import com.beanstream.responses.LegatoTokenResponse;
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.http.HttpStatus;
+
+/**
+ * Turn cards into single-use Legato tokens from the server. The token can
+ * then be used in a TokenPaymentRequest or to create a profile with
+ * ProfilesAPI.createProfile(Token, Address).
+ * 
+ * Requests share the connection pool of the other APIs. The async and batch
+ * calls run on the executor of the Configuration, and the time a call spends
+ * queued counts against its deadline.
+ */
+public class TokenizationAPI {
+
+    private Configuration config;
+    private HttpsConnector connector;
+    private final Gson gson = new Gson();
+
+    public TokenizationAPI(Configuration config) {
+        this.config = config;
+        connector = new HttpsConnector(config.getMerchantId(), config.getPaymentsApiPasscode());
+        connector.configureConnector(config, ApiType.Tokenization);
+    }
+
+    public void setConfig(Configuration config) {
+        this.config = config;
+        connector = new HttpsConnector(config.getMerchantId(), config.getPaymentsApiPasscode());
+        connector.configureConnector(config, ApiType.Tokenization);
+    }
+
+    /**
+     * Build the Gson adapters of the tokenize calls ahead of the first card.
+     * Gateway.warmUp() calls this.
+     */
+    public void warmUp() {
+        gson.getAdapter(LegatoTokenResponse.class);
+        connector.warmUp(LegatoTokenRequest.class);
+    }
+
+    /**
+     * Get a single-use token for a card.
+     * 
+     * @param card the card, with its number, expiry month and year, and CVD
+     * @return the token, named with the name on the card
+     * @throws BeanstreamApiException if the card was rejected or the request failed
+     */
+    public Token tokenize(Card card) throws BeanstreamApiException {
+        return tokenize(card, System.nanoTime());
+    }
+
+    /**
+     * Get a single-use token for a card on the executor of the Configuration.
+     * 
+     * @param card the card, with its number, expiry month and year, and CVD
+     * @return the token to come. Its get() throws an ExecutionException
+     * caused by a BeanstreamApiException if the card could not be tokenized.
+     */
+    public Future<Token> tokenizeAsync(final Card card) {
+        return submit(config.getExecutor(), card);
+    }
+
+    /**
+     * Tokenize many cards at once. They are sent concurrently, as many at a
+     * time as the executor of the Configuration has threads.
+     * 
+     * @param cards the cards to tokenize
+     * @return a token to come for each card, in the same order as the cards,
+     * so a card that fails does not hold up the others
+     */
+    public List<Future<Token>> tokenizeAll(List<Card> cards) {
+        ExecutorService executor = config.getExecutor();
+        List<Future<Token>> tokens = new ArrayList<Future<Token>>(cards.size());
+        for (Card card : cards) {
+            tokens.add(submit(executor, card));
+        }
+        return tokens;
+    }
+
+    private Future<Token> submit(ExecutorService executor, final Card card) {
+        final long submitted = System.nanoTime();
+        return executor.submit(new Callable<Token>() {
+            @Override
+            public Token call() throws BeanstreamApiException {
+                return tokenize(card, submitted);
+            }
+        });
+    }
+
+    private Token tokenize(Card card, long startNanos) throws BeanstreamApiException {
+        Gateway.assertNotNull(card, "card is null");
+        Gateway.assertNotEmpty(card.getNumber(), "card number is empty");
+
+        LegatoTokenRequest request = new LegatoTokenRequest();
+        request.number = card.getNumber();
+        request.expiryMonth = parseExpiry(card.getExpiryMonth());
+        request.expiryYear = parseExpiry(card.getExpiryYear());
+        request.cvd = card.getCvd();
+
+        String url = BeanstreamUrls.getTokenizationUrl(config.getPlatform());
+        String response = connector.ProcessTransaction(Operation.Tokenize, HttpMethod.post, url,
+                request, startNanos);
+
+        LegatoTokenResponse tokenResponse = gson.fromJson(response, LegatoTokenResponse.class);
+        if (tokenResponse == null || tokenResponse.getToken() == null || tokenResponse.getToken().isEmpty()) {
+            String message = tokenResponse != null && tokenResponse.getMessage() != null
+                    ? tokenResponse.getMessage() : "no token returned";
+            throw BeanstreamApiException.getMappedException(HttpStatus.SC_BAD_REQUEST,
+                    BeanstreamResponse.fromMessage(message));
+        }
+        return new Token(card.getName(), tokenResponse.getToken());
+    }
+
+    private static int parseExpiry(String value) throws BeanstreamApiException {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (RuntimeException ex) {
+            throw BeanstreamApiException.getMappedException(HttpStatus.SC_BAD_REQUEST,
+                    BeanstreamResponse.fromMessage("invalid card expiry: " + value));
+        }
+    }
+}
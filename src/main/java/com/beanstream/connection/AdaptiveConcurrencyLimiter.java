@@ -0,0 +1,150 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A concurrency limit that finds its own level from the latency of the
+ * gateway, in the style of a gradient limiter.
+ * 
+ * Two moving averages of latency are kept: a short one of the last few
+ * requests and a long one of the last several hundred. While the short one
+ * stays near the long one the gateway is keeping up, and the limit grows by
+ * about its square root, leaving a small queue at the gateway. When the short
+ * average climbs above the long one requests are queueing there, and the
+ * limit shrinks in proportion, by at most half at a time. A timeout, 429 or
+ * 503 cuts the limit by a tenth straight away, once per round trip: requests
+ * that were already in flight at the last cut were sent under the old limit,
+ * so their drops don't cut it again. The limit is only raised while
+ * at least half of it is in use, so quiet periods don't inflate it.
+ * 
+ * Requests over the limit wait for up to the maximum wait like with the
+ * fixed ConcurrencyLimiter, and getLimit() gives the current limit.
+ */
+public class AdaptiveConcurrencyLimiter extends ConcurrencyLimiter {
+
+    public static final int DEFAULT_MAX_LIMIT = 200;
+
+    private static final int SHORT_WINDOW = 10;
+    private static final int LONG_WINDOW = 600;
+    private static final double TOLERANCE = 1.5;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double DROP_FACTOR = 0.9;
+    private static final double LONG_RECOVERY = 0.95;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double estimatedLimit;
+    private long lastDrop;
+    private volatile double shortRtt;
+    private volatile double longRtt;
+
+    /**
+     * @param initialLimit the limit to start from
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit) {
+        this(initialLimit, 1, Math.max(initialLimit, DEFAULT_MAX_LIMIT));
+    }
+
+    /**
+     * @param initialLimit the limit to start from
+     * @param minLimit the lowest the limit goes
+     * @param maxLimit the highest the limit goes
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        super(initialLimit);
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("Limits must be at least 1, with min <= initial <= max!");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = initialLimit;
+        this.lastDrop = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    }
+
+    @Override
+    public AdaptiveConcurrencyLimiter setMaxWaitMillis(long maxWaitMillis) {
+        super.setMaxWaitMillis(maxWaitMillis);
+        return this;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return the average latency of the last few requests
+     */
+    public double getShortRttMillis() {
+        return shortRtt / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the average latency of the last several hundred requests
+     */
+    public double getLongRttMillis() {
+        return longRtt / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public void release(long latencyNanos, boolean dropped) {
+        int inFlight = getInFlight();
+        release();
+        update(latencyNanos, inFlight, dropped);
+    }
+
+    private synchronized void update(long latencyNanos, int inFlight, boolean dropped) {
+        if (dropped) {
+            long now = System.nanoTime();
+            if (now - latencyNanos - lastDrop <= 0)
+                return;
+            lastDrop = now;
+            estimatedLimit = Math.max(minLimit, estimatedLimit * DROP_FACTOR);
+        } else {
+            if (longRtt == 0) {
+                shortRtt = latencyNanos;
+                longRtt = latencyNanos;
+            } else {
+                shortRtt += (latencyNanos - shortRtt) * 2 / (SHORT_WINDOW + 1);
+                longRtt += (latencyNanos - longRtt) * 2 / (LONG_WINDOW + 1);
+            }
+            // after a slow spell the long average would otherwise stay high for hundreds of requests
+            if (longRtt > shortRtt * 2)
+                longRtt *= LONG_RECOVERY;
+            if (inFlight < estimatedLimit / 2)
+                return;
+            double gradient = Math.max(MIN_GRADIENT, Math.min(1, TOLERANCE * longRtt / shortRtt));
+            double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        }
+        int limit = (int) estimatedLimit;
+        if (limit != getLimit())
+            setLimit(limit);
+    }
+}
@@ -0,0 +1,181 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Sends requests with Apache HttpClient. This is the default transport, using
+ * the connection pool of the Configuration or a client of your own.
+ */
+public class ApacheTransport implements Transport {
+
+    private static final ResponseHandler<TransportResponse> RESPONSE_HANDLER = new ResponseHandler<TransportResponse>() {
+        @Override
+        public TransportResponse handleResponse(final HttpResponse http)
+                throws ClientProtocolException, IOException {
+            Map<String, String> headers = new HashMap<String, String>();
+            for (Header header : http.getAllHeaders()) {
+                headers.put(header.getName(), header.getValue());
+            }
+            HttpEntity entity = http.getEntity();
+            if (entity != null && entity.getContentType() != null)
+                headers.put("Content-Type", entity.getContentType().getValue());
+            byte[] body = entity != null ? EntityUtils.toByteArray(entity) : null;
+            return new TransportResponse(http.getStatusLine().getStatusCode(), headers, body);
+        }
+    };
+
+    private final ConnectionPool connectionPool;
+    private final HttpClient httpClient;
+
+    /**
+     * Send requests over the connections of a pool.
+     */
+    public ApacheTransport(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+        this.httpClient = null;
+    }
+
+    /**
+     * Send requests with your own HttpClient, with its own connection
+     * parameters such as connection timeouts.
+     */
+    public ApacheTransport(HttpClient httpClient) {
+        this.connectionPool = null;
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public TransportResponse send(TransportRequest request) throws IOException {
+        
+        final HttpRequestBase http;
+        switch (request.getMethod()) {
+            case post:
+                http = new HttpPost(request.getUrl());
+                break;
+            case put:
+                http = new HttpPut(request.getUrl());
+                break;
+            case get:
+                http = new HttpGet(request.getUrl());
+                break;
+            case delete:
+                http = new HttpDelete(request.getUrl());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported method " + request.getMethod());
+        }
+        if (request.hasBody() && http instanceof HttpEntityEnclosingRequestBase)
+            ((HttpEntityEnclosingRequestBase) http).setEntity(new RequestEntity(request));
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            http.addHeader(header.getKey(), header.getValue());
+        }
+        Timeouts timeouts = request.getTimeouts();
+        if (timeouts.isSet())
+            http.setConfig(toRequestConfig(timeouts));
+
+        HttpClient client = httpClient != null ? httpClient : connectionPool.getHttpClient();
+        // aborting closes the connection, whether leasing, connecting or reading
+        request.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                http.abort();
+            }
+        });
+        try {
+            return client.execute(http, RESPONSE_HANDLER);
+        } finally {
+            request.setAbortAction(null);
+        }
+    }
+
+    /**
+     * A request config replaces the client's own, so this is only used when
+     * timeouts are set. Unset ones are left to the system defaults.
+     */
+    private static RequestConfig toRequestConfig(Timeouts timeouts) {
+        return RequestConfig.custom()
+                .setConnectTimeout(timeouts.getConnectMillis() > 0 ? timeouts.getConnectMillis() : -1)
+                .setConnectionRequestTimeout(timeouts.getLeaseMillis() > 0 ? timeouts.getLeaseMillis() : -1)
+                .setSocketTimeout(timeouts.getReadMillis() > 0 ? timeouts.getReadMillis() : -1)
+                .build();
+    }
+
+    /**
+     * Streams the request body straight from its buffer.
+     */
+    private static class RequestEntity extends AbstractHttpEntity {
+
+        private final TransportRequest request;
+
+        RequestEntity(TransportRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return request.getBodyLength();
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(request.getBody());
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            request.writeBody(out);
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -44,6 +44,7 @@ public class BeanstreamUrls {
 	public static final String ProfileUri = BaseProfilesUrl + "/{id}";
 	public static final String CardsUri = ProfileUri + "/cards";
         public static final String ReportsUrl =  BaseUrl + "/{1}/reports";
+	public static final String TokenizationUrl = "https://{0}.beanstream.com/scripts/tokenization/tokens";
 
 	
 
@@ -51,6 +52,14 @@ public class BeanstreamUrls {
 		return MessageFormat.format(BeanstreamUrls.ReportsUrl, platform, version);
 	}
         
+	public static String getBaseUrl(String platform) {
+		return MessageFormat.format(BeanstreamUrls.BaseUrl, platform);
+	}
+
+	public static String getTokenizationUrl(String platform) {
+		return MessageFormat.format(BeanstreamUrls.TokenizationUrl, platform);
+	}
+
 	public static String getProfilesUrl(String platform, String version) {
 		return MessageFormat.format(BeanstreamUrls.BaseProfilesUrl, platform, version);
 	}
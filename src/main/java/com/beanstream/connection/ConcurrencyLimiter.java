@@ -0,0 +1,337 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many requests can be in flight at the same time.
+ * 
+ * The limit is a count of permits, not of threads, so it works the same
+ * whether calls come from a small thread pool or from thousands of
+ * lightweight threads. Callers that find no free permit wait for up to the
+ * maximum wait, then give up; 0 makes them fail fast.
+ * 
+ * Waiting callers queue in the lane of their Priority. A freed slot goes to
+ * the lane that is furthest behind its weighted share, so with every lane
+ * busy Interactive requests get 16 slots for every 4 NearRealTime and 1 Bulk
+ * by default, and no lane is ever starved. Within a lane callers are served
+ * in order. Each lane can have its own maximum wait, so bulk work can be told
+ * to give up early instead of piling up.
+ * 
+ * Interactive requests, payment authorizations by default, can also use the
+ * reserved slots that other requests never take. So a burst of report or
+ * batch calls can fill at most limit - reserved slots, and checkout is never
+ * stuck behind it.
+ * 
+ * The limit is fixed here. Subclasses like AdaptiveConcurrencyLimiter move it
+ * with setLimit, learning from the latency each release reports.
+ */
+public class ConcurrencyLimiter {
+
+    // each grant moves a lane's pass on by STRIDE / weight; the lowest pass goes next
+    private static final long STRIDE = 1 << 20;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Priority, Lane> lanes = new EnumMap<Priority, Lane>(Priority.class);
+    private volatile int limit;
+    private volatile int reserved;
+    private volatile int inFlight;
+    private int waiting;
+    private long pass;
+    private volatile long maxWaitMillis;
+
+    /**
+     * @param limit the most requests that can be in flight at once
+     */
+    public ConcurrencyLimiter(int limit) {
+        if (limit < 1)
+            throw new IllegalArgumentException("Limit must be at least 1!");
+        this.limit = limit;
+        for (Priority priority : Priority.values()) {
+            lanes.put(priority, new Lane(priority.getDefaultWeight()));
+        }
+    }
+
+    /**
+     * @param maxWaitMillis how long a request can wait for a free slot, 0 to fail fast
+     * @return this limiter
+     */
+    public ConcurrencyLimiter setMaxWaitMillis(long maxWaitMillis) {
+        if (maxWaitMillis < 0)
+            throw new IllegalArgumentException("Max wait cannot be negative!");
+        this.maxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Give a lane its own maximum wait in place of the limiter's.
+     * 
+     * @param priority the lane
+     * @param maxWaitMillis how long its requests can wait, 0 to fail fast, or
+     * -1 to use the limiter's maximum wait again
+     * @return this limiter
+     */
+    public ConcurrencyLimiter setMaxWaitMillis(Priority priority, long maxWaitMillis) {
+        if (maxWaitMillis < -1)
+            throw new IllegalArgumentException("Max wait cannot be negative!");
+        lanes.get(priority).maxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    /**
+     * @return how long requests of the lane can wait for a free slot
+     */
+    public long getMaxWaitMillis(Priority priority) {
+        long laneWait = lanes.get(priority).maxWaitMillis;
+        return laneWait >= 0 ? laneWait : maxWaitMillis;
+    }
+
+    /**
+     * Change a lane's share of freed slots while other lanes are waiting too.
+     * 
+     * @param priority the lane
+     * @param weight its share, at least 1
+     * @return this limiter
+     */
+    public ConcurrencyLimiter setWeight(Priority priority, int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("Weight must be at least 1!");
+        lock.lock();
+        try {
+            lanes.get(priority).weight = weight;
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    public int getWeight(Priority priority) {
+        return lanes.get(priority).weight;
+    }
+
+    /**
+     * Hold back slots that only Interactive requests can use. Other requests
+     * always keep at least one slot.
+     * 
+     * @param reserved how many of the limit's slots to hold back
+     * @return this limiter
+     */
+    public ConcurrencyLimiter setReserved(int reserved) {
+        if (reserved < 0)
+            throw new IllegalArgumentException("Reserved cannot be negative!");
+        lock.lock();
+        try {
+            this.reserved = reserved;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    public int getReserved() {
+        return reserved;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Change the limit. Requests over a lowered limit keep their slots, and
+     * new ones wait until enough of them are released.
+     */
+    protected void setLimit(int newLimit) {
+        if (newLimit < 1)
+            throw new IllegalArgumentException("Limit must be at least 1!");
+        lock.lock();
+        try {
+            limit = newLimit;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many requests are in flight right now
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return how many requests of the lane are waiting for a slot
+     */
+    public int getWaiting(Priority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority).queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a slot, waiting for up to the maximum wait.
+     * @return true if a slot was taken and must be given back with release()
+     */
+    public boolean acquire() throws InterruptedException {
+        return tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take a slot as a NearRealTime request, waiting for up to the timeout.
+     * @return true if a slot was taken and must be given back with release()
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return tryAcquire(timeout, unit, Priority.NearRealTime);
+    }
+
+    /**
+     * Take a slot, waiting in the priority's lane for up to the timeout.
+     * @return true if a slot was taken and must be given back with release()
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit, Priority priority) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        Lane lane = lanes.get(priority);
+        lock.lockInterruptibly();
+        try {
+            if (waiting == 0 && hasSlot(priority)) {
+                inFlight++;
+                return true;
+            }
+            if (nanos <= 0)
+                return false;
+            Waiter waiter = new Waiter(lock.newCondition());
+            if (lane.queue.isEmpty())
+                lane.pass = Math.max(lane.pass, pass);
+            lane.queue.add(waiter);
+            waiting++;
+            dispatch();
+            try {
+                while (!waiter.granted && nanos > 0) {
+                    nanos = waiter.turn.awaitNanos(nanos);
+                }
+            } catch (InterruptedException ex) {
+                if (!waiter.granted) {
+                    lane.queue.remove(waiter);
+                    waiting--;
+                    throw ex;
+                }
+                // keep the slot, but let the caller see the interrupt
+                Thread.currentThread().interrupt();
+            }
+            if (!waiter.granted) {
+                lane.queue.remove(waiter);
+                waiting--;
+            }
+            return waiter.granted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give a slot back, reporting how its request went.
+     * 
+     * @param latencyNanos how long the request held the slot
+     * @param dropped true if the request timed out or the gateway turned it
+     * away as overloaded
+     */
+    public void release(long latencyNanos, boolean dropped) {
+        release();
+    }
+
+    private boolean hasSlot(Priority priority) {
+        if (priority == Priority.Interactive)
+            return inFlight < limit;
+        return inFlight < Math.max(1, limit - reserved);
+    }
+
+    /**
+     * Hand free slots to waiters, each time to the lane with the lowest pass
+     * among those that can take a slot.
+     */
+    private void dispatch() {
+        while (waiting > 0) {
+            Lane next = null;
+            for (Map.Entry<Priority, Lane> entry : lanes.entrySet()) {
+                Lane lane = entry.getValue();
+                if (!lane.queue.isEmpty() && hasSlot(entry.getKey()) && (next == null || lane.pass < next.pass))
+                    next = lane;
+            }
+            if (next == null)
+                return;
+            pass = next.pass;
+            next.pass += STRIDE / next.weight;
+            Waiter waiter = next.queue.poll();
+            waiting--;
+            inFlight++;
+            waiter.granted = true;
+            waiter.turn.signal();
+        }
+    }
+
+    private static class Lane {
+
+        private final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+        private volatile int weight;
+        private volatile long maxWaitMillis = -1;
+        private long pass;
+
+        private Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static class Waiter {
+
+        private final Condition turn;
+        private boolean granted;
+
+        private Waiter(Condition turn) {
+            this.turn = turn;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * A pool of keep-alive connections shared by every API of a Configuration.
+ * 
+ * The HttpClient is created on first use and then reused by all requests, so
+ * connections and TLS sessions are kept open between calls instead of being
+ * set up again for every request. Requests that find every connection busy
+ * wait for one to be returned to the pool.
+ * 
+ * None of the pool's own code locks with synchronized, so blocked callers
+ * never hold a monitor while they wait on the network.
+ * 
+ * Host names are resolved through a DnsCache unless another DnsResolver is set.
+ */
+public class ConnectionPool implements Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    private static final ConnectionPool DEFAULT_POOL = new ConnectionPool();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile DnsResolver dnsResolver = new DnsCache();
+    private volatile PoolingHttpClientConnectionManager connectionManager;
+    private volatile CloseableHttpClient httpClient;
+
+    /**
+     * The pool used by connectors that were not given one.
+     */
+    public static ConnectionPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Change the most connections kept open to the gateway. This can be
+     * changed while the pool is in use.
+     */
+    public ConnectionPool setMaxConnections(int maxConnections) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("Max connections must be at least 1!");
+        this.maxConnections = maxConnections;
+        PoolingHttpClientConnectionManager cm = connectionManager;
+        if (cm != null) {
+            // every request goes to the same host, so one route can use the whole pool
+            cm.setMaxTotal(maxConnections);
+            cm.setDefaultMaxPerRoute(maxConnections);
+        }
+        return this;
+    }
+
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * Change how host names are resolved. This applies to a client created
+     * after the change, so set it before first use or close the pool.
+     */
+    public ConnectionPool setDnsResolver(DnsResolver dnsResolver) {
+        if (dnsResolver == null)
+            throw new IllegalArgumentException("dnsResolver must not be null");
+        this.dnsResolver = dnsResolver;
+        return this;
+    }
+
+    /**
+     * @return the shared client, created the first time it is needed
+     */
+    public CloseableHttpClient getHttpClient() {
+        CloseableHttpClient client = httpClient;
+        if (client != null)
+            return client;
+        lock.lock();
+        try {
+            if (httpClient == null) {
+                PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(
+                        RegistryBuilder.<ConnectionSocketFactory>create()
+                                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                                .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                                .build(),
+                        dnsResolver);
+                cm.setMaxTotal(maxConnections);
+                cm.setDefaultMaxPerRoute(maxConnections);
+                connectionManager = cm;
+                // HttpsConnector asks for and decodes compressed responses
+                // itself, and retries only on another endpoint and only
+                // within the deadline, so the client must not retry on its own
+                httpClient = HttpClients.custom()
+                        .setConnectionManager(cm)
+                        .disableContentCompression()
+                        .disableAutomaticRetries()
+                        .build();
+            }
+            return httpClient;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Open connections to the host of a url ahead of the first requests, and
+     * leave them idle in the pool. Every connection is leased before any is
+     * given back, so count separate connections are open at the end, counting
+     * any that were already idle in the pool.
+     * 
+     * @param url any url on the host, its scheme and port are used too
+     * @param count how many connections to have open, at most the size of the pool
+     * @param timeouts the lease and connect timeouts to use, where set
+     * @return how many new connections were opened
+     * @throws IOException if a connection could not be leased or opened
+     */
+    public int preconnect(String url, int count, Timeouts timeouts) throws IOException, InterruptedException {
+        getHttpClient();
+        PoolingHttpClientConnectionManager cm = connectionManager;
+        URI uri = URI.create(url);
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+        HttpRoute route = new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+
+        count = Math.min(count, maxConnections);
+        List<HttpClientConnection> leased = new ArrayList<HttpClientConnection>(count);
+        int opened = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                HttpClientConnection connection;
+                try {
+                    connection = cm.requestConnection(route, null).get(timeouts.getLeaseMillis(), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException ex) {
+                    throw new IOException("Could not lease a connection to " + route, ex.getCause());
+                }
+                leased.add(connection);
+                if (!connection.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    cm.connect(connection, route, timeouts.getConnectMillis(), context);
+                    cm.routeComplete(connection, route, context);
+                    opened++;
+                }
+            }
+        } finally {
+            // connections that failed to open are closed rather than pooled
+            for (HttpClientConnection connection : leased) {
+                cm.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * Close every pooled connection. The pool opens new ones if it is used again.
+     */
+    @Override
+    public void close() throws IOException {
+        CloseableHttpClient client;
+        lock.lock();
+        try {
+            client = httpClient;
+            httpClient = null;
+            connectionManager = null;
+        } finally {
+            lock.unlock();
+        }
+        if (client != null)
+            client.close();
+    }
+}
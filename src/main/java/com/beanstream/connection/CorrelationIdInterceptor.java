@@ -0,0 +1,76 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sends a correlation id with every request, so a call in your own logs or
+ * traces can be matched with the gateway's. The id set for the current thread
+ * is used if there is one, otherwise a random one is made up per request.
+ * Either way it is also added to the request's attributes and span.
+ */
+public class CorrelationIdInterceptor implements RequestInterceptor {
+
+    public static final String DEFAULT_HEADER = "X-Correlation-ID";
+
+    private static final ThreadLocal<String> CURRENT_ID = new ThreadLocal<String>();
+
+    private final String headerName;
+
+    public CorrelationIdInterceptor() {
+        this(DEFAULT_HEADER);
+    }
+
+    /**
+     * @param headerName the header to send the id in
+     */
+    public CorrelationIdInterceptor(String headerName) {
+        this.headerName = headerName;
+    }
+
+    /**
+     * Use this id for requests sent from the current thread until it is cleared.
+     */
+    public static void setCurrentId(String correlationId) {
+        CURRENT_ID.set(correlationId);
+    }
+
+    public static void clearCurrentId() {
+        CURRENT_ID.remove();
+    }
+
+    @Override
+    public void beforeSend(RequestContext context, Map<String, String> headers) {
+        String id = CURRENT_ID.get();
+        if (id == null)
+            id = UUID.randomUUID().toString();
+        headers.put(headerName, id);
+        context.setAttribute(RequestContext.CORRELATION_ID, id);
+    }
+
+    @Override
+    public void afterResponse(RequestContext context, int statusCode) {
+    }
+}
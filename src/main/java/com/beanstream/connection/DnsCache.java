@@ -0,0 +1,136 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+/**
+ * Caches the addresses of the gateway hosts for a time to live, so new pooled
+ * connections don't wait on a DNS lookup.
+ * 
+ * When a lookup fails, the last addresses found are used for up to
+ * staleMillis more, so a DNS outage does not stop connections to a host that
+ * is still up. Failed lookups are remembered for negativeTtlMillis so they are
+ * not retried by every request.
+ * 
+ * The ttl is fixed, not the time to live of the DNS records: the JDK's
+ * resolver does not report record ttls. It also sits on top of the JVM's own
+ * InetAddress cache (the networkaddress.cache.ttl security property, 30
+ * seconds by default, forever under a security manager), so a changed address
+ * can take up to the sum of both to be seen. When the gateway's records have
+ * a short ttl, set ttlMillis and networkaddress.cache.ttl so their sum stays
+ * below it, or call invalidate when failing over.
+ */
+public class DnsCache implements DnsResolver {
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    public static final long DEFAULT_STALE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final DnsResolver resolver;
+    private final long ttlNanos;
+    private final long staleNanos;
+    private final long negativeTtlNanos;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    public DnsCache() {
+        this(SystemDefaultDnsResolver.INSTANCE, DEFAULT_TTL_MILLIS, DEFAULT_STALE_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    /**
+     * @param resolver does the lookups
+     * @param ttlMillis how long found addresses are used before looking them
+     * up again, on top of however long the JVM caches them
+     * @param staleMillis how long after the ttl the addresses are still used when lookups fail
+     * @param negativeTtlMillis how long a failed lookup is remembered
+     */
+    public DnsCache(DnsResolver resolver, long ttlMillis, long staleMillis, long negativeTtlMillis) {
+        if (resolver == null)
+            throw new IllegalArgumentException("resolver must not be null");
+        if (ttlMillis < 0 || staleMillis < 0 || negativeTtlMillis < 0)
+            throw new IllegalArgumentException("times must not be negative");
+        this.resolver = resolver;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.staleNanos = TimeUnit.MILLISECONDS.toNanos(staleMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.nanoTime();
+        Entry entry = entries.get(host);
+        if (entry != null && now - entry.expiresAt < 0) {
+            if (entry.failure != null)
+                throw entry.failure;
+            return entry.addresses.clone();
+        }
+        try {
+            InetAddress[] addresses = resolver.resolve(host);
+            entries.put(host, new Entry(addresses, null, now + ttlNanos, now + ttlNanos + staleNanos));
+            return addresses.clone();
+        } catch (UnknownHostException ex) {
+            if (entry != null && entry.addresses != null && now - entry.staleUntil < 0) {
+                // keep the old addresses, and only look again after the negative ttl
+                long retryAt = now + negativeTtlNanos;
+                if (entry.staleUntil - retryAt < 0)
+                    retryAt = entry.staleUntil;
+                entries.put(host, new Entry(entry.addresses, null, retryAt, entry.staleUntil));
+                return entry.addresses.clone();
+            }
+            entries.put(host, new Entry(null, ex, now + negativeTtlNanos, now));
+            throw ex;
+        }
+    }
+
+    /**
+     * Forget the addresses of a host, so the next connection looks them up.
+     */
+    public void invalidate(String host) {
+        entries.remove(host);
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    private static class Entry {
+
+        private final InetAddress[] addresses;
+        private final UnknownHostException failure;
+        private final long expiresAt;
+        private final long staleUntil;
+
+        private Entry(InetAddress[] addresses, UnknownHostException failure, long expiresAt, long staleUntil) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The gateway hosts or regions requests can be sent to, and how healthy each
+ * one has been.
+ * 
+ * Each request picks an endpoint at random, weighted by its weight times its
+ * health. An endpoint's health halves with every failure and recovers with
+ * successes. After a connection failure an endpoint sits out a cooldown that
+ * doubles with each failure in a row, up to maxCooldownMillis. A weight of 0
+ * makes an endpoint a standby, only used while all the others are cooling
+ * down. When every endpoint is cooling down, the one that is done first is
+ * tried.
+ * 
+ * The connector swaps the scheme and host of each API url for the chosen
+ * endpoint's, so endpoints are given as base urls like
+ * "https://www.beanstream.com".
+ */
+public class Endpoints {
+
+    public static final long DEFAULT_COOLDOWN_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    public static final long DEFAULT_MAX_COOLDOWN_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private static final double RECOVERY = 0.2;
+    private static final double MIN_HEALTH = 0.01;
+
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    private final Random random = new Random();
+    private volatile long cooldownNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_COOLDOWN_MILLIS);
+    private volatile long maxCooldownNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_COOLDOWN_MILLIS);
+
+    /**
+     * @param urls the base urls, each with a weight of 1
+     */
+    public Endpoints(String... urls) {
+        for (String url : urls) {
+            add(url, 1);
+        }
+    }
+
+    /**
+     * Add an endpoint.
+     * 
+     * @param url the scheme and host, like "https://www.beanstream.com"
+     * @param weight its share of the requests, or 0 for a standby
+     * @return this
+     */
+    public synchronized Endpoints add(String url, int weight) {
+        if (url == null || !url.contains("://"))
+            throw new IllegalArgumentException("Endpoint url must include a scheme: " + url);
+        if (weight < 0)
+            throw new IllegalArgumentException("weight must not be negative");
+        endpoints.add(new Endpoint(origin(url), weight));
+        return this;
+    }
+
+    /**
+     * Set how long an endpoint sits out after its first failure in a row, and
+     * the most it sits out after many.
+     */
+    public Endpoints setCooldown(long cooldownMillis, long maxCooldownMillis) {
+        if (cooldownMillis < 0 || maxCooldownMillis < cooldownMillis)
+            throw new IllegalArgumentException("cooldowns must not be negative, and the max at least the cooldown");
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+        this.maxCooldownNanos = TimeUnit.MILLISECONDS.toNanos(maxCooldownMillis);
+        return this;
+    }
+
+    public synchronized List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(new ArrayList<Endpoint>(endpoints));
+    }
+
+    public synchronized int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * Pick the endpoint for a request.
+     * 
+     * @param tried endpoints this request already failed on, which are only
+     * picked again if there is nothing else
+     * @return the endpoint, or null if there are none
+     */
+    public synchronized Endpoint select(Collection<Endpoint> tried) {
+        long now = System.nanoTime();
+        double total = 0;
+        List<Endpoint> available = new ArrayList<Endpoint>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (!tried.contains(endpoint) && endpoint.isAvailable(now) && endpoint.weight > 0) {
+                available.add(endpoint);
+                total += endpoint.weight * endpoint.health;
+            }
+        }
+        if (!available.isEmpty()) {
+            double pick = random.nextDouble() * total;
+            for (Endpoint endpoint : available) {
+                pick -= endpoint.weight * endpoint.health;
+                if (pick < 0)
+                    return endpoint;
+            }
+            return available.get(available.size() - 1);
+        }
+        // a standby, or else whichever endpoint's cooldown ends first
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints) {
+            if (tried.contains(endpoint))
+                continue;
+            if (endpoint.isAvailable(now))
+                return endpoint;
+            if (best == null || endpoint.availableAt - best.availableAt < 0)
+                best = endpoint;
+        }
+        if (best != null)
+            return best;
+        for (Endpoint endpoint : endpoints) {
+            if (best == null || endpoint.availableAt - best.availableAt < 0)
+                best = endpoint;
+        }
+        return best;
+    }
+
+    /**
+     * Record that an endpoint answered.
+     */
+    public synchronized void succeeded(Endpoint endpoint) {
+        endpoint.failures = 0;
+        endpoint.health += (1 - endpoint.health) * RECOVERY;
+    }
+
+    /**
+     * Record that an endpoint could not be reached or answered with a
+     * gateway error, and start its cooldown.
+     */
+    public synchronized void failed(Endpoint endpoint) {
+        endpoint.failures++;
+        endpoint.health = Math.max(MIN_HEALTH, endpoint.health / 2);
+        long cooldown = cooldownNanos << Math.min(endpoint.failures - 1, 30);
+        if (cooldown < 0 || cooldown > maxCooldownNanos)
+            cooldown = maxCooldownNanos;
+        endpoint.availableAt = System.nanoTime() + cooldown;
+    }
+
+    /**
+     * @return url with its scheme and host replaced by the endpoint's
+     */
+    public static String rewrite(String url, Endpoint endpoint) {
+        String origin = origin(url);
+        if (origin.equals(endpoint.url))
+            return url;
+        return endpoint.url + url.substring(origin.length());
+    }
+
+    private static String origin(String url) {
+        int start = url.indexOf("://");
+        if (start < 0)
+            return url;
+        int end = url.indexOf('/', start + 3);
+        return end < 0 ? url : url.substring(0, end);
+    }
+
+    /**
+     * One base url and its health.
+     */
+    public static class Endpoint {
+
+        private final String url;
+        private final int weight;
+        private volatile double health = 1;
+        private int failures;
+        private long availableAt = System.nanoTime();
+
+        private Endpoint(String url, int weight) {
+            this.url = url;
+            this.weight = weight;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return between 0 and 1, lower the more it has failed lately
+         */
+        public double getHealth() {
+            return health;
+        }
+
+        private boolean isAvailable(long now) {
+            return now - availableAt >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+}
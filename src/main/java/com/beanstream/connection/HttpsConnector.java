@@ -23,29 +23,44 @@
 
 package com.beanstream.connection;
 
+import com.beanstream.Configuration;
 import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.exceptions.TooManyRequestsException;
+import com.beanstream.requests.PaymentRequest;
+import com.beanstream.requests.ReturnRequest;
 import com.beanstream.responses.BeanstreamResponse;
+import com.google.common.base.Charsets;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.sun.org.apache.xerces.internal.impl.dv.util.Base64;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.methods.*;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import com.google.gson.JsonIOException;
+import org.apache.http.HttpStatus;
 
 import javax.net.ssl.HttpsURLConnection;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.config.ConnectionConfig;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.commons.codec.binary.Base64;
 
 /**
  * Performs the connection to the API.
@@ -57,10 +72,56 @@ import org.apache.http.impl.client.DefaultHttpClient;
  */
 public class HttpsConnector {
     
+    // larger buffers are let go after use instead of being held by the thread
+    private static final int MAX_RETAINED_BODY_BUFFER = 256 * 1024;
+
+    // aborts the requests whose deadline passes while they are being sent
+    private static final ScheduledThreadPoolExecutor DEADLINE_TIMER = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "beanstream-deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        DEADLINE_TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final ThreadLocal<BodyBuffer> BODY_BUFFER = new ThreadLocal<BodyBuffer>() {
+        @Override
+        protected BodyBuffer initialValue() {
+            return new BodyBuffer();
+        }
+    };
+
+    private static final ResponseReader<String> BODY_AS_STRING = new ResponseReader<String>() {
+        @Override
+        public String read(TransportResponse response) throws IOException {
+            return response.getBodyAsString();
+        }
+    };
+
     private final int merchantId;
     private String apiPasscode;
     private GsonBuilder gsonBuilder;
+    private volatile Gson gson;
     private HttpClient customHttpClient;
+    private RateLimiter rateLimiter;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private ConnectionPool connectionPool;
+    private Transport transport;
+    private boolean acceptCompressed;
+    private boolean stacklessDeclines;
+    private Tracer tracer = Tracer.NOOP;
+    private List<RequestInterceptor> interceptors = Collections.emptyList();
+    private Timeouts timeouts = Timeouts.NONE;
+    private Map<Operation, Timeouts> operationTimeouts = Collections.emptyMap();
+    private Endpoints endpoints;
+    private Map<Operation, Priority> priorities = Collections.emptyMap();
+    private Priority priority;
 
     public HttpsConnector(int merchantId, String apiPasscode) {
         this.merchantId = merchantId;
@@ -71,8 +132,166 @@ public class HttpsConnector {
         this.customHttpClient = customHttpClient;
     }
 
+    /**
+     * Every request waits for a permit from the rate limiter before it is sent.
+     * @param rateLimiter the limiter, or null for no limit
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Every request takes a slot from the concurrency limiter for as long as
+     * it is in flight.
+     * @param concurrencyLimiter the limiter, or null for no limit
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * The pool whose connections are reused between requests. Without one the
+     * connector uses the default pool.
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Ask the gateway to gzip or deflate its responses. Worth it for large
+     * report and profile responses, less so for small payment ones.
+     */
+    public void setAcceptCompressed(boolean acceptCompressed) {
+        this.acceptCompressed = acceptCompressed;
+    }
+
+    /**
+     * Throw declines (402) and rejected requests (400) without a stack trace.
+     */
+    public void setStacklessDeclines(boolean stacklessDeclines) {
+        this.stacklessDeclines = stacklessDeclines;
+    }
+
+    /**
+     * The tracer that gets a span for every request and each of its phases.
+     * @param tracer the tracer, or null to trace nothing
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer != null ? tracer : Tracer.NOOP;
+    }
+
+    /**
+     * Interceptors are called in order before every request is sent and
+     * after its response is read.
+     */
+    public void setInterceptors(List<RequestInterceptor> interceptors) {
+        this.interceptors = interceptors != null ? interceptors : Collections.<RequestInterceptor>emptyList();
+    }
+
+    /**
+     * The timeouts of every request, unless its operation has its own.
+     * @param timeouts the timeouts, or null for no limits
+     */
+    public void setTimeouts(Timeouts timeouts) {
+        this.timeouts = timeouts != null ? timeouts : Timeouts.NONE;
+    }
+
+    /**
+     * Timeouts for particular operations, used in place of the connector's.
+     */
+    public void setOperationTimeouts(Map<Operation, Timeouts> operationTimeouts) {
+        this.operationTimeouts = operationTimeouts != null ? operationTimeouts : Collections.<Operation, Timeouts>emptyMap();
+    }
+
+    /**
+     * The hosts to spread requests over and fail over between when one can't
+     * be connected to. Without them every request goes to its url's own host.
+     */
+    public void setEndpoints(Endpoints endpoints) {
+        this.endpoints = endpoints != null && endpoints.size() > 0 ? endpoints : null;
+    }
+
+    /**
+     * The lanes operations wait in for a concurrency slot, in place of each
+     * operation's own priority.
+     */
+    public void setPriorities(Map<Operation, Priority> priorities) {
+        this.priorities = priorities != null ? priorities : Collections.<Operation, Priority>emptyMap();
+    }
+
+    /**
+     * Wire up everything the configuration sets for an API: its HttpClient or
+     * transport, limits, connection pool, compression, tracing, interceptors,
+     * timeouts, endpoints and priorities. Each API calls this whenever it is
+     * given a configuration, so they can't drift apart.
+     * 
+     * @param config the configuration to take the settings from
+     * @param api the API this connector sends for
+     */
+    public void configureConnector(Configuration config, ApiType api) {
+        setCustomHttpClient(config.getCustomHttpClient());
+        setRateLimiter(config.getRateLimiter(api));
+        setConcurrencyLimiter(config.getConcurrencyLimiter(api));
+        setConnectionPool(config.getConnectionPool(api));
+        setTransport(config.getTransport());
+        setAcceptCompressed(config.isCompression(api));
+        setStacklessDeclines(config.isStacklessDeclines());
+        setTracer(config.getTracer());
+        setInterceptors(config.getInterceptors());
+        setTimeouts(config.getTimeouts(api));
+        setOperationTimeouts(config.getOperationTimeouts());
+        setEndpoints(config.getEndpoints());
+        setPriorities(config.getPriorities());
+    }
+
+    /**
+     * Make every request of this connector wait in one lane, whatever its
+     * operation.
+     * @param priority the lane, or null to go by operation
+     */
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    private Priority getPriority(Operation operation) {
+        if (priority != null)
+            return priority;
+        Priority configured = priorities.get(operation);
+        return configured != null ? configured : operation.getPriority();
+    }
+
+    /**
+     * The transport that sends every request. Without one the connector uses
+     * Apache HttpClient over its connection pool.
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    private Transport getTransport() {
+        if (transport != null)
+            return transport;
+        if (customHttpClient != null)
+            return new ApacheTransport(customHttpClient);
+        return new ApacheTransport(connectionPool != null ? connectionPool : ConnectionPool.getDefault());
+    }
+
     public void setGsonBuilder(GsonBuilder gsonBuilder) {
         this.gsonBuilder = gsonBuilder;
+        this.gson = null;
+    }
+
+    /**
+     * The Gson is created from the GsonBuilder on first use and then reused,
+     * so changes to the builder after that need another setGsonBuilder call.
+     */
+    private Gson getGson() {
+        Gson result = gson;
+        if (result == null) {
+            result = getGsonBuilder().create();
+            gson = result;
+        }
+        return result;
     }
 
     public GsonBuilder getGsonBuilder() {
@@ -92,11 +311,218 @@ public class HttpsConnector {
     // Contructors etc.)
     public String ProcessTransaction(HttpMethod httpMethod, String url,
 			Object data) throws BeanstreamApiException {
+        return ProcessTransaction(Operation.Other, httpMethod, url, data);
+    }
+
+    /**
+     * Send a request and return the body of the gateway's response.
+     * 
+     * @param operation the API call being made, used for tracing
+     * @throws BeanstreamApiException for an error response, or if the request
+     * could not be sent
+     */
+    public String ProcessTransaction(Operation operation, HttpMethod httpMethod, String url,
+            Object data) throws BeanstreamApiException {
+        return ProcessTransaction(operation, httpMethod, url, data, System.nanoTime());
+    }
+
+    /**
+     * Send a request that was made earlier, for example one that was queued
+     * for an executor, so the time it already waited counts against its
+     * deadline.
+     * 
+     * @param startNanos the System.nanoTime() when the call was made
+     */
+    public String ProcessTransaction(Operation operation, HttpMethod httpMethod, String url,
+            Object data, long startNanos) throws BeanstreamApiException {
+        return ProcessTransaction(operation, httpMethod, url, data, startNanos, BODY_AS_STRING);
+    }
+
+    /**
+     * Send a request and read the body of the gateway's response with the
+     * reader, which can parse it as it is received and decompressed.
+     * 
+     * @param operation the API call being made, used for tracing
+     * @throws BeanstreamApiException for an error response, or if the request
+     * could not be sent or its response read
+     */
+    public <T> T ProcessTransaction(Operation operation, HttpMethod httpMethod, String url,
+            Object data, ResponseReader<T> reader) throws BeanstreamApiException {
+        return ProcessTransaction(operation, httpMethod, url, data, System.nanoTime(), reader);
+    }
+
+    /**
+     * @param startNanos the System.nanoTime() when the call was made
+     * @see #ProcessTransaction(Operation, HttpMethod, String, Object, ResponseReader)
+     */
+    public <T> T ProcessTransaction(Operation operation, HttpMethod httpMethod, String url,
+            Object data, long startNanos, ResponseReader<T> reader) throws BeanstreamApiException {
+    
+        RequestContext context = startRequest(operation, httpMethod, url, data, startNanos);
+        try {
+            TransportResponse response = send(context, data);
+            int httpStatus = response.getStatusCode();
+            if (httpStatus >= 200 && httpStatus < 300) {
+                Span span = tracer.startSpan("parse", context.getSpan());
+                try {
+                    return reader.read(response);
+                } finally {
+                    span.end();
+                }
+            }
+            BeanstreamResponse bsRes = parse(context, response);
+            Span span = tracer.startSpan("map_error", context.getSpan());
+            BeanstreamApiException error = mappedException(httpStatus, bsRes);
+            span.end();
+            throw error;
+        } catch (BeanstreamApiException ex) {
+            context.getSpan().setError(ex);
+            throw ex;
+        } catch (IOException ex) {
+            BeanstreamApiException error = handleException(ex, null);
+            context.getSpan().setError(error);
+            throw error;
+        } catch (JsonIOException ex) {
+            // Gson wraps the failures of the reader it was given
+            BeanstreamApiException error = new BeanstreamApiException(ex, "Error reading the response");
+            context.getSpan().setError(error);
+            throw error;
+        } finally {
+            context.getSpan().end();
+        }
+    }
+
+    public BeanstreamResponse sendRequest(HttpMethod httpMethod, String url,
+            Object data) throws BeanstreamApiException {
+        return sendRequest(Operation.Other, httpMethod, url, data);
+    }
+
+    /**
+     * Send a request and return the gateway's response whatever its status
+     * code, so declines and errors can be handled without an exception.
+     * 
+     * @param operation the API call being made, used for tracing
+     * @throws BeanstreamApiException only if the request could not be sent,
+     * was held back by a client side limit, or the response could not be read
+     */
+    public BeanstreamResponse sendRequest(Operation operation, HttpMethod httpMethod, String url,
+            Object data) throws BeanstreamApiException {
     
+        RequestContext context = startRequest(operation, httpMethod, url, data, System.nanoTime());
+        try {
+            return parse(context, send(context, data));
+        } catch (BeanstreamApiException ex) {
+            context.getSpan().setError(ex);
+            throw ex;
+        } catch (IOException ex) {
+            BeanstreamApiException error = handleException(ex, null);
+            context.getSpan().setError(error);
+            throw error;
+        } finally {
+            context.getSpan().end();
+        }
+    }
+
+    private RequestContext startRequest(Operation operation, HttpMethod httpMethod, String url, Object data,
+            long startNanos) {
+        Timeouts requestTimeouts = operationTimeouts.get(operation);
+        RequestContext context = new RequestContext(operation, httpMethod, url,
+                tracer.startSpan(operation.name(), null),
+                requestTimeouts != null ? requestTimeouts : timeouts, startNanos);
+        // only worth filling in if something is going to look at it
+        if (tracer != Tracer.NOOP || !interceptors.isEmpty()) {
+            context.setAttribute(RequestContext.OPERATION, operation.name());
+            String orderNumber = getOrderNumber(data);
+            if (orderNumber != null)
+                context.setAttribute(RequestContext.ORDER_NUMBER, orderNumber);
+        }
+        return context;
+    }
+
+    private static String getOrderNumber(Object data) {
+        if (data instanceof PaymentRequest)
+            return ((PaymentRequest) data).getOrderNumber();
+        if (data instanceof ReturnRequest)
+            return ((ReturnRequest) data).getOrderNumber();
+        return null;
+    }
+
+    /**
+     * Build the Gson type adapters for the given request types now rather
+     * than on the first request that needs them.
+     */
+    public void warmUp(Class<?>... requestTypes) {
+        Gson result = getGson();
+        for (Class<?> type : requestTypes) {
+            result.getAdapter(type);
+        }
+    }
+
+    /**
+     * Open count connections to the host of a url, or of the endpoint picked
+     * for it, and leave them idle in the pool. Only requests sent over the
+     * connection pool can be warmed this way.
+     * 
+     * @return false if requests go through a custom transport or HttpClient,
+     * whose connections can't be opened ahead
+     * @throws BeanstreamApiException if a connection could not be opened
+     */
+    public boolean preconnect(String url, int count) throws BeanstreamApiException {
+        if (transport != null || customHttpClient != null)
+            return false;
+        Endpoints endpoints = this.endpoints;
+        if (endpoints != null)
+            url = Endpoints.rewrite(url, endpoints.select(Collections.<Endpoints.Endpoint>emptyList()));
+        ConnectionPool pool = connectionPool != null ? connectionPool : ConnectionPool.getDefault();
+        try {
+            pool.preconnect(url, count, timeouts);
+            return true;
+        } catch (IOException ex) {
+            throw handleException(ex, null);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BeanstreamApiException(ex, "Interrupted while opening connections");
+        }
+    }
+
+    /**
+     * Send a GET without credentials, to open a connection to the host (or
+     * reuse a pooled one) ahead of the first real request. The response is
+     * read and thrown away, whatever its status. Limits, tracing and
+     * interceptors are skipped.
+     * 
+     * @return the status code of the response
+     * @throws BeanstreamApiException if the host could not be reached
+     */
+    public int ping(String url) throws BeanstreamApiException {
+        Endpoints endpoints = this.endpoints;
+        if (endpoints != null)
+            url = Endpoints.rewrite(url, endpoints.select(Collections.<Endpoints.Endpoint>emptyList()));
+        try {
+            TransportRequest request = new TransportRequest(HttpMethod.get, url,
+                    Collections.<String, String>emptyMap(), null, 0, timeouts);
+            return getTransport().send(request).getStatusCode();
+        } catch (IOException ex) {
+            throw handleException(ex, null);
+        }
+    }
+
+    private TransportResponse send(RequestContext context, Object data) throws BeanstreamApiException {
+    
+        BodyBuffer body = null;
         try {
             
-            Gson gson = getGsonBuilder().create();
-            String json = data != null ? gson.toJson(data) : null;
+            if (data != null) {
+                Span span = tracer.startSpan("serialize", context.getSpan());
+                try {
+                    body = takeBodyBuffer();
+                    getGson().toJson(data, body.writer);
+                    body.writer.flush();
+                    body.written = true;
+                } finally {
+                    span.end();
+                }
+            }
             
             // this is a temporary println while SDK is in development
             /*if (data != null) {
@@ -104,95 +530,240 @@ public class HttpsConnector {
                 System.out.println("Request data.....................\n"+gsonpp.toJson(data));
             }*/
             
-            ResponseHandler<BeanstreamResponse> responseHandler = new ResponseHandler<BeanstreamResponse>() {
-                @Override
-                public BeanstreamResponse handleResponse(final HttpResponse http)
-                        throws ClientProtocolException, IOException {
-                    return BeanstreamResponse.fromHttpResponse(http);
-                }
-            };
-            
-            HttpUriRequest http = null;
-                
-            switch(httpMethod) {
-                case post: {
-                    StringEntity entity = new StringEntity(json);
-                    http = new HttpPost(url);
-                    ((HttpPost) http).setEntity(entity);
-                    break;
-                }
-                case put: {
-                    StringEntity entity = new StringEntity(json);
-                    http = new HttpPut(url);
-                    ((HttpPut) http).setEntity(entity);
-                    break;
-                }
-                case get: {
-                    http = new HttpGet(url);
-                    break;
-                }
-                case delete: {
-                    http = new HttpDelete(url);
-                    break;
-                }
-            }
-
-            BeanstreamResponse bsRes = process(http, responseHandler);
-            int httpStatus = bsRes.getHttpStatusCode();
-            if (httpStatus >= 200 && httpStatus < 300) {
-                return bsRes.getResponseBody();
-            } else {
-                throw mappedException(httpStatus, bsRes);
+            TransportResponse response = process(context, body);
+            int httpStatus = response.getStatusCode();
+            if (rateLimiter != null) {
+                // rejections of requests sent before the rate was last cut don't cut it again
+                if (httpStatus == TooManyRequestsException.SC_TOO_MANY_REQUESTS
+                        || httpStatus == HttpStatus.SC_SERVICE_UNAVAILABLE)
+                    rateLimiter.onThrottled(context.getRateEpoch());
+                else
+                    rateLimiter.onSuccess();
             }
+            return response;
 
         } catch (UnsupportedEncodingException ex) {
             throw handleException(ex, null);
             
         } catch (IOException ex) {
             throw handleException(ex, null);
-        } 
+        } finally {
+            releaseBodyBuffer(body);
+        }
+
+    }
+
+    private BeanstreamResponse parse(RequestContext context, TransportResponse response) throws IOException {
+        Span span = tracer.startSpan("parse", context.getSpan());
+        try {
+            return BeanstreamResponse.fromPayload(response.getStatusCode(),
+                    response.getContentType(), response.getBodyAsString());
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * @return the epoch of the rate limiter once the permit was granted, as
+     * the request is sent at the rate of that epoch however long it waited
+     */
+    private long acquirePermit(RequestContext context) throws BeanstreamApiException {
+        if (rateLimiter == null)
+            return 0;
+        long maxWait = rateLimiter.getMaxWaitMillis();
+        long wait = Math.min(maxWait, context.getRemainingMillis());
+        try {
+            if (!rateLimiter.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                if (wait < maxWait)
+                    throw deadlineExceeded(context);
+                throw new TooManyRequestsException("Rate limit of " + rateLimiter.getRate() + " requests per second reached");
+            }
+            return rateLimiter.getEpoch();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BeanstreamApiException(ex, "Interrupted while waiting for the rate limit");
+        }
+    }
+
+    private void acquireSlot(RequestContext context, ConcurrencyLimiter limiter, Priority priority)
+            throws BeanstreamApiException {
+        long maxWait = limiter.getMaxWaitMillis(priority);
+        long wait = Math.min(maxWait, context.getRemainingMillis());
+        try {
+            if (!limiter.tryAcquire(wait, TimeUnit.MILLISECONDS, priority)) {
+                if (wait < maxWait)
+                    throw deadlineExceeded(context);
+                throw new TooManyRequestsException("Limit of " + limiter.getLimit() + " concurrent requests reached");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BeanstreamApiException(ex, "Interrupted while waiting for a free request slot");
+        }
+    }
+
+    private static BeanstreamApiException deadlineExceeded(RequestContext context) {
+        return deadlineExceeded(context, null);
+    }
 
+    private static BeanstreamApiException deadlineExceeded(RequestContext context, IOException cause) {
+        long deadline = context.getTimeouts().getDeadlineMillis();
+        TimeoutException timeout = new TimeoutException("Deadline of " + deadline + " ms exceeded");
+        if (cause != null)
+            timeout.initCause(cause);
+        return new BeanstreamApiException(timeout,
+                context.getOperation() + " did not complete within its deadline of " + deadline + " ms");
+    }
+
+    private static ScheduledFuture<?> scheduleAbort(final TransportRequest request, long delayMillis) {
+        return DEADLINE_TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                request.abort();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
     }
 
-    private BeanstreamResponse process(HttpUriRequest http,
-                ResponseHandler<BeanstreamResponse> responseHandler) throws IOException {
+    private TransportResponse process(RequestContext context, BodyBuffer body)
+                throws IOException, BeanstreamApiException {
         
-        HttpClient httpclient;
-        if (customHttpClient != null)
-            httpclient = customHttpClient;
-        else
-            httpclient = HttpClients.createDefault();
-        // Remove newlines from base64 since they can bork the header.
-        // Some base64 encoders will append a newline to the end
-        String auth = Base64.encode((merchantId + ":" + apiPasscode).trim().getBytes());
+        // encode without line breaks since they can bork the header
+        String auth = new String(Base64.encodeBase64(
+                (merchantId + ":" + apiPasscode).trim().getBytes("UTF-8")), "US-ASCII");
         
-        http.addHeader("Content-Type", "application/json");
-        http.addHeader("Authorization", "Passcode " + auth);
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "application/json; charset=utf-8");
+        headers.put("Authorization", "Passcode " + auth);
+        if (acceptCompressed)
+            headers.put("Accept-Encoding", "gzip, deflate");
+        for (RequestInterceptor interceptor : interceptors) {
+            interceptor.beforeSend(context, headers);
+        }
 
-        BeanstreamResponse responseBody = httpclient.execute(http, responseHandler);
-        
-        return responseBody;
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        Span span = tracer.startSpan("wait", context.getSpan());
+        try {
+            context.setRateEpoch(acquirePermit(context));
+            if (limiter != null) {
+                Priority priority = getPriority(context.getOperation());
+                acquireSlot(context, limiter, priority);
+                if (tracer != Tracer.NOOP) {
+                    span.setAttribute("priority", priority.name());
+                    span.setAttribute("concurrency_limit", String.valueOf(limiter.getLimit()));
+                }
+            }
+        } finally {
+            span.end();
+        }
+        long sentAt = System.nanoTime();
+        long latency = -1;
+        boolean dropped = false;
+        try {
+            TransportResponse response;
+            try {
+                response = transmit(context, headers, body);
+            } catch (InterruptedIOException ex) {
+                latency = System.nanoTime() - sentAt;
+                dropped = true;
+                throw ex;
+            } catch (BeanstreamApiException ex) {
+                // only thrown when the deadline passed
+                latency = System.nanoTime() - sentAt;
+                dropped = true;
+                throw ex;
+            }
+            latency = System.nanoTime() - sentAt;
+            dropped = response.getStatusCode() == TooManyRequestsException.SC_TOO_MANY_REQUESTS
+                    || response.getStatusCode() == HttpStatus.SC_SERVICE_UNAVAILABLE;
+            for (RequestInterceptor interceptor : interceptors) {
+                interceptor.afterResponse(context, response.getStatusCode());
+            }
+            return response;
+        } finally {
+            // other failures say nothing about how loaded the gateway is
+            if (limiter != null && latency >= 0)
+                limiter.release(latency, dropped);
+            else if (limiter != null)
+                limiter.release();
+        }
     }
     
-    private HttpRequest getHttp(HttpMethod httpMethod, StringEntity entity) {
-        if (HttpMethod.post.equals(httpMethod)) {
-            HttpPost http = new HttpPost();
-            http.setEntity(entity);
-            return http;
-		} else if (HttpMethod.put.equals(httpMethod)) {
-            HttpPut http = new HttpPut();
-            http.setEntity(entity);
-            return http;
-		} else if (HttpMethod.get.equals(httpMethod)) {
-            HttpGet http = new HttpGet();
-            return http;
-		} else if (HttpMethod.delete.equals(httpMethod)) {
-            HttpDelete http = new HttpDelete();
-            return http;
+    /**
+     * Send to the url's host, or with endpoints to the one they pick. A
+     * request that could not connect is tried on the next endpoint; once
+     * connected it is never sent again, so a payment can't be made twice.
+     * 
+     * The network timeouts only bound each wait, so a response that trickles
+     * in could outlast them all. With a deadline the request is aborted by a
+     * timer when it passes, and no endpoint is tried after it.
+     */
+    private TransportResponse transmit(RequestContext context, Map<String, String> headers, BodyBuffer body)
+            throws IOException, BeanstreamApiException {
+        Endpoints endpoints = this.endpoints;
+        List<Endpoints.Endpoint> tried = Collections.emptyList();
+        while (true) {
+            Timeouts requestTimeouts = context.getTimeouts();
+            long remaining = 0;
+            if (context.hasDeadline()) {
+                remaining = context.getRemainingMillis();
+                if (remaining == 0)
+                    throw deadlineExceeded(context);
+                requestTimeouts = requestTimeouts.within(remaining);
+            }
+            Endpoints.Endpoint endpoint = endpoints != null ? endpoints.select(tried) : null;
+            String url = endpoint != null ? Endpoints.rewrite(context.getUrl(), endpoint) : context.getUrl();
+            TransportRequest request = body != null
+                    ? new TransportRequest(context.getMethod(), url, headers, body.array(), body.size(), requestTimeouts)
+                    : new TransportRequest(context.getMethod(), url, headers, null, 0, requestTimeouts);
+            TransportResponse response;
+            Span span = tracer.startSpan("send", context.getSpan());
+            ScheduledFuture<?> timer = context.hasDeadline() ? scheduleAbort(request, remaining) : null;
+            try {
+                response = getTransport().send(request);
+            } catch (IOException ex) {
+                span.setError(ex);
+                if (request.isAborted()) {
+                    if (endpoint != null)
+                        endpoints.failed(endpoint);
+                    throw deadlineExceeded(context, ex);
+                }
+                if (endpoint == null || ex instanceof ConnectionPoolTimeoutException)
+                    throw ex;
+                endpoints.failed(endpoint);
+                if (!isConnectFailure(ex) || tried.size() + 1 >= endpoints.size())
+                    throw ex;
+                if (tried.isEmpty())
+                    tried = new ArrayList<Endpoints.Endpoint>(endpoints.size());
+                tried.add(endpoint);
+                continue;
+            } finally {
+                if (timer != null)
+                    timer.cancel(false);
+                span.end();
+            }
+            if (endpoint != null) {
+                int status = response.getStatusCode();
+                if (status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                        || status == HttpStatus.SC_GATEWAY_TIMEOUT)
+                    endpoints.failed(endpoint);
+                else
+                    endpoints.succeeded(endpoint);
+            }
+            return response;
         }
-        return null;
     }
-    
+
+    /**
+     * @return true if nothing was sent because the host could not be
+     * resolved or connected to. Running out of pooled connections is not one:
+     * it says nothing about the endpoint, and the pool is shared by them all.
+     */
+    private static boolean isConnectFailure(IOException ex) {
+        if (ex instanceof ConnectionPoolTimeoutException)
+            return false;
+        return ex instanceof ConnectException || ex instanceof ConnectTimeoutException
+                || ex instanceof NoRouteToHostException || ex instanceof UnknownHostException;
+    }
+
     /**
      * Provide a detailed error message when connecting to the Beanstream API fails.
      */
@@ -205,6 +776,9 @@ public class HttpsConnector {
             } catch (IOException ex1) {
                 Logger.getLogger(HttpsConnector.class.getName()).log(Level.SEVERE, "Error getting response code", ex1);
             }
+        } else if (ex instanceof InterruptedIOException) {
+            // connect, lease and read timeouts
+            message = "Request timed out";
         } else {
             message = "Connection error";
         }
@@ -218,10 +792,49 @@ public class HttpsConnector {
     private BeanstreamApiException mappedException(int status, BeanstreamResponse bsRes) {
         
         if (bsRes != null) {
-            return BeanstreamApiException.getMappedException(status, bsRes);
+            return BeanstreamApiException.getMappedException(status, bsRes, stacklessDeclines);
         }
 			
         return BeanstreamApiException.getMappedException(status);
     }
 
+    /**
+     * Request bodies are written by Gson straight into this buffer as UTF-8,
+     * and sent from it without copying. Each thread reuses its own.
+     */
+    private static BodyBuffer takeBodyBuffer() {
+        BodyBuffer buffer = BODY_BUFFER.get();
+        if (buffer.inUse)
+            return new BodyBuffer(); // a request sent from inside another one
+        buffer.inUse = true;
+        buffer.written = false;
+        buffer.reset();
+        return buffer;
+    }
+
+    private static void releaseBodyBuffer(BodyBuffer buffer) {
+        if (buffer == null)
+            return;
+        buffer.inUse = false;
+        // a failed write can leave characters inside the writer, so drop that buffer too
+        boolean discard = !buffer.written || buffer.array().length > MAX_RETAINED_BODY_BUFFER;
+        if (discard && BODY_BUFFER.get() == buffer)
+            BODY_BUFFER.remove();
+    }
+
+    private static final class BodyBuffer extends ByteArrayOutputStream {
+
+        private final Writer writer = new OutputStreamWriter(this, Charsets.UTF_8);
+        private boolean inUse;
+        private boolean written;
+
+        BodyBuffer() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
 }
@@ -0,0 +1,95 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * A Transport that never opens a socket: every request is answered in memory
+ * by a Handler. Use it to run the whole request pipeline, from the API classes
+ * through the connector and back, in unit tests.
+ * 
+ * <pre>
+ * config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+ *     public TransportResponse handle(TransportRequest request) {
+ *         return LoopbackTransport.json(200, "{\"id\":\"10000000\",\"approved\":\"1\"}");
+ *     }
+ * }));
+ * </pre>
+ * 
+ * A request aborted at its deadline interrupts the thread in the handler, so
+ * a handler that waits, to play a slow gateway, should give up with an
+ * InterruptedIOException when interrupted.
+ */
+public class LoopbackTransport implements Transport {
+
+    /**
+     * Answers the requests sent to a LoopbackTransport.
+     */
+    public interface Handler {
+
+        TransportResponse handle(TransportRequest request) throws IOException;
+    }
+
+    private final Handler handler;
+
+    public LoopbackTransport(Handler handler) {
+        if (handler == null)
+            throw new IllegalArgumentException("Handler cannot be null!");
+        this.handler = handler;
+    }
+
+    @Override
+    public TransportResponse send(TransportRequest request) throws IOException {
+        final Thread caller = Thread.currentThread();
+        request.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                caller.interrupt();
+            }
+        });
+        try {
+            return handler.handle(request);
+        } finally {
+            request.setAbortAction(null);
+            // an abort that came as the handler returned must not reach the caller
+            if (request.isAborted())
+                Thread.interrupted();
+        }
+    }
+
+    /**
+     * Build a json response the same way the gateway sends them.
+     * 
+     * @param statusCode the HTTP status code
+     * @param json the body
+     * @return the response
+     */
+    public static TransportResponse json(int statusCode, String json) {
+        return new TransportResponse(statusCode,
+                Collections.singletonMap("Content-Type", "application/json; charset=utf-8"),
+                json.getBytes(Charsets.UTF_8));
+    }
+}
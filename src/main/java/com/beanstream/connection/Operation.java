@@ -0,0 +1,74 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+/**
+ * The API calls the SDK makes. Every request is tagged with its operation so
+ * traces, timeouts and limits can tell them apart.
+ */
+public enum Operation {
+    MakePayment(ApiType.Payments, Priority.Interactive),
+    PreAuth(ApiType.Payments, Priority.Interactive),
+    PreAuthCompletion(ApiType.Payments, Priority.NearRealTime),
+    VoidPayment(ApiType.Payments, Priority.NearRealTime),
+    ReturnPayment(ApiType.Payments, Priority.NearRealTime),
+    UnreferencedReturn(ApiType.Payments, Priority.NearRealTime),
+    CreateProfile(ApiType.Profiles, Priority.NearRealTime),
+    GetProfile(ApiType.Profiles, Priority.NearRealTime),
+    UpdateProfile(ApiType.Profiles, Priority.NearRealTime),
+    DeleteProfile(ApiType.Profiles, Priority.NearRealTime),
+    GetCards(ApiType.Profiles, Priority.NearRealTime),
+    GetCard(ApiType.Profiles, Priority.NearRealTime),
+    AddCard(ApiType.Profiles, Priority.NearRealTime),
+    UpdateCard(ApiType.Profiles, Priority.NearRealTime),
+    RemoveCard(ApiType.Profiles, Priority.NearRealTime),
+    GetTransaction(ApiType.Reporting, Priority.NearRealTime),
+    QueryTransactions(ApiType.Reporting, Priority.Bulk),
+    Tokenize(ApiType.Tokenization, Priority.Interactive),
+    /**
+     * A request sent straight through HttpsConnector without naming an operation.
+     */
+    Other(null, Priority.NearRealTime);
+
+    private final ApiType apiType;
+    private final Priority priority;
+
+    private Operation(ApiType apiType, Priority priority) {
+        this.apiType = apiType;
+        this.priority = priority;
+    }
+
+    /**
+     * @return the API the operation belongs to, or null for Other
+     */
+    public ApiType getApiType() {
+        return apiType;
+    }
+
+    /**
+     * @return the lane the operation waits in unless told otherwise
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+}
@@ -0,0 +1,57 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+/**
+ * The lanes requests queue in when they wait for a concurrency slot. Freed
+ * slots are shared out between the lanes with waiting requests in proportion
+ * to their weights, so bulk work keeps moving without holding up checkout.
+ * Only Interactive requests can use a limiter's reserved slots.
+ */
+public enum Priority {
+    /**
+     * A customer is waiting on it, like a payment authorization.
+     */
+    Interactive(16),
+    /**
+     * Needed soon but nobody is watching, like a void or a profile update.
+     */
+    NearRealTime(4),
+    /**
+     * Background work, like report paging or completing a day of pre-auths.
+     */
+    Bulk(1);
+
+    private final int defaultWeight;
+
+    private Priority(int defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    /**
+     * @return the lane's share of freed slots when every lane has requests waiting
+     */
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+}
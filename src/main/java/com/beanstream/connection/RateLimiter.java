@@ -0,0 +1,271 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket that limits how many requests per second are sent to an API.
+ * 
+ * Permits are handed out at a steady rate with a small burst allowance. A
+ * caller that has to wait reserves its permit before sleeping, so waiting
+ * callers are served in order and throughput stays smooth instead of all of
+ * them waking up at once.
+ * 
+ * Each limiter has a maximum wait: 0 makes it fail fast, anything larger lets
+ * requests block for up to that long before being rejected.
+ * 
+ * If adaptive, the rate is cut back every time the gateway responds with
+ * 429 or 503, remembering the rate that was too high. It then climbs back
+ * slowly to just under that rate, probing upwards gradually, so sustained
+ * throughput sits below the real limit instead of oscillating around it.
+ * 
+ * Requests already in flight when the rate is cut were sent at the old rate,
+ * and their rejections say nothing about the new one. Each cut starts a new
+ * epoch, and only the first rejection of a request sent in the current epoch
+ * cuts the rate again, so a burst of concurrent 429s cuts it once.
+ */
+public class RateLimiter {
+
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final double CEILING_MARGIN = 0.95;
+    private static final double RECOVERY_STEP = 0.01;
+    private static final double PROBE_STEP = 0.001;
+    private static final double MIN_RATE_FACTOR = 0.05;
+    private static final long CUT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double maxRate;
+    private final double burst;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long maxWaitMillis;
+    private volatile boolean adaptive = true;
+
+    private volatile double rate;
+    private double ceiling;
+    private double tokens;
+    private long lastRefill;
+    private long epoch;
+    private long lastCut;
+
+    /**
+     * @param permitsPerSecond the most requests per second to send
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, 1);
+    }
+
+    /**
+     * @param permitsPerSecond the most requests per second to send
+     * @param burst how many requests can be sent back to back after the
+     * limiter has been idle
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0)
+            throw new IllegalArgumentException("Rate must be greater than 0!");
+        if (burst < 1)
+            throw new IllegalArgumentException("Burst must be at least 1!");
+        this.maxRate = permitsPerSecond;
+        this.burst = burst;
+        this.rate = permitsPerSecond;
+        this.ceiling = permitsPerSecond;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+        this.lastCut = lastRefill - CUT_INTERVAL_NANOS;
+    }
+
+    /**
+     * Take a permit if one is available right now.
+     * @return true if the request can be sent
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a permit, waiting for up to the timeout for one to become available.
+     * If the permit would not be available in time, returns false straight away
+     * without waiting.
+     * 
+     * @return true if the request can be sent
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long waitNanos;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            waitNanos = (long) ((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+            if (waitNanos > unit.toNanos(timeout)) {
+                return false;
+            }
+            tokens -= 1; // reserve it, we may go into debt
+        } finally {
+            lock.unlock();
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+        return true;
+    }
+
+    /**
+     * Take a permit, waiting for up to the configured maximum wait.
+     * @return true if the request can be sent
+     */
+    public boolean acquire() throws InterruptedException {
+        long wait = maxWaitMillis;
+        return wait > 0 ? tryAcquire(wait, TimeUnit.MILLISECONDS) : tryAcquire();
+    }
+
+    /**
+     * @return the current epoch, read when sending a request and handed back
+     * to onThrottled(long) if the gateway rejects it
+     */
+    public long getEpoch() {
+        lock.lock();
+        try {
+            return epoch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell the limiter the gateway rejected a request (429 or 503) that was
+     * sent in the given epoch. Only the first rejection of the current epoch
+     * cuts the rate, those of requests sent before the last cut are ignored.
+     */
+    public void onThrottled(long epoch) {
+        if (!adaptive) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (epoch == this.epoch) {
+                cut(System.nanoTime());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell the limiter the gateway is rejecting requests (429 or 503), when it
+     * is not known when they were sent. The rate is cut at most once a second.
+     */
+    public void onThrottled() {
+        if (!adaptive) {
+            return;
+        }
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (now - lastCut >= CUT_INTERVAL_NANOS) {
+                cut(now);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cut(long now) {
+        refill(now);
+        ceiling = rate;
+        rate = Math.max(maxRate * MIN_RATE_FACTOR, rate * DECREASE_FACTOR);
+        epoch++;
+        lastCut = now;
+    }
+
+    /**
+     * Tell the limiter a request was accepted by the gateway.
+     */
+    public void onSuccess() {
+        if (!adaptive || rate >= maxRate) {
+            return;
+        }
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            ceiling = Math.min(maxRate, ceiling + maxRate * PROBE_STEP);
+            double target = ceiling >= maxRate ? maxRate : ceiling * CEILING_MARGIN;
+            rate = Math.max(rate, Math.min(target, rate + maxRate * RECOVERY_STEP));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    /**
+     * @return the rate permits are currently handed out at, lower than the
+     * configured rate after the gateway throttled requests
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @param maxWaitMillis how long a request can wait for a permit, 0 to fail fast
+     */
+    public RateLimiter setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @param adaptive false to keep the rate fixed no matter what the gateway responds
+     */
+    public RateLimiter setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        return this;
+    }
+}
@@ -0,0 +1,130 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A Tracer that keeps every span in memory, for checking in tests what was
+ * traced.
+ */
+public class RecordingTracer implements Tracer {
+
+    private final ConcurrentLinkedQueue<RecordedSpan> spans = new ConcurrentLinkedQueue<RecordedSpan>();
+
+    @Override
+    public Span startSpan(String name, Span parent) {
+        RecordedSpan span = new RecordedSpan(name, (RecordedSpan) parent);
+        spans.add(span);
+        return span;
+    }
+
+    /**
+     * @return every span started so far, in the order they were started
+     */
+    public List<RecordedSpan> getSpans() {
+        return new ArrayList<RecordedSpan>(spans);
+    }
+
+    /**
+     * @return the spans with the given name, in the order they were started
+     */
+    public List<RecordedSpan> getSpans(String name) {
+        List<RecordedSpan> result = new ArrayList<RecordedSpan>();
+        for (RecordedSpan span : spans) {
+            if (span.getName().equals(name))
+                result.add(span);
+        }
+        return result;
+    }
+
+    public void clear() {
+        spans.clear();
+    }
+
+    public static class RecordedSpan implements Span {
+
+        private final String name;
+        private final RecordedSpan parent;
+        private final long startNanos = System.nanoTime();
+        private final Map<String, String> attributes = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+        private volatile long endNanos;
+        private volatile boolean ended;
+        private volatile Throwable error;
+
+        RecordedSpan(String name, RecordedSpan parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        @Override
+        public void setAttribute(String key, String value) {
+            attributes.put(key, value);
+        }
+
+        @Override
+        public void setError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void end() {
+            if (ended)
+                throw new IllegalStateException("Span " + name + " was already ended");
+            endNanos = System.nanoTime();
+            ended = true;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public RecordedSpan getParent() {
+            return parent;
+        }
+
+        public String getAttribute(String key) {
+            return attributes.get(key);
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean isEnded() {
+            return ended;
+        }
+
+        /**
+         * @return how long the span was open, or -1 if it hasn't ended
+         */
+        public long getDurationNanos() {
+            return ended ? endNanos - startNanos : -1;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What is known about a request while it is being sent: its operation, url,
+ * attributes such as the order number, the span that covers it and the
+ * deadline it has to finish by.
+ */
+public class RequestContext {
+
+    public static final String ORDER_NUMBER = "order_number";
+    public static final String OPERATION = "operation";
+    public static final String CORRELATION_ID = "correlation_id";
+
+    private final Operation operation;
+    private final HttpMethod method;
+    private final String url;
+    private final Span span;
+    private final Timeouts timeouts;
+    private final long deadlineNanos;
+    private long rateEpoch;
+    private final Map<String, String> attributes = new LinkedHashMap<String, String>(4);
+
+    public RequestContext(Operation operation, HttpMethod method, String url, Span span) {
+        this(operation, method, url, span, Timeouts.NONE);
+    }
+
+    /**
+     * @param timeouts the timeouts of the request, whose deadline starts now
+     */
+    public RequestContext(Operation operation, HttpMethod method, String url, Span span, Timeouts timeouts) {
+        this(operation, method, url, span, timeouts, System.nanoTime());
+    }
+
+    /**
+     * @param timeouts the timeouts of the request
+     * @param startNanos the System.nanoTime() the deadline runs from
+     */
+    public RequestContext(Operation operation, HttpMethod method, String url, Span span, Timeouts timeouts,
+            long startNanos) {
+        this.operation = operation;
+        this.method = method;
+        this.url = url;
+        this.span = span;
+        this.timeouts = timeouts;
+        long deadline = timeouts.getDeadlineMillis();
+        this.deadlineNanos = deadline > 0 ? startNanos + TimeUnit.MILLISECONDS.toNanos(deadline) : 0;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the span covering the whole request
+     */
+    public Span getSpan() {
+        return span;
+    }
+
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    public boolean hasDeadline() {
+        return deadlineNanos != 0;
+    }
+
+    /**
+     * @return the milliseconds left before the deadline, 0 once it has
+     * passed, or Long.MAX_VALUE if there is no deadline
+     */
+    public long getRemainingMillis() {
+        if (deadlineNanos == 0)
+            return Long.MAX_VALUE;
+        long remaining = deadlineNanos - System.nanoTime();
+        return remaining > 0 ? TimeUnit.NANOSECONDS.toMillis(remaining) : 0;
+    }
+
+    /**
+     * @return the epoch of the rate limiter when the request got its permit
+     */
+    long getRateEpoch() {
+        return rateEpoch;
+    }
+
+    void setRateEpoch(long rateEpoch) {
+        this.rateEpoch = rateEpoch;
+    }
+
+    /**
+     * Set an attribute on the request and on its span.
+     */
+    public void setAttribute(String key, String value) {
+        attributes.put(key, value);
+        span.setAttribute(key, value);
+    }
+
+    public String getAttribute(String key) {
+        return attributes.get(key);
+    }
+
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+}
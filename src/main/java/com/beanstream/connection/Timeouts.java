@@ -0,0 +1,145 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+/**
+ * How long a request may take. The connect, lease (waiting for a pooled
+ * connection) and read timeouts bound each wait on the network, and the
+ * deadline bounds the whole call, including time spent waiting on the rate
+ * and concurrency limits. Every wait is cut short to what is left of the
+ * deadline, and a request still being sent when it passes is aborted, so a
+ * response that trickles in can't keep the call going. A value of 0 means no
+ * limit.
+ * 
+ * Timeouts are immutable, start from NONE and use the with methods:
+ * <pre>
+ * Timeouts.NONE.withConnect(2000).withRead(10000).withDeadline(15000)
+ * </pre>
+ */
+public final class Timeouts {
+
+    public static final Timeouts NONE = new Timeouts(0, 0, 0, 0);
+
+    private final int connectMillis;
+    private final int leaseMillis;
+    private final int readMillis;
+    private final long deadlineMillis;
+
+    public Timeouts(int connectMillis, int leaseMillis, int readMillis, long deadlineMillis) {
+        if (connectMillis < 0 || leaseMillis < 0 || readMillis < 0 || deadlineMillis < 0)
+            throw new IllegalArgumentException("Timeouts cannot be negative!");
+        this.connectMillis = connectMillis;
+        this.leaseMillis = leaseMillis;
+        this.readMillis = readMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * @param connectMillis how long to wait for a connection to the gateway
+     */
+    public Timeouts withConnect(int connectMillis) {
+        return new Timeouts(connectMillis, leaseMillis, readMillis, deadlineMillis);
+    }
+
+    /**
+     * @param leaseMillis how long to wait for a connection from the pool
+     */
+    public Timeouts withLease(int leaseMillis) {
+        return new Timeouts(connectMillis, leaseMillis, readMillis, deadlineMillis);
+    }
+
+    /**
+     * @param readMillis how long to wait for each read of the response
+     */
+    public Timeouts withRead(int readMillis) {
+        return new Timeouts(connectMillis, leaseMillis, readMillis, deadlineMillis);
+    }
+
+    /**
+     * @param deadlineMillis how long the whole call may take
+     */
+    public Timeouts withDeadline(long deadlineMillis) {
+        return new Timeouts(connectMillis, leaseMillis, readMillis, deadlineMillis);
+    }
+
+    public int getConnectMillis() {
+        return connectMillis;
+    }
+
+    public int getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    public int getReadMillis() {
+        return readMillis;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * @return true if any of the timeouts is set
+     */
+    public boolean isSet() {
+        return connectMillis > 0 || leaseMillis > 0 || readMillis > 0 || deadlineMillis > 0;
+    }
+
+    /**
+     * The network timeouts cut short to the time left before a deadline.
+     * 
+     * @param remainingMillis the time left, at least 1
+     * @return timeouts none of which is longer than the time left
+     */
+    public Timeouts within(long remainingMillis) {
+        int cap = (int) Math.min(Math.max(remainingMillis, 1), Integer.MAX_VALUE);
+        return new Timeouts(cap(connectMillis, cap), cap(leaseMillis, cap), cap(readMillis, cap), deadlineMillis);
+    }
+
+    private static int cap(int millis, int cap) {
+        return millis == 0 || millis > cap ? cap : millis;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Timeouts))
+            return false;
+        Timeouts other = (Timeouts) obj;
+        return connectMillis == other.connectMillis && leaseMillis == other.leaseMillis
+                && readMillis == other.readMillis && deadlineMillis == other.deadlineMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = connectMillis;
+        result = 31 * result + leaseMillis;
+        result = 31 * result + readMillis;
+        return 31 * result + (int) (deadlineMillis ^ (deadlineMillis >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "Timeouts{connect=" + connectMillis + ", lease=" + leaseMillis
+                + ", read=" + readMillis + ", deadline=" + deadlineMillis + "}";
+    }
+}
@@ -0,0 +1,67 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+/**
+ * Opens the spans HttpsConnector reports for every request, so its phases can
+ * be tied into your own tracing system.
+ * 
+ * Each request opens a span named after its operation, with a child span for
+ * each phase: serialize, wait (for the rate and concurrency limits), send,
+ * parse, and map_error when an error response is turned into an exception.
+ * 
+ * Tracers are called from every thread sending requests and must be thread safe.
+ */
+public interface Tracer {
+
+    /**
+     * A tracer that records nothing and costs next to nothing.
+     */
+    Tracer NOOP = new Tracer() {
+        @Override
+        public Span startSpan(String name, Span parent) {
+            return NOOP_SPAN;
+        }
+    };
+
+    Span NOOP_SPAN = new Span() {
+        @Override
+        public void setAttribute(String key, String value) {
+        }
+
+        @Override
+        public void setError(Throwable error) {
+        }
+
+        @Override
+        public void end() {
+        }
+    };
+
+    /**
+     * @param name the name of the span
+     * @param parent the span it is part of, or null for the span of a whole request
+     * @return the started span
+     */
+    Span startSpan(String name, Span parent);
+}
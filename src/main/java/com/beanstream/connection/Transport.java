@@ -0,0 +1,46 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.io.IOException;
+
+/**
+ * Sends a request to the gateway over HTTP. HttpsConnector builds the request
+ * and hands it to a Transport, so the HTTP engine underneath can be swapped
+ * with Configuration.setTransport.
+ * 
+ * Requests and responses are plain bytes and headers, so a transport doesn't
+ * need to know anything about json or the Beanstream API.
+ * 
+ * Implementations are shared by every request of a Configuration and must be
+ * safe to call from many threads at once.
+ */
+public interface Transport {
+
+    /**
+     * @param request the request to send
+     * @return the response, whatever its status code
+     * @throws IOException if the request could not be sent or the response read
+     */
+    TransportResponse send(TransportRequest request) throws IOException;
+}
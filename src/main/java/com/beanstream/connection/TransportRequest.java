@@ -0,0 +1,175 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An HTTP request as handed to a Transport: the method, url, headers, the
+ * already encoded body and the timeouts to send it with.
+ * 
+ * The body may be the front of a buffer that is reused once send returns, so
+ * a transport must be done with the request by the time it returns. Writing
+ * it with writeBody avoids copying it.
+ * 
+ * A request can be aborted from another thread, which HttpsConnector does
+ * when its deadline passes. A transport sets an abort action while sending
+ * that makes send give up with an IOException, for example by closing the
+ * connection.
+ */
+public class TransportRequest {
+
+    private final HttpMethod method;
+    private final String url;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final int bodyLength;
+    private final Timeouts timeouts;
+    private Runnable abortAction;
+    private boolean aborted;
+
+    /**
+     * @param method the HTTP method
+     * @param url the full url of the API call
+     * @param headers the request headers
+     * @param body the body to send, or null for no body
+     */
+    public TransportRequest(HttpMethod method, String url, Map<String, String> headers, byte[] body) {
+        this(method, url, headers, body, body != null ? body.length : 0);
+    }
+
+    /**
+     * @param method the HTTP method
+     * @param url the full url of the API call
+     * @param headers the request headers
+     * @param buffer holds the body to send, or null for no body
+     * @param length how many bytes at the start of the buffer make up the body
+     */
+    public TransportRequest(HttpMethod method, String url, Map<String, String> headers, byte[] buffer, int length) {
+        this(method, url, headers, buffer, length, Timeouts.NONE);
+    }
+
+    /**
+     * @param method the HTTP method
+     * @param url the full url of the API call
+     * @param headers the request headers
+     * @param buffer holds the body to send, or null for no body
+     * @param length how many bytes at the start of the buffer make up the body
+     * @param timeouts the connect, lease and read timeouts to send it with
+     */
+    public TransportRequest(HttpMethod method, String url, Map<String, String> headers, byte[] buffer, int length,
+            Timeouts timeouts) {
+        if (buffer != null && (length < 0 || length > buffer.length))
+            throw new IllegalArgumentException("Length must be within the buffer!");
+        this.method = method;
+        this.url = url;
+        Map<String, String> copy = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        copy.putAll(headers);
+        this.headers = Collections.unmodifiableMap(copy);
+        this.body = buffer;
+        this.bodyLength = buffer != null ? length : 0;
+        this.timeouts = timeouts != null ? timeouts : Timeouts.NONE;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the headers, looked up without regard to case
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * @return the timeouts the transport should use, where set, in place of its own
+     */
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return the body, or null if the request has none
+     */
+    public byte[] getBody() {
+        if (body == null || bodyLength == body.length)
+            return body;
+        return Arrays.copyOf(body, bodyLength);
+    }
+
+    public boolean hasBody() {
+        return body != null;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Write the body without copying it first.
+     */
+    public void writeBody(OutputStream out) throws IOException {
+        if (body != null)
+            out.write(body, 0, bodyLength);
+    }
+
+    /**
+     * @param abortAction what stops this request while it is being sent, or
+     * null once it was. Runs straight away if the request was already aborted.
+     */
+    public synchronized void setAbortAction(Runnable abortAction) {
+        this.abortAction = abortAction;
+        if (aborted && abortAction != null)
+            abortAction.run();
+    }
+
+    /**
+     * Stop sending this request. The action runs while holding the request's
+     * lock, so once a transport has cleared it, it will not be run.
+     */
+    public synchronized void abort() {
+        if (aborted)
+            return;
+        aborted = true;
+        if (abortAction != null)
+            abortAction.run();
+    }
+
+    public synchronized boolean isAborted() {
+        return aborted;
+    }
+}
@@ -0,0 +1,179 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.MediaType;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An HTTP response as returned by a Transport: the status code, headers and
+ * the raw body.
+ */
+public class TransportResponse {
+
+    private final int statusCode;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    /**
+     * @param statusCode the HTTP status code
+     * @param headers the response headers
+     * @param body the body, or null if the response has none
+     */
+    public TransportResponse(int statusCode, Map<String, String> headers, byte[] body) {
+        this.statusCode = statusCode;
+        Map<String, String> copy = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        copy.putAll(headers);
+        this.headers = Collections.unmodifiableMap(copy);
+        this.body = body;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the headers, looked up without regard to case
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public String getContentType() {
+        return headers.get("Content-Type");
+    }
+
+    /**
+     * @return the body, or null if the response has none
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return the body decoded with the charset of its content type, UTF-8 if
+     * it doesn't give one, or null if the response has no body. A gzip or
+     * deflate body is decompressed on the way.
+     * @throws IOException if a compressed body is corrupt
+     */
+    public String getBodyAsString() throws IOException {
+        if (body == null)
+            return null;
+        InputStream in = getDecodedBody();
+        if (in == null)
+            return new String(body, getCharset());
+        // inflate and decode in one pass rather than inflating to another byte array first
+        Reader reader = new InputStreamReader(in, getCharset());
+        try {
+            StringBuilder text = new StringBuilder(body.length * 4);
+            char[] chars = new char[8192];
+            int read;
+            while ((read = reader.read(chars)) != -1) {
+                text.append(chars, 0, read);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the body without building a string of it, so a parser can be fed
+     * straight from the decompressor. A gzip or deflate body is decompressed
+     * as it is read, and corrupt data shows up as an IOException from the
+     * reader.
+     * 
+     * @return the body decoded with the charset of its content type, UTF-8 if
+     * it doesn't give one, or an empty reader if the response has no body
+     * @throws IOException if the body's content encoding is not supported
+     */
+    public Reader getBodyAsReader() throws IOException {
+        if (body == null)
+            return new StringReader("");
+        InputStream in = getDecodedBody();
+        if (in == null)
+            in = new ByteArrayInputStream(body);
+        return new InputStreamReader(in, getCharset());
+    }
+
+    /**
+     * @return a stream that decompresses the body, or null if it isn't compressed
+     */
+    private InputStream getDecodedBody() throws IOException {
+        String encoding = headers.get("Content-Encoding");
+        if (encoding == null)
+            return null;
+        encoding = encoding.trim().toLowerCase(Locale.ENGLISH);
+        if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+            return new GZIPInputStream(new ByteArrayInputStream(body), 8192);
+        if (encoding.equals("deflate"))
+            return new InflaterInputStream(new ByteArrayInputStream(body), new Inflater(isRawDeflate()), 8192);
+        if (encoding.equals("identity"))
+            return null;
+        throw new IOException("Unsupported content encoding: " + encoding);
+    }
+
+    /**
+     * Deflate should be wrapped in a zlib header, but some servers send the raw stream.
+     */
+    private boolean isRawDeflate() {
+        if (body.length < 2)
+            return true;
+        int header = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+        return (body[0] & 0x0f) != 8 || header % 31 != 0;
+    }
+
+    private Charset getCharset() {
+        String contentType = getContentType();
+        if (contentType != null) {
+            try {
+                MediaType type = MediaType.parse(contentType);
+                if (type.charset().isPresent())
+                    return type.charset().get();
+            } catch (IllegalArgumentException ex) {
+                // fall back to the json default
+            } catch (IllegalStateException ex) {
+                // more than one charset
+            }
+        }
+        return Charsets.UTF_8;
+    }
+}
@@ -0,0 +1,133 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends requests with the JDK's own HttpURLConnection, without Apache
+ * HttpClient on the request path.
+ * 
+ * The JDK keeps connections alive and reuses them between requests as long as
+ * each response is read to the end, which this transport always does. How
+ * many idle connections the JDK keeps is set with the http.maxConnections
+ * system property (5 by default).
+ */
+public class UrlConnectionTransport implements Transport {
+
+    private volatile int connectTimeoutMillis;
+    private volatile int readTimeoutMillis;
+
+    /**
+     * @param connectTimeoutMillis how long to wait for a connection, 0 to wait forever
+     */
+    public UrlConnectionTransport setConnectTimeout(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param readTimeoutMillis how long to wait for the response, 0 to wait forever
+     */
+    public UrlConnectionTransport setReadTimeout(int readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+        return this;
+    }
+
+    @Override
+    public TransportResponse send(TransportRequest request) throws IOException {
+        
+        final HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+        connection.setRequestMethod(request.getMethod().name().toUpperCase(Locale.ENGLISH));
+        Timeouts timeouts = request.getTimeouts();
+        connection.setConnectTimeout(timeouts.getConnectMillis() > 0 ? timeouts.getConnectMillis() : connectTimeoutMillis);
+        connection.setReadTimeout(timeouts.getReadMillis() > 0 ? timeouts.getReadMillis() : readTimeoutMillis);
+        connection.setUseCaches(false);
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        request.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        });
+        try {
+            return exchange(connection, request);
+        } finally {
+            request.setAbortAction(null);
+        }
+    }
+
+    private static TransportResponse exchange(HttpURLConnection connection, TransportRequest request)
+            throws IOException {
+        if (request.hasBody()) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(request.getBodyLength());
+            OutputStream out = connection.getOutputStream();
+            try {
+                request.writeBody(out);
+            } finally {
+                out.close();
+            }
+        }
+
+        int status = connection.getResponseCode();
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // the status line comes back under a null name
+            if (header.getKey() != null && !header.getValue().isEmpty())
+                headers.put(header.getKey(), header.getValue().get(0));
+        }
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        byte[] payload = null;
+        if (in != null) {
+            try {
+                payload = readFully(in);
+            } finally {
+                in.close();
+            }
+        }
+        return new TransportResponse(status, headers, payload);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,154 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.data;
+
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.requests.Criteria;
+import com.beanstream.requests.Operators;
+import com.beanstream.requests.QueryFields;
+
+/**
+ * Evaluates the Reporting API search criteria against a TransactionRecord
+ * locally, so the same Criteria used for ReportingAPI.query() can be run
+ * against records that have already been downloaded.
+ * 
+ * Numeric fields (TransactionId, Amount, Response) are compared as numbers, 
+ * every other field is compared as a string. Fields that are not present on
+ * a TransactionRecord (ProcessedBy, IDAdjustmentTo, IDAdjustedBy) never match.
+ */
+public final class CriteriaMatcher {
+
+    private CriteriaMatcher() {
+    }
+
+    /**
+     * @return true if the record satisfies every criteria in the array. A null
+     * or empty array matches everything.
+     */
+    public static boolean matchesAll(TransactionRecord record, Criteria[] criteria) {
+        if (criteria == null) {
+            return true;
+        }
+        for (Criteria c : criteria) {
+            if (c != null && !matches(record, c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean matches(TransactionRecord record, Criteria criteria) {
+        Object fieldValue = getFieldValue(record, criteria.getField());
+        String value = criteria.getValue();
+        if (fieldValue == null || value == null) {
+            return false;
+        }
+
+        Operators operator = criteria.getOperator();
+        if (operator == Operators.StartWith) {
+            return fieldValue.toString().startsWith(value);
+        }
+
+        int cmp;
+        if (fieldValue instanceof Number) {
+            double expected;
+            try {
+                expected = Double.parseDouble(value.trim());
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+            cmp = Double.compare(((Number) fieldValue).doubleValue(), expected);
+        } else {
+            cmp = fieldValue.toString().compareTo(value);
+        }
+
+        switch (operator) {
+            case Equals:
+                return cmp == 0;
+            case LessThan:
+                return cmp < 0;
+            case GreaterThan:
+                return cmp > 0;
+            case LessThanEqual:
+                return cmp <= 0;
+            case GreaterThanEqual:
+                return cmp >= 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The value of the given query field on the record: an Integer or Double
+     * for numeric fields, a String for the others, or null if the record does
+     * not carry that field.
+     */
+    public static Object getFieldValue(TransactionRecord record, QueryFields field) {
+        switch (field) {
+            case TransactionId:
+                return record.getTransactionId();
+            case Amount:
+                return record.getAmount();
+            case MaskedCardNumber:
+                return record.getMaskedCard();
+            case CardOwner:
+                return record.getCardOwner();
+            case OrderNumber:
+                return record.getOrderNumber();
+            case IPAddress:
+                return record.getIPAddress();
+            case AuthorizationCode:
+                return record.getApprovalCode();
+            case TransType:
+                return record.getType();
+            case CardType:
+                return record.getCardType();
+            case Response:
+                return record.getResponse();
+            case BillingName:
+                return record.getBillingName();
+            case BillingEmail:
+                return record.getBillingEmail();
+            case BillingPhone:
+                return record.getBillingPhone();
+            case Ref1:
+                return record.getRef1();
+            case Ref2:
+                return record.getRef2();
+            case Ref3:
+                return record.getRef3();
+            case Ref4:
+                return record.getRef4();
+            case Ref5:
+                return record.getRef5();
+            case ProductName:
+                return record.getProductName();
+            case ProductID:
+                return record.getProductId();
+            case CustCode:
+                return record.getCustomerCode();
+            default:
+                return null; // ProcessedBy, IDAdjustmentTo, IDAdjustedBy
+        }
+    }
+}
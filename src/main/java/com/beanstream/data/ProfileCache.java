@@ -0,0 +1,152 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.data;
+
+import com.beanstream.domain.Card;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An optional in-memory cache of the cards on payment profiles, so looking a
+ * card up again does not go back to the gateway. The ProfilesAPI fills it
+ * whenever it downloads the cards of a profile, and drops a profile from it
+ * when the profile or one of its cards is changed through the SDK. Changes
+ * made anywhere else show up once the entry expires.
+ * 
+ * Cards are copied going in and coming out, so callers cannot change what
+ * is cached.
+ * 
+ * A download that started before a change and finished after it would put
+ * the old cards back, so each profile has a version that invalidate moves
+ * on. Read it with getVersion before the download and pass it to putCards,
+ * which drops the cards if the profile was changed in the meantime.
+ * Versions are kept for as long as cards are, which is far longer than a
+ * download takes.
+ */
+public class ProfileCache {
+
+    private final Cache<String, List<Card>> cards;
+    private final Cache<String, Long> versions;
+    // every invalidation gets a new number, so a version is never seen twice
+    private long changes;
+    private long allInvalidated;
+
+    /**
+     * @param maxProfiles the most profiles to hold the cards of
+     * @param ttlMillis how long the cards of a profile are kept after they were fetched
+     */
+    public ProfileCache(int maxProfiles, long ttlMillis) {
+        if (maxProfiles < 1 || ttlMillis < 1)
+            throw new IllegalArgumentException("The cache must hold at least one profile for some time!");
+        cards = CacheBuilder.newBuilder()
+                .maximumSize(maxProfiles)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        versions = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * @return the cards on the profile, or null if they are not cached
+     */
+    public List<Card> getCards(String profileId) {
+        List<Card> cached = cards.getIfPresent(profileId);
+        if (cached == null)
+            return null;
+        List<Card> copies = new ArrayList<Card>(cached.size());
+        for (Card card : cached) {
+            copies.add(copy(card));
+        }
+        return copies;
+    }
+
+    /**
+     * @return true if the cards of the profile are cached
+     */
+    public boolean contains(String profileId) {
+        return cards.getIfPresent(profileId) != null;
+    }
+
+    /**
+     * @return the version of the profile, to pass to putCards once its cards
+     * have been downloaded
+     */
+    public synchronized long getVersion(String profileId) {
+        Long version = versions.getIfPresent(profileId);
+        return version != null ? Math.max(version, allInvalidated) : allInvalidated;
+    }
+
+    public void putCards(String profileId, List<Card> profileCards) {
+        cards.put(profileId, copyAll(profileCards));
+    }
+
+    /**
+     * Cache the cards of a profile, unless it was changed since they were
+     * downloaded.
+     * 
+     * @param version what getVersion returned before the download
+     * @return false if the profile was changed and the cards were dropped
+     */
+    public boolean putCards(String profileId, List<Card> profileCards, long version) {
+        List<Card> copies = copyAll(profileCards);
+        synchronized (this) {
+            if (getVersion(profileId) != version)
+                return false;
+            cards.put(profileId, copies);
+            return true;
+        }
+    }
+
+    public synchronized void invalidate(String profileId) {
+        versions.put(profileId, ++changes);
+        cards.invalidate(profileId);
+    }
+
+    public synchronized void invalidateAll() {
+        allInvalidated = ++changes;
+        cards.invalidateAll();
+    }
+
+    private static List<Card> copyAll(List<Card> profileCards) {
+        List<Card> copies = new ArrayList<Card>(profileCards.size());
+        for (Card card : profileCards) {
+            copies.add(copy(card));
+        }
+        return Collections.unmodifiableList(copies);
+    }
+
+    private static Card copy(Card card) {
+        Card copy = new Card().setName(card.getName()).setNumber(card.getNumber())
+                .setExpiryMonth(card.getExpiryMonth()).setExpiryYear(card.getExpiryYear())
+                .setCvd(card.getCvd()).setComplete(card.isComplete());
+        copy.setId(card.getId());
+        copy.setType(card.getType());
+        copy.setFunction(card.getFunction());
+        return copy;
+    }
+}
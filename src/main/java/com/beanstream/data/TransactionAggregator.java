@@ -0,0 +1,307 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.data;
+
+import com.beanstream.api.ReportingAPI;
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.requests.Criteria;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes settlement totals over transaction records in a single streaming
+ * pass. Records are grouped by any combination of card type, batch number,
+ * day and response code and for each group the count, amount, returns and
+ * completions are summed. Only one Totals per group is kept in memory, the
+ * records themselves are not retained.
+ * 
+ * <pre>
+ * TransactionAggregator totals = new TransactionAggregator(GroupBy.CardType, GroupBy.Day);
+ * beanstream.reports().query(startDate, endDate, null, totals);
+ * for (Map.Entry&lt;GroupKey, Totals&gt; e : totals.getTotals().entrySet()) ...
+ * </pre>
+ * 
+ * Large date ranges can be split into shards that are queried in parallel
+ * with aggregate(ReportingAPI, Date, Date, Criteria[], int, ExecutorService).
+ * 
+ * An aggregator is not thread safe; each shard uses its own and they are
+ * merged at the end.
+ */
+public class TransactionAggregator implements RecordHandler {
+
+    public enum GroupBy {
+        CardType,       // trn_card_type
+        BatchNumber,    // trn_batch_no
+        Day,            // yyyy-MM-dd of trn_date_time
+        Response        // trn_response
+    }
+
+    private final GroupBy[] groupBy;
+    private final Map<GroupKey, Totals> totals = new HashMap<GroupKey, Totals>();
+
+    /**
+     * @param groupBy the fields to group on, no fields gives a single grand total
+     */
+    public TransactionAggregator(GroupBy... groupBy) {
+        this.groupBy = groupBy != null ? groupBy.clone() : new GroupBy[0];
+    }
+
+    public List<GroupBy> getGroupBy() {
+        return Collections.unmodifiableList(Arrays.asList(groupBy));
+    }
+
+    @Override
+    public boolean handle(TransactionRecord record) {
+        String[] values = new String[groupBy.length];
+        for (int i = 0; i < groupBy.length; i++) {
+            values[i] = valueOf(record, groupBy[i]);
+        }
+        GroupKey key = new GroupKey(groupBy, values);
+        Totals group = totals.get(key);
+        if (group == null) {
+            group = new Totals();
+            totals.put(key, group);
+        }
+        group.add(record);
+        return true;
+    }
+
+    /**
+     * @return the totals for each group seen so far
+     */
+    public Map<GroupKey, Totals> getTotals() {
+        return Collections.unmodifiableMap(totals);
+    }
+
+    /**
+     * Add the totals of another aggregator, with the same grouping, into this one.
+     */
+    public void merge(TransactionAggregator other) {
+        if (!Arrays.equals(groupBy, other.groupBy)) {
+            throw new IllegalArgumentException("Cannot merge aggregators with a different grouping!");
+        }
+        for (Map.Entry<GroupKey, Totals> entry : other.totals.entrySet()) {
+            Totals group = totals.get(entry.getKey());
+            if (group == null) {
+                group = new Totals();
+                totals.put(entry.getKey(), group);
+            }
+            group.add(entry.getValue());
+        }
+    }
+
+    /**
+     * Split the date range into equal shards, query each shard in parallel on
+     * the executor and add the results into this aggregator.
+     * 
+     * @param reports the Reporting API to query
+     * @param startDate the start of the date range
+     * @param endDate the end of the date range
+     * @param searchCriteria the search criteria, can be null
+     * @param shards the number of date shards to split the range into
+     * @param executor runs the shard queries
+     * @throws BeanstreamApiException if any of the shard queries failed
+     */
+    public void aggregate(final ReportingAPI reports, Date startDate, Date endDate,
+            final Criteria[] searchCriteria, int shards, ExecutorService executor)
+            throws BeanstreamApiException {
+        if (endDate == null || startDate == null)
+            throw new IllegalArgumentException("Start Date and End Date cannot be null!");
+        if (endDate.compareTo(startDate) < 0)
+            throw new IllegalArgumentException("End Date cannot be less than Start Date!");
+        if (shards < 1)
+            throw new IllegalArgumentException("There must be at least one shard!");
+
+        long start = startDate.getTime();
+        long span = endDate.getTime() - start + 1;
+        shards = (int) Math.min(shards, span);
+
+        List<Future<TransactionAggregator>> futures = new ArrayList<Future<TransactionAggregator>>(shards);
+        for (int i = 0; i < shards; i++) {
+            final Date shardStart = new Date(start + span * i / shards);
+            final Date shardEnd = new Date(start + span * (i + 1) / shards - 1);
+            futures.add(executor.submit(new Callable<TransactionAggregator>() {
+                @Override
+                public TransactionAggregator call() throws BeanstreamApiException {
+                    TransactionAggregator shard = new TransactionAggregator(groupBy);
+                    reports.query(shardStart, shardEnd, searchCriteria, shard);
+                    return shard;
+                }
+            }));
+        }
+
+        try {
+            for (Future<TransactionAggregator> future : futures) {
+                merge(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BeanstreamApiException(ex, "Interrupted while aggregating transactions");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof BeanstreamApiException) {
+                throw (BeanstreamApiException) ex.getCause();
+            }
+            throw new BeanstreamApiException(ex, "Error aggregating transactions");
+        } finally {
+            for (Future<TransactionAggregator> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static String valueOf(TransactionRecord record, GroupBy field) {
+        switch (field) {
+            case CardType:
+                return record.getCardType();
+            case BatchNumber:
+                return String.valueOf(record.getBatchNumber());
+            case Day: {
+                String dateTime = record.getDateTimeStr();
+                return dateTime != null && dateTime.length() >= 10 ? dateTime.substring(0, 10) : null;
+            }
+            case Response:
+                return String.valueOf(record.getResponse());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The values of the grouped fields for one group.
+     */
+    public static final class GroupKey {
+        private final GroupBy[] fields;
+        private final String[] values;
+        private final int hash;
+
+        GroupKey(GroupBy[] fields, String[] values) {
+            this.fields = fields;
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        /**
+         * @return the value of the field for this group, null if the field
+         * is not grouped on or the records had no value for it
+         */
+        public String get(GroupBy field) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i] == field) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof GroupKey && Arrays.equals(values, ((GroupKey) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(fields[i]).append('=').append(values[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The running totals of a group. Amounts are accumulated in cents so the
+     * sums do not drift.
+     */
+    public static final class Totals {
+        private long count;
+        private long amountCents;
+        private long returnsCents;
+        private long completionsCents;
+
+        void add(TransactionRecord record) {
+            count++;
+            amountCents += Math.round(record.getAmount() * 100);
+            returnsCents += Math.round(record.getReturns() * 100);
+            completionsCents += Math.round(record.getCompletions() * 100);
+        }
+
+        void add(Totals other) {
+            count += other.count;
+            amountCents += other.amountCents;
+            returnsCents += other.returnsCents;
+            completionsCents += other.completionsCents;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getAmountInCents() {
+            return amountCents;
+        }
+
+        public long getReturnsInCents() {
+            return returnsCents;
+        }
+
+        public long getCompletionsInCents() {
+            return completionsCents;
+        }
+
+        public double getAmount() {
+            return amountCents / 100.0;
+        }
+
+        public double getReturns() {
+            return returnsCents / 100.0;
+        }
+
+        public double getCompletions() {
+            return completionsCents / 100.0;
+        }
+
+        @Override
+        public String toString() {
+            return "count: " + count + " amount: " + getAmount() + " returns: " + getReturns()
+                    + " completions: " + getCompletions();
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.data;
+
+import com.beanstream.api.ReportingAPI;
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.requests.Criteria;
+import com.google.gson.Gson;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes transaction records to a file as they are streamed from the Reporting
+ * API, so exports of any size run in constant memory:
+ * <pre>
+ * TransactionExporter.export(beanstream.reports(), startDate, endDate, null,
+ *         new File("october.csv.gz"), Format.CSV, Compression.GZIP);
+ * </pre>
+ * 
+ * Records are encoded straight into a direct buffer that is written to the
+ * file channel whenever it fills. Three formats are supported:
+ * <ul>
+ * <li>CSV - a header row with the json field names, then one row per record</li>
+ * <li>NDJSON - one json object per line, the same json the API returns</li>
+ * <li>COLUMNAR - a compact binary file where records are buffered in row
+ * groups and each group is written column by column, see writeRowGroup()</li>
+ * </ul>
+ * 
+ * When the query fails part way, export() aborts the exporter and deletes
+ * the file, so a partial export is never left looking like a whole one. Used
+ * as a RecordHandler of your own query, call abort() instead of close() when
+ * the query fails: a columnar file is then left without its row count and
+ * end marker, and is rejected by readers.
+ */
+public class TransactionExporter implements RecordHandler, Closeable {
+
+    public enum Format {
+        CSV, NDJSON, COLUMNAR
+    }
+
+    public enum Compression {
+        NONE, GZIP
+    }
+
+    /** "BSTX", written at the start and end of a columnar file */
+    public static final int COLUMNAR_MAGIC = 0x42535458;
+    public static final int COLUMNAR_VERSION = 1;
+    public static final int ROW_GROUP_SIZE = 4096;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Column[] COLUMNS = Column.values();
+
+    private final WritableByteChannel channel;
+    private final Format format;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = UTF8.newEncoder();
+    private final StringBuilder line = new StringBuilder(1024);
+    private final Gson gson = new Gson();
+    private long count;
+    private boolean closed;
+
+    // COLUMNAR row group buffers
+    private TransactionRecord[] rowGroup;
+    private int rowGroupSize;
+
+    /**
+     * Query every record matching the criteria and export it to the file.
+     * 
+     * @return the number of records exported
+     * @throws BeanstreamApiException if the query failed or the file could not
+     * be written, in which case the file is deleted
+     */
+    public static long export(ReportingAPI reports, Date startDate, Date endDate, Criteria[] searchCriteria,
+            File file, Format format, Compression compression) throws BeanstreamApiException {
+        TransactionExporter exporter;
+        try {
+            exporter = new TransactionExporter(file, format, compression);
+        } catch (IOException ex) {
+            file.delete();
+            throw new BeanstreamApiException(ex, "Could not create export file " + file);
+        }
+        try {
+            reports.query(startDate, endDate, searchCriteria, exporter);
+        } catch (BeanstreamApiException ex) {
+            discard(exporter, file, ex);
+            throw ex;
+        } catch (RuntimeException ex) {
+            discard(exporter, file, ex);
+            throw ex;
+        }
+        try {
+            exporter.close();
+        } catch (IOException ex) {
+            file.delete();
+            throw new BeanstreamApiException(ex, "Could not write export file " + file);
+        }
+        return exporter.getCount();
+    }
+
+    private static void discard(TransactionExporter exporter, File file, Exception failure) {
+        try {
+            exporter.abort();
+        } catch (IOException ex) {
+            failure.addSuppressed(ex);
+        }
+        file.delete();
+    }
+
+    public TransactionExporter(File file, Format format, Compression compression) throws IOException {
+        this(new FileOutputStream(file).getChannel(), format, compression);
+    }
+
+    /**
+     * @param channel the channel to write to, it is closed when the exporter
+     * is closed, or straight away if the exporter could not be created
+     */
+    public TransactionExporter(WritableByteChannel channel, Format format, Compression compression) throws IOException {
+        this.channel = compression == Compression.GZIP ? gzip(channel) : channel;
+        this.format = format;
+        try {
+            writeHeader();
+        } catch (IOException ex) {
+            closeAfter(this.channel, ex);
+            throw ex;
+        }
+    }
+
+    private static WritableByteChannel gzip(WritableByteChannel channel) throws IOException {
+        try {
+            OutputStream out = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            return Channels.newChannel(out);
+        } catch (IOException ex) {
+            closeAfter(channel, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Close after a failure, keeping the failure as the exception to throw.
+     */
+    private static void closeAfter(Closeable closeable, IOException failure) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            failure.addSuppressed(ex);
+        }
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean handle(TransactionRecord record) throws IOException {
+        if (closed) {
+            throw new IOException("Exporter is closed");
+        }
+        switch (format) {
+            case CSV:
+                line.setLength(0);
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    appendCsv(line, COLUMNS[i].value(record));
+                }
+                line.append("\r\n");
+                write(line);
+                break;
+            case NDJSON:
+                line.setLength(0);
+                gson.toJson(record, TransactionRecord.class, line);
+                line.append('\n');
+                write(line);
+                break;
+            case COLUMNAR:
+                rowGroup[rowGroupSize++] = record;
+                if (rowGroupSize == ROW_GROUP_SIZE) {
+                    writeRowGroup();
+                }
+                break;
+        }
+        count++;
+        return true;
+    }
+
+    /**
+     * Write out anything that is buffered, finish the file and close the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (format == Format.COLUMNAR) {
+                if (rowGroupSize > 0) {
+                    writeRowGroup();
+                }
+                ensure(16);
+                buffer.putInt(0); // a row group of 0 rows ends the file
+                buffer.putLong(count);
+                buffer.putInt(COLUMNAR_MAGIC);
+            }
+            flush();
+        } catch (IOException ex) {
+            closeAfter(channel, ex);
+            throw ex;
+        }
+        channel.close();
+    }
+
+    /**
+     * Close the channel without finishing the file, after the query failed.
+     * Nothing more is written, so a columnar file has no end marker.
+     */
+    public void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        rowGroup = null;
+        rowGroupSize = 0;
+        channel.close();
+    }
+
+    private void writeHeader() throws IOException {
+        switch (format) {
+            case CSV:
+                line.setLength(0);
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    line.append(COLUMNS[i].name());
+                }
+                line.append("\r\n");
+                write(line);
+                break;
+            case COLUMNAR:
+                rowGroup = new TransactionRecord[ROW_GROUP_SIZE];
+                ensure(12);
+                buffer.putInt(COLUMNAR_MAGIC);
+                buffer.putInt(COLUMNAR_VERSION);
+                buffer.putInt(COLUMNS.length);
+                for (Column column : COLUMNS) {
+                    ensure(1);
+                    buffer.put((byte) column.type);
+                    putString(column.name());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * A row group is the number of rows followed by each column in turn:
+     * ints as zig-zag varints, doubles as 8 bytes and strings as a varint of
+     * the length + 1 (0 for null) followed by the UTF-8 bytes.
+     */
+    private void writeRowGroup() throws IOException {
+        ensure(4);
+        buffer.putInt(rowGroupSize);
+        for (Column column : COLUMNS) {
+            for (int row = 0; row < rowGroupSize; row++) {
+                TransactionRecord record = rowGroup[row];
+                switch (column.type) {
+                    case Column.INT: {
+                        int value = ((Number) column.value(record)).intValue();
+                        putVarint((value << 1) ^ (value >> 31));
+                        break;
+                    }
+                    case Column.DOUBLE:
+                        ensure(8);
+                        buffer.putDouble(((Number) column.value(record)).doubleValue());
+                        break;
+                    default:
+                        putString((String) column.value(record));
+                        break;
+                }
+            }
+        }
+        for (int row = 0; row < rowGroupSize; row++) {
+            rowGroup[row] = null;
+        }
+        rowGroupSize = 0;
+    }
+
+    private void putVarint(int value) throws IOException {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void putString(String value) throws IOException {
+        if (value == null) {
+            putVarint(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        putVarint(bytes.length + 1);
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensure(1);
+            int n = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    private static void appendCsv(StringBuilder sb, Object value) {
+        if (value == null) {
+            return;
+        }
+        String s = value.toString();
+        boolean quote = false;
+        for (int i = 0; i < s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            sb.append(s);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private void write(CharSequence chars) throws IOException {
+        CharBuffer in = CharBuffer.wrap(chars);
+        while (true) {
+            CoderResult result = encoder.encode(in, buffer, false);
+            if (result.isOverflow()) {
+                flush();
+            } else if (result.isUnderflow()) {
+                return;
+            } else {
+                try {
+                    result.throwException();
+                } catch (CharacterCodingException ex) {
+                    throw new IOException("Could not encode transaction record", ex);
+                }
+            }
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * The exported fields, named after their json names.
+     */
+    private enum Column {
+        row_id(Column.INT), trn_id(Column.INT), trn_date_time, trn_type, trn_order_number,
+        trn_payment_method, trn_comments, trn_masked_card, trn_amount(Column.DOUBLE),
+        trn_returns(Column.DOUBLE), trn_completions(Column.DOUBLE), trn_voided, trn_response(Column.INT),
+        trn_card_type, trn_batch_no(Column.INT), trn_avs_result, trn_cvd_result(Column.INT),
+        trn_card_expiry, message_id, message_text, trn_card_owner, trn_ip, trn_approval_code,
+        trn_reference(Column.INT), b_name, b_email, b_phone, b_address1, b_address2, b_city,
+        b_province, b_postal, b_country, s_name, s_email, s_phone, s_address1, s_address2, s_city,
+        s_province, s_postal, s_country, ref1, ref2, ref3, ref4, ref5, product_name, product_id,
+        customer_code;
+
+        static final char STRING = 'S';
+        static final char INT = 'I';
+        static final char DOUBLE = 'D';
+
+        final char type;
+
+        Column() {
+            this(STRING);
+        }
+
+        Column(char type) {
+            this.type = type;
+        }
+
+        Object value(TransactionRecord r) {
+            switch (this) {
+                case row_id: return r.getRowId();
+                case trn_id: return r.getTransactionId();
+                case trn_date_time: return r.getDateTimeStr();
+                case trn_type: return r.getType();
+                case trn_order_number: return r.getOrderNumber();
+                case trn_payment_method: return r.getPaymentMethod();
+                case trn_comments: return r.getComments();
+                case trn_masked_card: return r.getMaskedCard();
+                case trn_amount: return r.getAmount();
+                case trn_returns: return r.getReturns();
+                case trn_completions: return r.getCompletions();
+                case trn_voided: return r.getVoided();
+                case trn_response: return r.getResponse();
+                case trn_card_type: return r.getCardType();
+                case trn_batch_no: return r.getBatchNumber();
+                case trn_avs_result: return r.getAVSResult();
+                case trn_cvd_result: return r.getCVDResult();
+                case trn_card_expiry: return r.getCardExpiry();
+                case message_id: return r.getMessageId();
+                case message_text: return r.getMessageText();
+                case trn_card_owner: return r.getCardOwner();
+                case trn_ip: return r.getIPAddress();
+                case trn_approval_code: return r.getApprovalCode();
+                case trn_reference: return r.getReference();
+                case b_name: return r.getBillingName();
+                case b_email: return r.getBillingEmail();
+                case b_phone: return r.getBillingPhone();
+                case b_address1: return r.getBillingAddress1();
+                case b_address2: return r.getBillingAddress2();
+                case b_city: return r.getBillingCity();
+                case b_province: return r.getBillingProvince();
+                case b_postal: return r.getBillingPostal();
+                case b_country: return r.getBillingCountry();
+                case s_name: return r.getShippingName();
+                case s_email: return r.getShippingEmail();
+                case s_phone: return r.getShippingPhone();
+                case s_address1: return r.getShippingAddress1();
+                case s_address2: return r.getShippingAddress2();
+                case s_city: return r.getShippingCity();
+                case s_province: return r.getShippingProvince();
+                case s_postal: return r.getShippingPostal();
+                case s_country: return r.getShippingCountry();
+                case ref1: return r.getRef1();
+                case ref2: return r.getRef2();
+                case ref3: return r.getRef3();
+                case ref4: return r.getRef4();
+                case ref5: return r.getRef5();
+                case product_name: return r.getProductName();
+                case product_id: return r.getProductId();
+                case customer_code: return r.getCustomerCode();
+                default: return null;
+            }
+        }
+    }
+}
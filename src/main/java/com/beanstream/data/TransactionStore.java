@@ -0,0 +1,496 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.data;
+
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.requests.Criteria;
+import com.beanstream.requests.Operators;
+import com.beanstream.requests.QueryFields;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An optional local, append-only store for TransactionRecords that have been
+ * pulled through the ReportingAPI. It lets you look transactions up again by
+ * order number, customer code, masked card number, authorization code or date
+ * without another round trip to the gateway.
+ * 
+ * Records are written to a single file as length-prefixed json and read back
+ * through memory-mapped segments. Secondary indexes are kept in memory and are
+ * rebuilt by scanning the file when the store is opened. If a transaction is
+ * appended more than once (e.g. after it was returned or completed) the latest
+ * copy wins.
+ * 
+ * The same Criteria used with ReportingAPI.query() can be evaluated locally,
+ * including StartWith prefix scans on the indexed fields:
+ * <pre>
+ * TransactionStore store = new TransactionStore(new File("transactions.db"));
+ * store.appendAll(beanstream.reports().query(start, end, 1, 1000, null));
+ * List&lt;TransactionRecord&gt; visa = store.query(null, null, new Criteria[]{
+ *     new Criteria(QueryFields.MaskedCardNumber, Operators.StartWith, "4030")});
+ * </pre>
+ * 
+ * A store is safe to share between threads.
+ */
+public class TransactionStore implements Closeable {
+
+    /** The fields that have a secondary index, the date is always indexed */
+    public static final QueryFields[] INDEXED_FIELDS = {
+        QueryFields.OrderNumber,
+        QueryFields.CustCode,
+        QueryFields.MaskedCardNumber,
+        QueryFields.AuthorizationCode
+    };
+
+    private static final int SEGMENT_SIZE = 1 << 28; // 256MB per mapped segment
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Gson gson = new Gson();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private volatile long size;
+
+    // transaction id -> offset of its latest copy
+    private final Map<Integer, Long> latest = new HashMap<Integer, Long>();
+    private final Map<QueryFields, TreeMap<String, Postings>> indexes
+            = new EnumMap<QueryFields, TreeMap<String, Postings>>(QueryFields.class);
+    private final TreeMap<Long, Postings> dateIndex = new TreeMap<Long, Postings>();
+
+    /**
+     * Open the store, creating the file if it does not exist. Any partially
+     * written record at the end of the file (from a crash during an append)
+     * is truncated.
+     * 
+     * @param file the file backing the store
+     * @throws IOException if the file cannot be opened or read
+     */
+    public TransactionStore(File file) throws IOException {
+        this.file = file;
+        for (QueryFields field : INDEXED_FIELDS) {
+            indexes.put(field, new TreeMap<String, Postings>());
+        }
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            load();
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of distinct transactions in the store
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return latest.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void append(TransactionRecord record) throws IOException {
+        appendAll(Collections.singletonList(record));
+    }
+
+    /**
+     * Append the records to the end of the store with a single write and
+     * index them.
+     */
+    public void appendAll(Collection<TransactionRecord> records) throws IOException {
+        if (records == null || records.isEmpty()) {
+            return;
+        }
+        List<byte[]> encoded = new ArrayList<byte[]>(records.size());
+        int total = 0;
+        for (TransactionRecord record : records) {
+            byte[] json = gson.toJson(record).getBytes(UTF8);
+            if (json.length > MAX_RECORD_SIZE) {
+                throw new IOException("Transaction " + record.getTransactionId() + " is too large to store");
+            }
+            encoded.add(json);
+            total += 4 + json.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for (byte[] json : encoded) {
+            buffer.putInt(json.length);
+            buffer.put(json);
+        }
+        buffer.flip();
+
+        lock.writeLock().lock();
+        try {
+            long position = size;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            long offset = size;
+            int i = 0;
+            for (TransactionRecord record : records) {
+                index(record, offset);
+                offset += 4 + encoded.get(i++).length;
+            }
+            size = position;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Force any appended records to disk.
+     */
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * @return the latest copy of the transaction, or null if it is not in the store
+     */
+    public TransactionRecord get(int transactionId) throws IOException {
+        lock.readLock().lock();
+        try {
+            Long offset = latest.get(transactionId);
+            return offset != null ? readRecord(offset) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find all transactions where the field equals the value.
+     */
+    public List<TransactionRecord> find(QueryFields field, String value) throws IOException {
+        return query(null, null, new Criteria[]{new Criteria(field, Operators.Equals, value)});
+    }
+
+    /**
+     * Search the store the same way ReportingAPI.query() searches the gateway.
+     * The most selective secondary index (or the date index) is used to find
+     * the candidate records, which are then checked against every criteria.
+     * 
+     * @param startDate only include transactions on or after this date, can be null
+     * @param endDate only include transactions on or before this date, can be null
+     * @param searchCriteria the criteria every record must match, can be null
+     * @return the matching records in the order they were appended
+     * @throws IOException if the store cannot be read
+     */
+    public List<TransactionRecord> query(Date startDate, Date endDate, Criteria[] searchCriteria) throws IOException {
+        if (startDate != null && endDate != null && endDate.compareTo(startDate) < 0) {
+            throw new IllegalArgumentException("End Date cannot be less than Start Date!");
+        }
+        long start = startDate != null ? startDate.getTime() : Long.MIN_VALUE;
+        long end = endDate != null ? endDate.getTime() : Long.MAX_VALUE;
+
+        lock.readLock().lock();
+        try {
+            Postings candidates = null;
+            if (searchCriteria != null) {
+                for (Criteria criteria : searchCriteria) {
+                    Postings postings = lookup(criteria);
+                    if (postings != null && (candidates == null || postings.size < candidates.size)) {
+                        candidates = postings;
+                    }
+                }
+            }
+            if (startDate != null || endDate != null) {
+                Postings byDate = union(dateIndex.subMap(start, true, end, true).values());
+                if (candidates == null || byDate.size < candidates.size) {
+                    candidates = byDate;
+                }
+            }
+            if (candidates == null) {
+                candidates = new Postings();
+                for (Long offset : latest.values()) {
+                    candidates.add(offset);
+                }
+            }
+            candidates.sort();
+
+            List<TransactionRecord> results = new ArrayList<TransactionRecord>();
+            for (int i = 0; i < candidates.size; i++) {
+                long offset = candidates.values[i];
+                TransactionRecord record = readRecord(offset);
+                if (!isLatest(record, offset)) {
+                    continue;
+                }
+                if (startDate != null || endDate != null) {
+                    Long time = timestamp(record);
+                    if (time == null || time < start || time > end) {
+                        continue;
+                    }
+                }
+                if (CriteriaMatcher.matchesAll(record, searchCriteria)) {
+                    results.add(record);
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            synchronized (segments) {
+                segments.clear();
+            }
+            raf.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The offsets of the records an indexed criteria could match, or null if
+     * the criteria is not on an indexed field.
+     */
+    private Postings lookup(Criteria criteria) {
+        if (criteria == null || criteria.getValue() == null || criteria.getOperator() == null) {
+            return null;
+        }
+        TreeMap<String, Postings> index = indexes.get(criteria.getField());
+        if (index == null) {
+            return null;
+        }
+        String value = criteria.getValue();
+        switch (criteria.getOperator()) {
+            case Equals: {
+                Postings postings = index.get(value);
+                return postings != null ? postings.copy() : new Postings();
+            }
+            case StartWith:
+                return union(index.subMap(value, true, value + Character.MAX_VALUE, true).values());
+            case LessThan:
+                return union(index.headMap(value, false).values());
+            case LessThanEqual:
+                return union(index.headMap(value, true).values());
+            case GreaterThan:
+                return union(index.tailMap(value, false).values());
+            case GreaterThanEqual:
+                return union(index.tailMap(value, true).values());
+            default:
+                return null;
+        }
+    }
+
+    private void index(TransactionRecord record, long offset) {
+        latest.put(record.getTransactionId(), offset);
+        for (QueryFields field : INDEXED_FIELDS) {
+            Object value = CriteriaMatcher.getFieldValue(record, field);
+            if (value != null) {
+                postings(indexes.get(field), value.toString()).add(offset);
+            }
+        }
+        Long time = timestamp(record);
+        if (time != null) {
+            postings(dateIndex, time).add(offset);
+        }
+    }
+
+    private boolean isLatest(TransactionRecord record, long offset) {
+        Long current = latest.get(record.getTransactionId());
+        return current != null && current == offset;
+    }
+
+    private static <K> Postings postings(NavigableMap<K, Postings> index, K key) {
+        Postings postings = index.get(key);
+        if (postings == null) {
+            postings = new Postings();
+            index.put(key, postings);
+        }
+        return postings;
+    }
+
+    private static Postings union(Collection<Postings> all) {
+        Postings union = new Postings();
+        for (Postings postings : all) {
+            union.addAll(postings);
+        }
+        return union;
+    }
+
+    private static Long timestamp(TransactionRecord record) {
+        if (record.getDateTimeStr() == null) {
+            return null;
+        }
+        try {
+            return record.getDateTime().getTime();
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Scan the file, rebuilding the indexes and dropping a torn record at the end.
+     */
+    private void load() throws IOException {
+        long fileSize = channel.size();
+        size = fileSize;
+        long offset = 0;
+        while (offset + 4 <= fileSize) {
+            int length = ByteBuffer.wrap(read(offset, 4)).getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || offset + 4 + length > fileSize) {
+                break;
+            }
+            TransactionRecord record;
+            try {
+                record = decode(read(offset + 4, length));
+            } catch (JsonParseException ex) {
+                break;
+            }
+            if (record == null) {
+                break;
+            }
+            index(record, offset);
+            offset += 4 + length;
+        }
+        if (offset < fileSize) {
+            Logger.getLogger(TransactionStore.class.getName()).log(Level.WARNING,
+                    "Truncating {0} bytes of incomplete data at the end of {1}",
+                    new Object[]{fileSize - offset, file});
+            synchronized (segments) {
+                segments.clear();
+            }
+            channel.truncate(offset);
+        }
+        size = offset;
+    }
+
+    private TransactionRecord readRecord(long offset) throws IOException {
+        int length = ByteBuffer.wrap(read(offset, 4)).getInt();
+        return decode(read(offset + 4, length));
+    }
+
+    private TransactionRecord decode(byte[] json) {
+        return gson.fromJson(new String(json, UTF8), TransactionRecord.class);
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        byte[] dst = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long pos = position + copied;
+            int index = (int) (pos / SEGMENT_SIZE);
+            int segmentOffset = (int) (pos % SEGMENT_SIZE);
+            ByteBuffer segment = segment(index, segmentOffset).duplicate();
+            segment.position(segmentOffset);
+            int n = Math.min(length - copied, segment.remaining());
+            segment.get(dst, copied, n);
+            copied += n;
+        }
+        return dst;
+    }
+
+    /**
+     * The mapped segment at the index, remapped if the file has grown past
+     * the end of the current mapping.
+     */
+    private MappedByteBuffer segment(int index, int segmentOffset) throws IOException {
+        synchronized (segments) {
+            MappedByteBuffer segment = index < segments.size() ? segments.get(index) : null;
+            if (segment == null || segment.capacity() <= segmentOffset) {
+                long start = (long) index * SEGMENT_SIZE;
+                long length = Math.min(SEGMENT_SIZE, size - start);
+                if (length <= segmentOffset) {
+                    throw new IOException("Read past the end of " + file);
+                }
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                while (segments.size() <= index) {
+                    segments.add(null);
+                }
+                segments.set(index, segment);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * A growable list of record offsets.
+     */
+    private static class Postings {
+        long[] values = new long[4];
+        int size;
+
+        void add(long offset) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = offset;
+        }
+
+        void addAll(Postings other) {
+            if (size + other.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(size + other.size, values.length * 2));
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        Postings copy() {
+            Postings copy = new Postings();
+            copy.addAll(this);
+            return copy;
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+    }
+}
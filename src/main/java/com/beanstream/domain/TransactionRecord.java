@@ -38,7 +38,7 @@ public class TransactionRecord
     @SerializedName("row_id") private int rowId;
     @SerializedName("trn_id") private int transactionId;
     @SerializedName("trn_date_time") private String dateTimeStr;
-    private Date dateTime;
+    private transient Date dateTime;
     @SerializedName("trn_type") private String type;
     @SerializedName("trn_order_number") private String orderNumber;
     @SerializedName("trn_payment_method") private String paymentMethod;
@@ -47,6 +47,8 @@ package com.beanstream.exceptions;
 ///
 /// </summary>
 import com.beanstream.responses.BeanstreamResponse;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import org.apache.http.HttpStatus;
 
 /**
@@ -60,7 +62,11 @@ public class BeanstreamApiException extends Exception {
     private final int code;
     private final int category;
     private final String message;
+    private transient BeanstreamResponse response;
+    private String details;
+    private final boolean hasDetails;
     private final int httpStatusCode;
+    private String fullMessage;
 
     private static final long serialVersionUID = 1L;
 
@@ -68,6 +74,40 @@ public class BeanstreamApiException extends Exception {
         this.code = code;
         this.category = category;
         this.message = message;
+        this.details = null;
+        this.hasDetails = false;
+        this.httpStatusCode = httpStatusCode;
+    }
+
+    /**
+     * The message is only joined with the details when it is asked for, and
+     * without a writable stack trace the exception skips fillInStackTrace,
+     * which is most of the cost of creating it.
+     */
+    protected BeanstreamApiException(int code, int category, String message, String details,
+            int httpStatusCode, boolean writableStackTrace) {
+        super(null, null, false, writableStackTrace);
+        this.code = code;
+        this.category = category;
+        this.message = message;
+        this.details = details;
+        this.hasDetails = true;
+        this.httpStatusCode = httpStatusCode;
+    }
+
+    /**
+     * The details are only read out of the response when the message or
+     * details are asked for, which a caller that just checks the type or
+     * code of the exception never does.
+     */
+    protected BeanstreamApiException(int code, int category, String message, BeanstreamResponse response,
+            int httpStatusCode, boolean writableStackTrace) {
+        super(null, null, false, writableStackTrace);
+        this.code = code;
+        this.category = category;
+        this.message = message;
+        this.response = response;
+        this.hasDetails = true;
         this.httpStatusCode = httpStatusCode;
     }
 
@@ -77,6 +117,8 @@ public class BeanstreamApiException extends Exception {
         this.category = -1;
         this.httpStatusCode = -1;
         this.message = message;
+        this.details = null;
+        this.hasDetails = false;
     }
 
     public static BeanstreamApiException getMappedException(int httpStatusCode) {
@@ -84,37 +126,48 @@ public class BeanstreamApiException extends Exception {
     }
 
     public static BeanstreamApiException getMappedException(int httpStatusCode, BeanstreamResponse response) {
+        return getMappedException(httpStatusCode, response, false);
+    }
+
+    /**
+     * @param stacklessDeclines true to create declines (402) and rejected
+     * requests (400) without a stack trace. They are expected outcomes rather
+     * than bugs, and filling in the stack trace is most of their cost.
+     */
+    public static BeanstreamApiException getMappedException(int httpStatusCode, BeanstreamResponse response,
+            boolean stacklessDeclines) {
 
         int code = response.getCode();
         int category = response.getCategory();
         String message = response.getMessage();
-        String details = response.getDetails();
-        message = message + ", details: " + details;
+        // declines and rejected requests are expected, so they can skip the stack trace
+        boolean writable = !stacklessDeclines || (httpStatusCode != HttpStatus.SC_PAYMENT_REQUIRED
+                && httpStatusCode != HttpStatus.SC_BAD_REQUEST);
 
         switch (httpStatusCode) {
             case HttpStatus.SC_MOVED_TEMPORARILY: { // 302
-                return new RedirectionException(code, category, message, httpStatusCode); // Used for redirection response in 3DS, Masterpass and Interac Online requests
+                return new RedirectionException(code, category, message, response, httpStatusCode, writable); // Used for redirection response in 3DS, Masterpass and Interac Online requests
             }
             case HttpStatus.SC_BAD_REQUEST: { // 400
-                return new InvalidRequestException(code, category, message, httpStatusCode); // Often missing a required parameter
+                return new InvalidRequestException(code, category, message, response, httpStatusCode, writable); // Often missing a required parameter
             }
             case HttpStatus.SC_UNAUTHORIZED: { // 401
-                return new UnauthorizedException(code, category, message, httpStatusCode); // Authentication exception
+                return new UnauthorizedException(code, category, message, response, httpStatusCode, writable); // Authentication exception
             }
             case HttpStatus.SC_PAYMENT_REQUIRED: { // 402
-                return new BusinessRuleException(code, category, message, httpStatusCode); // Request failed business requirements or rejected by processor/bank
+                return new BusinessRuleException(code, category, message, response, httpStatusCode, writable); // Request failed business requirements or rejected by processor/bank
             }
             case HttpStatus.SC_FORBIDDEN: { // 403
-                return new ForbiddenException(code, category, message, httpStatusCode); // Authorization failure
+                return new ForbiddenException(code, category, message, response, httpStatusCode, writable); // Authorization failure
             }
             case HttpStatus.SC_METHOD_NOT_ALLOWED: { // 405
-                return new InvalidRequestException(code, category, message, httpStatusCode); // Sending the wrong HTTP Method
+                return new InvalidRequestException(code, category, message, response, httpStatusCode, writable); // Sending the wrong HTTP Method
             }
             case HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE: { // 415
-                return new InvalidRequestException(code, category, message, httpStatusCode); // Sending an incorrect Content-Type
+                return new InvalidRequestException(code, category, message, response, httpStatusCode, writable); // Sending an incorrect Content-Type
             }
             default: {
-                return new InternalServerException(code, category, message, httpStatusCode);
+                return new InternalServerException(code, category, message, response, httpStatusCode, writable);
             }
 
         }
@@ -147,18 +200,41 @@ public class BeanstreamApiException extends Exception {
         return "There was an error processing your request. Please try again or use a different card.";
     }
 
+    /**
+     * @return the details the gateway gave with the error as raw json,
+     * usually the fields that failed validation, or null if there are none
+     */
+    public String getDetails() {
+        String result = details;
+        if (result == null && response != null) {
+            result = response.getDetails();
+            details = result;
+        }
+        return result;
+    }
+
     @Override
     public String getMessage() {
-        return message;
+        if (!hasDetails)
+            return message;
+        if (fullMessage == null)
+            fullMessage = message + ", details: " + getDetails();
+        return fullMessage;
     }
 
     @Override
     public String toString() {
-        return this.getClass().getName()+" code: "+code+" category: "+category+" message: "+message;
+        return this.getClass().getName()+" code: "+code+" category: "+category+" message: "+getMessage();
     }
     
     public int getHttpStatusCode() {
         return httpStatusCode;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // the response isn't serializable, so take the details out of it first
+        getDetails();
+        out.defaultWriteObject();
+    }
+
 }
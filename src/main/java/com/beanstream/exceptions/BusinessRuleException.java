@@ -1,5 +1,7 @@
 package com.beanstream.exceptions;
 
+import com.beanstream.responses.BeanstreamResponse;
+
 /**
  * Created by michael on 9/16/14.
  */
@@ -14,4 +16,14 @@ public class BusinessRuleException extends BeanstreamApiException {
     public BusinessRuleException(int code, int category, String message, int httpStatusCode) {
         super(code, category, message, httpStatusCode);
     }
+
+    public BusinessRuleException(int code, int category, String message, BeanstreamResponse response,
+            int httpStatusCode, boolean writableStackTrace) {
+        super(code, category, message, response, httpStatusCode, writableStackTrace);
+    }
+
+    public BusinessRuleException(int code, int category, String message, String details,
+            int httpStatusCode, boolean writableStackTrace) {
+        super(code, category, message, details, httpStatusCode, writableStackTrace);
+    }
 }
\ No newline at end of file
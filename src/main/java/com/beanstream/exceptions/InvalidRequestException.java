@@ -1,5 +1,7 @@
 package com.beanstream.exceptions;
 
+import com.beanstream.responses.BeanstreamResponse;
+
 /**
  * Created by michael on 9/16/14.
  */
@@ -19,6 +21,16 @@ public class InvalidRequestException extends BeanstreamApiException {
     public InvalidRequestException(int code, int category, String message, int httpStatusCode) {
         super(code, category, message, httpStatusCode);
     }
+
+    public InvalidRequestException(int code, int category, String message, BeanstreamResponse response,
+            int httpStatusCode, boolean writableStackTrace) {
+        super(code, category, message, response, httpStatusCode, writableStackTrace);
+    }
+
+    public InvalidRequestException(int code, int category, String message, String details,
+            int httpStatusCode, boolean writableStackTrace) {
+        super(code, category, message, details, httpStatusCode, writableStackTrace);
+    }
     
     @Override
     public boolean isUserError() {
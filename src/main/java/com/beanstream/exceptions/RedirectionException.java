@@ -1,5 +1,7 @@
 package com.beanstream.exceptions;
 
+import com.beanstream.responses.BeanstreamResponse;
+
 /**
  * Created by michael on 9/16/14.
  */
@@ -13,4 +15,9 @@ public class RedirectionException extends BeanstreamApiException {
     public RedirectionException(int code, int category, String message, int httpStatusCode) {
         super(code, category, message, httpStatusCode);
     }
+
+    public RedirectionException(int code, int category, String message, BeanstreamResponse response,
+            int httpStatusCode, boolean writableStackTrace) {
+        super(code, category, message, response, httpStatusCode, writableStackTrace);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,21 @@
+package com.beanstream.exceptions;
+
+/// <summary>
+/// Http status codes:
+///  429 - Too Many Requests - The request was not sent because a client side limit was reached.
+///
+/// This is thrown before the request reaches Beanstream, when the rate limit configured for the
+/// API has no capacity left within the allowed wait time. The request can be tried again later.
+/// </summary>
+public class TooManyRequestsException extends BeanstreamApiException {
+
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+    public TooManyRequestsException(String message) {
+        super(-1, 4, message, SC_TOO_MANY_REQUESTS);
+    }
+
+    public TooManyRequestsException(int code, int category, String message, int httpStatusCode) {
+        super(code, category, message, httpStatusCode);
+    }
+}
@@ -0,0 +1,301 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.reactive;
+
+import com.beanstream.Gateway;
+import com.beanstream.domain.Address;
+import com.beanstream.domain.Card;
+import com.beanstream.domain.PaymentProfile;
+import com.beanstream.domain.Token;
+import com.beanstream.domain.Transaction;
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.requests.CardPaymentRequest;
+import com.beanstream.requests.Criteria;
+import com.beanstream.requests.ProfilePaymentRequest;
+import com.beanstream.requests.TokenPaymentRequest;
+import com.beanstream.responses.PaymentResponse;
+import com.beanstream.responses.ProfileResponse;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import org.reactivestreams.Publisher;
+
+/**
+ * A Reactive Streams face on the Payments, Profiles and Reporting APIs of a
+ * Gateway, for services that cannot block their own threads.
+ * 
+ * Every call returns a cold Publisher. Nothing is sent until a subscriber
+ * requests, and the blocking call is then made on the executor: by default
+ * the one in the Configuration. Single calls publish one result.
+ * query() publishes transaction records page by page as they are requested.
+ * Calls not covered here can be wrapped with defer().
+ * 
+ * The publishers follow the org.reactivestreams interfaces, which
+ * java.util.concurrent.Flow mirrors, so they can be handed to Reactor, RxJava
+ * or a FlowAdapters bridge directly.
+ * 
+ * <pre>
+ * ReactiveGateway reactive = new ReactiveGateway(beanstream);
+ * Flux.from(reactive.makePayment(paymentRequest)).subscribe(...);
+ * </pre>
+ */
+public class ReactiveGateway {
+
+    /**
+     * The number of records fetched in one query by default.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final Gateway gateway;
+    private final Executor executor;
+
+    /**
+     * @param gateway the gateway whose APIs are called
+     */
+    public ReactiveGateway(Gateway gateway) {
+        this(gateway, gateway.getConfiguration().getExecutor());
+    }
+
+    /**
+     * @param gateway the gateway whose APIs are called
+     * @param executor makes the blocking calls
+     */
+    public ReactiveGateway(Gateway gateway, Executor executor) {
+        this.gateway = gateway;
+        this.executor = executor;
+    }
+
+    /**
+     * Publish the result of any blocking call, made on the executor when it
+     * is first requested.
+     */
+    public <T> Publisher<T> defer(Callable<T> call) {
+        return new SinglePublisher<T>(call, executor);
+    }
+
+    // Payments
+
+    /**
+     * Make a card payment.
+     */
+    public Publisher<PaymentResponse> makePayment(final CardPaymentRequest paymentRequest) {
+        return defer(new Callable<PaymentResponse>() {
+            @Override
+            public PaymentResponse call() throws BeanstreamApiException {
+                return gateway.payments().makePayment(paymentRequest);
+            }
+        });
+    }
+
+    /**
+     * Make a payment with a single-use Legato token.
+     */
+    public Publisher<PaymentResponse> makePayment(final TokenPaymentRequest paymentRequest) {
+        return defer(new Callable<PaymentResponse>() {
+            @Override
+            public PaymentResponse call() throws BeanstreamApiException {
+                return gateway.payments().makePayment(paymentRequest);
+            }
+        });
+    }
+
+    /**
+     * Make a payment with a card stored on a payment profile.
+     */
+    public Publisher<PaymentResponse> makePayment(final ProfilePaymentRequest paymentRequest) {
+        return defer(new Callable<PaymentResponse>() {
+            @Override
+            public PaymentResponse call() throws BeanstreamApiException {
+                return gateway.payments().makePayment(paymentRequest);
+            }
+        });
+    }
+
+    /**
+     * Pre-authorize a card payment.
+     */
+    public Publisher<PaymentResponse> preAuth(final CardPaymentRequest paymentRequest) {
+        return defer(new Callable<PaymentResponse>() {
+            @Override
+            public PaymentResponse call() throws BeanstreamApiException {
+                return gateway.payments().preAuth(paymentRequest);
+            }
+        });
+    }
+
+    /**
+     * Complete a pre-authorized payment.
+     */
+    public Publisher<PaymentResponse> preAuthCompletion(final String paymentId, final double amount) {
+        return defer(new Callable<PaymentResponse>() {
+            @Override
+            public PaymentResponse call() throws BeanstreamApiException {
+                return gateway.payments().preAuthCompletion(paymentId, amount);
+            }
+        });
+    }
+
+    /**
+     * Void a payment.
+     */
+    public Publisher<PaymentResponse> voidPayment(final String paymentId, final double amount) {
+        return defer(new Callable<PaymentResponse>() {
+            @Override
+            public PaymentResponse call() throws BeanstreamApiException {
+                return gateway.payments().voidPayment(paymentId, amount);
+            }
+        });
+    }
+
+    /**
+     * Return a payment.
+     */
+    public Publisher<PaymentResponse> returnPayment(final String paymentId, final double amount) {
+        return defer(new Callable<PaymentResponse>() {
+            @Override
+            public PaymentResponse call() throws BeanstreamApiException {
+                return gateway.payments().returnPayment(paymentId, amount);
+            }
+        });
+    }
+
+    // Profiles
+
+    /**
+     * Create a payment profile with a card.
+     */
+    public Publisher<ProfileResponse> createProfile(final Card card, final Address billing) {
+        return defer(new Callable<ProfileResponse>() {
+            @Override
+            public ProfileResponse call() throws BeanstreamApiException {
+                return gateway.profiles().createProfile(card, billing);
+            }
+        });
+    }
+
+    /**
+     * Create a payment profile with a single-use Legato token.
+     */
+    public Publisher<ProfileResponse> createProfile(final Token token, final Address billing) {
+        return defer(new Callable<ProfileResponse>() {
+            @Override
+            public ProfileResponse call() throws BeanstreamApiException {
+                return gateway.profiles().createProfile(token, billing);
+            }
+        });
+    }
+
+    /**
+     * Get a payment profile.
+     */
+    public Publisher<PaymentProfile> getProfileById(final String profileId) {
+        return defer(new Callable<PaymentProfile>() {
+            @Override
+            public PaymentProfile call() throws BeanstreamApiException {
+                return gateway.profiles().getProfileById(profileId);
+            }
+        });
+    }
+
+    /**
+     * Update a payment profile.
+     */
+    public Publisher<ProfileResponse> updateProfile(final PaymentProfile profile) {
+        return defer(new Callable<ProfileResponse>() {
+            @Override
+            public ProfileResponse call() throws BeanstreamApiException {
+                return gateway.profiles().updateProfile(profile);
+            }
+        });
+    }
+
+    /**
+     * Delete a payment profile.
+     */
+    public Publisher<ProfileResponse> deleteProfileById(final String profileId) {
+        return defer(new Callable<ProfileResponse>() {
+            @Override
+            public ProfileResponse call() throws BeanstreamApiException {
+                return gateway.profiles().deleteProfileById(profileId);
+            }
+        });
+    }
+
+    /**
+     * Get the cards on a payment profile, published as one list.
+     */
+    public Publisher<List<Card>> getCards(final String profileId) {
+        return defer(new Callable<List<Card>>() {
+            @Override
+            public List<Card> call() throws BeanstreamApiException {
+                return gateway.profiles().getCards(profileId);
+            }
+        });
+    }
+
+    /**
+     * Get one card on a payment profile.
+     */
+    public Publisher<Card> getCard(final String profileId, final String cardId) {
+        return defer(new Callable<Card>() {
+            @Override
+            public Card call() throws BeanstreamApiException {
+                return gateway.profiles().getCard(profileId, cardId);
+            }
+        });
+    }
+
+    // Reporting
+
+    /**
+     * Get a single transaction.
+     */
+    public Publisher<Transaction> getTransaction(final String paymentId) {
+        return defer(new Callable<Transaction>() {
+            @Override
+            public Transaction call() throws BeanstreamApiException {
+                return gateway.reports().getTransaction(paymentId);
+            }
+        });
+    }
+
+    /**
+     * Query every transaction between the two dates that matches the criteria,
+     * DEFAULT_PAGE_SIZE records at a time as they are requested.
+     */
+    public Publisher<TransactionRecord> query(Date startDate, Date endDate, Criteria[] searchCriteria) {
+        return query(startDate, endDate, searchCriteria, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Query every transaction between the two dates that matches the criteria.
+     * 
+     * @param pageSize the most records to fetch in one query, up to 1000
+     * @see TransactionPublisher
+     */
+    public Publisher<TransactionRecord> query(Date startDate, Date endDate, Criteria[] searchCriteria, int pageSize) {
+        return new TransactionPublisher(gateway.reports(), startDate, endDate, searchCriteria, pageSize, executor);
+    }
+}
@@ -0,0 +1,152 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.reactive;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Publishes the result of one blocking SDK call. The call is made on the
+ * executor when the subscriber first requests, and again for every
+ * subscriber, so nothing is sent until someone asks for it.
+ * 
+ * The subscriber gets the result and onComplete, or just onComplete if the
+ * call returned null, or onError with the exception the call threw. A
+ * request for less than one item is answered with onError instead, whenever
+ * it is made before the subscription ends.
+ * 
+ * @param <T> the type of the result
+ */
+public class SinglePublisher<T> implements Publisher<T> {
+
+    private final Callable<T> call;
+    private final Executor executor;
+
+    /**
+     * @param call the blocking call
+     * @param executor runs the call
+     */
+    public SinglePublisher(Callable<T> call, Executor executor) {
+        if (call == null || executor == null)
+            throw new NullPointerException("Call and executor cannot be null!");
+        this.call = call;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("Subscriber cannot be null!");
+        subscriber.onSubscribe(new CallSubscription<T>(subscriber, call, executor));
+    }
+
+    private static class CallSubscription<T> implements Subscription, Runnable {
+
+        private static final int NEW = 0;
+        private static final int CALLING = 1;
+        private static final int EMITTING = 2;
+        private static final int DONE = 3;
+
+        private final Subscriber<? super T> subscriber;
+        private final Callable<T> call;
+        private final Executor executor;
+        // whoever moves it on signals next, so signals never overlap
+        private final AtomicInteger state = new AtomicInteger(NEW);
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+
+        CallSubscription(Subscriber<? super T> subscriber, Callable<T> call, Executor executor) {
+            this.subscriber = subscriber;
+            this.call = call;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalid(new IllegalArgumentException("Must request a positive number of items, not " + n));
+                return;
+            }
+            if (!state.compareAndSet(NEW, CALLING))
+                return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                if (state.compareAndSet(CALLING, DONE))
+                    subscriber.onError(ex);
+            }
+        }
+
+        private void invalid(Throwable error) {
+            while (!cancelled) {
+                int current = state.get();
+                if (current == DONE)
+                    return;
+                if (current == EMITTING) {
+                    // the result is being delivered, onError takes the place of onComplete
+                    invalidRequest = error;
+                    return;
+                }
+                if (state.compareAndSet(current, DONE)) {
+                    cancelled = true;
+                    subscriber.onError(error);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void run() {
+            T result;
+            try {
+                result = call.call();
+            } catch (Exception ex) {
+                if (state.compareAndSet(CALLING, DONE) && !cancelled)
+                    subscriber.onError(ex);
+                return;
+            }
+            if (!state.compareAndSet(CALLING, EMITTING) || cancelled)
+                return;
+            if (result != null)
+                subscriber.onNext(result);
+            state.set(DONE);
+            Throwable error = invalidRequest;
+            if (cancelled)
+                return;
+            if (error != null)
+                subscriber.onError(error);
+            else
+                subscriber.onComplete();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.reactive;
+
+import com.beanstream.api.ReportingAPI;
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.requests.Criteria;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Publishes every transaction between two dates that matches the criteria.
+ * Pages are only fetched from the Reporting API when the subscriber has
+ * asked for more records than are left over from the last page. Each query
+ * asks for a whole page, however few records are wanted, and the records not
+ * requested yet are kept for the next requests. A slow subscriber therefore
+ * slows down the queries, and only one page is held at a time.
+ * 
+ * Each subscriber gets its own run of queries. Pages are fetched, and
+ * records delivered, on the executor.
+ */
+public class TransactionPublisher implements Publisher<TransactionRecord> {
+
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private final ReportingAPI reports;
+    private final Date startDate;
+    private final Date endDate;
+    private final Criteria[] searchCriteria;
+    private final int pageSize;
+    private final Executor executor;
+
+    /**
+     * @param reports the API to query
+     * @param startDate the start of the date range
+     * @param endDate the end of the date range
+     * @param searchCriteria the search criteria, can be null
+     * @param pageSize the most records to fetch in one query, up to 1000
+     * @param executor fetches the pages and delivers the records
+     */
+    public TransactionPublisher(ReportingAPI reports, Date startDate, Date endDate,
+            Criteria[] searchCriteria, int pageSize, Executor executor) {
+        if (endDate == null || startDate == null)
+            throw new IllegalArgumentException("Start Date and End Date cannot be null!");
+        if (endDate.compareTo(startDate) < 0)
+            throw new IllegalArgumentException("End Date cannot be less than Start Date!");
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE + "!");
+        this.reports = reports;
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.searchCriteria = searchCriteria;
+        this.pageSize = pageSize;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super TransactionRecord> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("Subscriber cannot be null!");
+        subscriber.onSubscribe(new PageSubscription(subscriber));
+    }
+
+    private class PageSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super TransactionRecord> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        // only one drain runs at a time, the count says if it has to go round again
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+
+        // only touched by the drain
+        private final ArrayDeque<TransactionRecord> page = new ArrayDeque<TransactionRecord>();
+        private int nextRow = 1;
+        private boolean lastPage;
+        private boolean done;
+
+        PageSubscription(Subscriber<? super TransactionRecord> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Must request a positive number of items, not " + n);
+            } else {
+                long current, next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    cancelled = true;
+                    subscriber.onError(ex);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            while (!cancelled && !done) {
+                if (invalidRequest != null) {
+                    fail(invalidRequest);
+                    return;
+                }
+                long demand = requested.get();
+                if (demand == 0)
+                    return;
+                if (page.isEmpty()) {
+                    if (lastPage) {
+                        done = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    List<TransactionRecord> records;
+                    try {
+                        records = reports.query(startDate, endDate, nextRow, nextRow + pageSize - 1, searchCriteria);
+                    } catch (Exception ex) {
+                        fail(ex);
+                        return;
+                    }
+                    int count = records != null ? records.size() : 0;
+                    if (count > 0)
+                        page.addAll(records);
+                    nextRow += pageSize;
+                    lastPage = count < pageSize;
+                    continue;
+                }
+                subscriber.onNext(page.poll());
+                if (demand != Long.MAX_VALUE)
+                    requested.decrementAndGet();
+            }
+        }
+
+        private void fail(Throwable error) {
+            done = true;
+            page.clear();
+            if (!cancelled)
+                subscriber.onError(error);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.responses;
+
+import com.beanstream.exceptions.BeanstreamApiException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The outcome of a call made for many IDs at once: a result for each ID that
+ * succeeded and the exception for each one that failed. Both maps keep the
+ * order the IDs were given in.
+ * 
+ * @param <T> the type of each result
+ */
+public class BatchResult<T> {
+
+    private final Map<String, T> results;
+    private final Map<String, BeanstreamApiException> errors;
+
+    public BatchResult(Map<String, T> results, Map<String, BeanstreamApiException> errors) {
+        this.results = Collections.unmodifiableMap(results);
+        this.errors = Collections.unmodifiableMap(errors);
+    }
+
+    /**
+     * @return the result for each ID that succeeded
+     */
+    public Map<String, T> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the exception for each ID that failed
+     */
+    public Map<String, BeanstreamApiException> getErrors() {
+        return errors;
+    }
+
+    public T get(String id) {
+        return results.get(id);
+    }
+
+    public BeanstreamApiException getError(String id) {
+        return errors.get(id);
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+}
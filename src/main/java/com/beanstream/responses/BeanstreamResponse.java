@@ -15,7 +15,10 @@ public class BeanstreamResponse {
     private final int category;
     private final String message;
     private final String reference;
-    private final String details;
+    private String details;
+    private final String detailsSource;
+    private final int detailsStart;
+    private final int detailsEnd;
     private final int httpStatusCode;
     private final String responseBody;
     private final MediaType mediaType;
@@ -24,11 +27,24 @@ public class BeanstreamResponse {
 
     BeanstreamResponse(int code, int category, String message, String reference, String details, int httpStatusCode,
                        String responseBody, MediaType mediaType) {
+        this(code, category, message, reference, details, null, 0, 0, httpStatusCode, responseBody, mediaType);
+    }
+
+    /**
+     * The details can be given as a slice of a larger string, which is only
+     * cut out when getDetails is first called.
+     */
+    BeanstreamResponse(int code, int category, String message, String reference, String details,
+                       String detailsSource, int detailsStart, int detailsEnd, int httpStatusCode,
+                       String responseBody, MediaType mediaType) {
         this.code = code;
         this.category = category;
         this.message = message;
         this.reference = reference;
-        this.details = details;
+        this.details = detailsSource != null ? null : details;
+        this.detailsSource = detailsSource;
+        this.detailsStart = detailsStart;
+        this.detailsEnd = detailsEnd;
         this.httpStatusCode = httpStatusCode;
         this.responseBody = responseBody;
         this.mediaType = mediaType;
@@ -53,6 +69,11 @@ public class BeanstreamResponse {
                 .build();
     }
 
+    /**
+     * @deprecated transports hand back a status, content type and body; use
+     * fromPayload, which doesn't depend on Apache HttpClient
+     */
+    @Deprecated
     public static BeanstreamResponse fromHttpResponse(HttpResponse http) {
 
         int httpStatusCode = http.getStatusLine().getStatusCode();
@@ -69,11 +90,27 @@ public class BeanstreamResponse {
                     .build();
         }
         
-        String contentType = httpEntity.getContentType() != null ? httpEntity.getContentType().getValue() : null;
-        MediaType responseType = contentType != null ? MediaType.parse(contentType) : null;
+        String contentType = httpEntity != null && httpEntity.getContentType() != null ? httpEntity.getContentType().getValue() : null;
+        return fromPayload(httpStatusCode, contentType, jsonPayload);
+    }
+
+    /**
+     * Build the response from the status, content type and body of an HTTP
+     * response, whichever transport it was received with.
+     */
+    public static BeanstreamResponse fromPayload(int httpStatusCode, String contentType, String jsonPayload) {
+
+        MediaType responseType = null;
+        if (contentType != null) {
+            try {
+                responseType = MediaType.parse(contentType);
+            } catch (IllegalArgumentException e) {
+                // not a valid media type, so not json either
+            }
+        }
 
         // If the payload isn't json, or we got a 2XX response, just populate the responseBody field with the payload
-        if (responseType == null || responseType != MediaType.JSON_UTF_8 || (httpStatusCode >= 200 && httpStatusCode < 300)) {
+        if (!isJson(responseType) || jsonPayload == null || (httpStatusCode >= 200 && httpStatusCode < 300)) {
             return new BeanstreamResponseBuilder()
                     .withHttpStatusCode(httpStatusCode)
                     .withResponseBody(jsonPayload)
@@ -85,42 +122,39 @@ public class BeanstreamResponse {
         return fromJson(httpStatusCode, jsonPayload, responseType);
     }
 
+    private static boolean isJson(MediaType type) {
+        return type != null && type.withoutParameters().equals(MediaType.JSON_UTF_8.withoutParameters());
+    }
+
     private static BeanstreamResponse fromJson(int httpStatusCode, String jsonPayload, MediaType responseType) {
 
-        JsonParser parser = new JsonParser();
-        JsonObject json = parser.parse(jsonPayload).getAsJsonObject();
+        ErrorBodyScanner scanner = new ErrorBodyScanner(jsonPayload);
+        boolean valid = scanner.scan();
         BeanstreamResponseBuilder builder = new BeanstreamResponseBuilder();
 
         builder.setMediaType(responseType);
+        builder.withHttpStatusCode(httpStatusCode);
+        if (!valid && scanner.code == null && scanner.message == null) {
+            // not the usual error object, so keep the body for whoever reads it
+            return builder.withResponseBody(jsonPayload).build();
+        }
         
-        // for now, need to guard for nulls
-        JsonElement element = null;
-        element = json.get("code");
-        if (!element.isJsonNull()) {
-            builder.withCode(element.getAsInt());
+        if (scanner.code != null) {
+            builder.withCode(scanner.code);
         }
-
-        element = json.get("category");
-        if (!element.isJsonNull()) {
-            builder.withCategory(element.getAsInt());
+        if (scanner.category != null) {
+            builder.withCategory(scanner.category);
         }
-
-        element = json.get("message");
-        if (!element.isJsonNull()) {
-            builder.withMessage(element.getAsString());
+        if (scanner.message != null) {
+            builder.withMessage(scanner.message);
         }
-
-        element = json.get("reference");
-        if (!element.isJsonNull()) {
-            builder.withReference(element.getAsString());
+        if (scanner.reference != null) {
+            builder.withReference(scanner.reference);
         }
-        
-        element = json.get("details");
-        if (element != null && !element.isJsonNull()) {
-            builder.withDetails(element.toString());
+        if (scanner.detailsStart >= 0 && scanner.detailsEnd > scanner.detailsStart) {
+            builder.withDetails(jsonPayload, scanner.detailsStart, scanner.detailsEnd);
         }
 
-        builder.withHttpStatusCode(httpStatusCode);
         return builder.build();
     }
 
@@ -140,8 +174,27 @@ public class BeanstreamResponse {
         return reference;
     }
 
+    /**
+     * @return the details of an error as the raw json sent by the gateway,
+     * usually an array of the fields that failed validation
+     */
     public String getDetails() {
-        return details;
+        String result = details;
+        if (result == null && detailsSource != null) {
+            result = detailsSource.substring(detailsStart, detailsEnd);
+            details = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return the details parsed as json, or null if there are none
+     */
+    public JsonElement getDetailsAsJson() {
+        String json = getDetails();
+        if (json == null || json.isEmpty())
+            return null;
+        return new JsonParser().parse(json);
     }
 
     public int getHttpStatusCode() {
@@ -184,7 +237,9 @@ public class BeanstreamResponse {
         if (reference != null ? !reference.equals(response.reference) : response.reference != null) {
             return false;
         }
-        if (details != null ? !details.equals(response.details) : response.details != null) {
+        String details = getDetails();
+        String otherDetails = response.getDetails();
+        if (details != null ? !details.equals(otherDetails) : otherDetails != null) {
             return false;
         }
         if (responseBody != null ? !responseBody.equals(response.responseBody) : response.responseBody != null) {
@@ -200,6 +255,7 @@ public class BeanstreamResponse {
         result = 31 * result + category;
         result = 31 * result + (message != null ? message.hashCode() : 0);
         result = 31 * result + (reference != null ? reference.hashCode() : 0);
+        String details = getDetails();
         result = 31 * result + (details != null ? details.hashCode() : 0);
         result = 31 * result + httpStatusCode;
         result = 31 * result + (responseBody != null ? responseBody.hashCode() : 0);
@@ -9,6 +9,9 @@ public class BeanstreamResponseBuilder {
     private String message = "";
     private String reference = "";
     private String details = "";
+    private String detailsSource = null;
+    private int detailsStart;
+    private int detailsEnd;
     private int httpStatusCode = -1;
     private String responseBody = "";
     private MediaType mediaType = null;
@@ -45,11 +48,24 @@ public class BeanstreamResponseBuilder {
 
     public BeanstreamResponseBuilder withDetails(String details) {
         this.details = details;
+        this.detailsSource = null;
+        return this;
+    }
+
+    /**
+     * Use the characters from start to end of the source as the details,
+     * without copying them out until they are needed.
+     */
+    BeanstreamResponseBuilder withDetails(String source, int start, int end) {
+        this.detailsSource = source;
+        this.detailsStart = start;
+        this.detailsEnd = end;
         return this;
     }
 
     public BeanstreamResponse build() {
-        return new BeanstreamResponse(code, category, message, reference, details, httpStatusCode, responseBody, mediaType);
+        return new BeanstreamResponse(code, category, message, reference, details, detailsSource, detailsStart,
+                detailsEnd, httpStatusCode, responseBody, mediaType);
     }
 
     public MediaType getMediaType() {
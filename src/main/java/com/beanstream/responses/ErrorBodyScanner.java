@@ -0,0 +1,226 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.responses;
+
+/**
+ * Reads the code, category, message and reference of a gateway error in a
+ * single pass over the json, without building a tree. The details are not
+ * parsed at all, only located, so they can be sliced out if they are asked
+ * for. Unknown and missing keys are fine, and a malformed body just stops the
+ * scan, keeping whatever was read before it.
+ */
+final class ErrorBodyScanner {
+
+    private final String json;
+    private int pos;
+
+    Integer code;
+    Integer category;
+    String message;
+    String reference;
+    int detailsStart = -1;
+    int detailsEnd = -1;
+
+    ErrorBodyScanner(String json) {
+        this.json = json;
+    }
+
+    /**
+     * @return false if the body isn't a json object or is cut short
+     */
+    boolean scan() {
+        try {
+            skipWhitespace();
+            if (!consume('{'))
+                return false;
+            skipWhitespace();
+            if (consume('}'))
+                return true;
+            while (true) {
+                skipWhitespace();
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if ("code".equals(key)) {
+                    code = readInt();
+                } else if ("category".equals(key)) {
+                    category = readInt();
+                } else if ("message".equals(key)) {
+                    message = readStringOrNull();
+                } else if ("reference".equals(key)) {
+                    reference = readStringOrNull();
+                } else if ("details".equals(key) && !atNull()) {
+                    detailsStart = pos;
+                    skipValue();
+                    detailsEnd = pos;
+                } else {
+                    skipValue();
+                }
+                skipWhitespace();
+                if (consume(','))
+                    continue;
+                expect('}');
+                return true;
+            }
+        } catch (IllegalArgumentException ex) {
+            return false;
+        } catch (IndexOutOfBoundsException ex) {
+            return false;
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+                return;
+            pos++;
+        }
+    }
+
+    private boolean consume(char c) {
+        if (pos < json.length() && json.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!consume(c))
+            throw new IllegalArgumentException("Expected " + c + " at " + pos);
+    }
+
+    private boolean atNull() {
+        return json.startsWith("null", pos);
+    }
+
+    private Integer readInt() {
+        if (atNull()) {
+            pos += 4;
+            return null;
+        }
+        String number = json.charAt(pos) == '"' ? readString().trim() : readLiteral();
+        try {
+            return Integer.valueOf(number);
+        } catch (NumberFormatException ex) {
+            return Integer.valueOf((int) Double.parseDouble(number));
+        }
+    }
+
+    private String readStringOrNull() {
+        if (atNull()) {
+            pos += 4;
+            return null;
+        }
+        return json.charAt(pos) == '"' ? readString() : readLiteral();
+    }
+
+    private String readLiteral() {
+        int start = pos;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t')
+                break;
+            pos++;
+        }
+        if (pos == start)
+            throw new IllegalArgumentException("Expected a value at " + pos);
+        return json.substring(start, pos);
+    }
+
+    private String readString() {
+        expect('"');
+        int start = pos;
+        // most strings have no escapes and can be cut straight out of the body
+        while (true) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                return json.substring(start, pos++);
+            }
+            if (c == '\\')
+                break;
+            pos++;
+        }
+        StringBuilder text = new StringBuilder(json.substring(start, pos));
+        while (true) {
+            char c = json.charAt(pos++);
+            if (c == '"')
+                return text.toString();
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            char escaped = json.charAt(pos++);
+            switch (escaped) {
+                case 'b': text.append('\b'); break;
+                case 'f': text.append('\f'); break;
+                case 'n': text.append('\n'); break;
+                case 'r': text.append('\r'); break;
+                case 't': text.append('\t'); break;
+                case 'u':
+                    text.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default: text.append(escaped);
+            }
+        }
+    }
+
+    private void skipValue() {
+        char c = json.charAt(pos);
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            while (true) {
+                c = json.charAt(pos);
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                pos++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0)
+                        return;
+                }
+            }
+        } else {
+            readLiteral();
+        }
+    }
+
+    private void skipString() {
+        pos++;
+        while (true) {
+            char c = json.charAt(pos++);
+            if (c == '"')
+                return;
+            if (c == '\\')
+                pos++;
+        }
+    }
+}
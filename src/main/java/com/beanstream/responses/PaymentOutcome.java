@@ -0,0 +1,180 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.responses;
+
+import com.beanstream.exceptions.BeanstreamApiException;
+
+/**
+ * The result of a payment that is returned rather than thrown. It is one of:
+ * <ul>
+ * <li>Approved - the payment went through, getResponse() holds the details</li>
+ * <li>Declined - the bank or a business rule turned the payment down</li>
+ * <li>Error - the request was rejected, or could not be sent at all</li>
+ * </ul>
+ * Declines and errors from the gateway carry its code, category, message and
+ * details without an exception ever being created, so outcomes can be
+ * collected from batches and futures like any other value.
+ */
+public class PaymentOutcome {
+
+    public enum Status {
+        Approved, Declined, Error
+    }
+
+    private final Status status;
+    private final int httpStatusCode;
+    private final PaymentResponse response;
+    private final BeanstreamResponse errorResponse;
+    private final BeanstreamApiException exception;
+
+    private PaymentOutcome(Status status, int httpStatusCode, PaymentResponse response,
+            BeanstreamResponse errorResponse, BeanstreamApiException exception) {
+        this.status = status;
+        this.httpStatusCode = httpStatusCode;
+        this.response = response;
+        this.errorResponse = errorResponse;
+        this.exception = exception;
+    }
+
+    /**
+     * @param httpStatusCode the status code of the response
+     * @param response a payment the gateway accepted; declined if it isn't approved
+     */
+    public static PaymentOutcome fromPaymentResponse(int httpStatusCode, PaymentResponse response) {
+        return new PaymentOutcome(response.isApproved() ? Status.Approved : Status.Declined,
+                httpStatusCode, response, null, null);
+    }
+
+    /**
+     * @param response an error response from the gateway; a 402 is a decline
+     */
+    public static PaymentOutcome fromErrorResponse(BeanstreamResponse response) {
+        Status status = response.getHttpStatusCode() == 402 ? Status.Declined : Status.Error;
+        return new PaymentOutcome(status, response.getHttpStatusCode(), null, response, null);
+    }
+
+    /**
+     * @param exception why the request could not be sent or its response read
+     */
+    public static PaymentOutcome fromException(BeanstreamApiException exception) {
+        return new PaymentOutcome(Status.Error, exception.getHttpStatusCode(), null, null, exception);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isApproved() {
+        return status == Status.Approved;
+    }
+
+    public boolean isDeclined() {
+        return status == Status.Declined;
+    }
+
+    /**
+     * @return the payment if the gateway accepted the request, otherwise null
+     */
+    public PaymentResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return the gateway's error code, the message id of a processed payment,
+     * or the exception's code (-1) if the request never got an answer
+     */
+    public int getCode() {
+        if (errorResponse != null)
+            return errorResponse.getCode();
+        if (response != null && response.messageId != null) {
+            try {
+                return Integer.parseInt(response.messageId);
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+        return exception.getCode();
+    }
+
+    /**
+     * @return the error category, 1 for a processed payment, or the
+     * exception's category if the request never got an answer
+     */
+    public int getCategory() {
+        if (errorResponse != null)
+            return errorResponse.getCategory();
+        if (response != null)
+            return 1;
+        return exception.getCategory();
+    }
+
+    public String getMessage() {
+        if (errorResponse != null)
+            return errorResponse.getMessage();
+        if (response != null)
+            return response.message;
+        return exception.getMessage();
+    }
+
+    /**
+     * @return the details of an error response from the gateway, otherwise null
+     */
+    public String getDetails() {
+        return errorResponse != null ? errorResponse.getDetails() : null;
+    }
+
+    /**
+     * @return the HTTP status code of the response, or -1 if there was none
+     */
+    public int getHttpStatusCode() {
+        return httpStatusCode;
+    }
+
+    /**
+     * @return the exception if the request could not be sent or its response
+     * read, otherwise null
+     */
+    public BeanstreamApiException getException() {
+        return exception;
+    }
+
+    /**
+     * Switch back to exceptions, for callers that want them after all.
+     * 
+     * @return the payment response, approved or not, if the gateway accepted the request
+     * @throws BeanstreamApiException the same exception makePayment would have thrown
+     */
+    public PaymentResponse getOrThrow() throws BeanstreamApiException {
+        if (response != null)
+            return response;
+        if (exception != null)
+            throw exception;
+        throw BeanstreamApiException.getMappedException(errorResponse.getHttpStatusCode(), errorResponse);
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentOutcome " + status + " code: " + getCode() + " category: " + getCategory()
+                + " message: " + getMessage();
+    }
+}
@@ -0,0 +1,66 @@
+package com.beanstream.api.test;
+
+import com.beanstream.Configuration;
+import com.beanstream.connection.ApiType;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConfigurationExecutorTest {
+
+    @Test
+    public void testDefaultExecutorHasAThreadForEveryPooledConnection() {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setMaxConnections(4);
+        config.setMaxConnections(ApiType.Reporting, 3);
+
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) config.getExecutor();
+        try {
+            Assert.assertSame(executor, config.getExecutor());
+            Assert.assertEquals(7, executor.getMaximumPoolSize());
+            Assert.assertEquals(Configuration.EXECUTOR_QUEUE_SIZE, executor.getQueue().remainingCapacity());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFullExecutorRunsCallsOnTheCaller() throws Exception {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setMaxConnections(1);
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) config.getExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            Runnable blocked = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            // one running and a full queue behind it
+            for (int i = 0; i <= Configuration.EXECUTOR_QUEUE_SIZE; i++) {
+                executor.execute(blocked);
+            }
+
+            final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ranOn.set(Thread.currentThread());
+                }
+            }).get(5, TimeUnit.SECONDS);
+
+            Assert.assertSame(Thread.currentThread(), ranOn.get());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.beanstream.api.test;
 
 import com.beanstream.exceptions.*;
+import com.beanstream.responses.BeanstreamResponse;
+import com.beanstream.responses.BeanstreamResponseBuilder;
 import org.junit.Test;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 import static org.apache.http.HttpStatus.*;
 
@@ -24,6 +27,26 @@ public class ExceptionFactoryTest {
         assertTrue(getMappedException(anyOtherCode) instanceof InternalServerException);                // (any code other than the above, but intended for 500+)
     }
 
+    @Test
+    public void stacklessDeclinesHaveNoStackTraceButTheSameMessage() {
+        BeanstreamResponse response = new BeanstreamResponseBuilder()
+                .withCode(7).withCategory(1).withMessage("DECLINE").withDetails("[]").build();
+
+        BeanstreamApiException normal = BeanstreamApiException.getMappedException(SC_PAYMENT_REQUIRED, response);
+        BeanstreamApiException stackless = BeanstreamApiException.getMappedException(SC_PAYMENT_REQUIRED, response, true);
+
+        assertTrue(stackless instanceof BusinessRuleException);
+        assertEquals(0, stackless.getStackTrace().length);
+        assertTrue(normal.getStackTrace().length > 0);
+        assertEquals(normal.getMessage(), stackless.getMessage());
+        assertEquals(7, stackless.getCode());
+        assertEquals(1, stackless.getCategory());
+        assertEquals(SC_PAYMENT_REQUIRED, stackless.getHttpStatusCode());
+        assertTrue(BeanstreamApiException.getMappedException(SC_BAD_REQUEST, response, true) instanceof InvalidRequestException);
+        assertTrue("Only declines and rejected requests are stackless",
+                BeanstreamApiException.getMappedException(SC_UNAUTHORIZED, response, true).getStackTrace().length > 0);
+    }
+
     private BeanstreamApiException getMappedException(int statusCode) {
         return BeanstreamApiException.getMappedException(statusCode);
     }
@@ -0,0 +1,148 @@
+package com.beanstream.api.test;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.connection.ApiType;
+import com.beanstream.connection.HttpMethod;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.exceptions.TooManyRequestsException;
+import com.beanstream.requests.CardPaymentRequest;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GatewayWarmUpTest {
+
+    private Gateway getGateway(LoopbackTransport.Handler handler) {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setMaxConnections(4);
+        config.setTransport(new LoopbackTransport(handler));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+        return beanstream;
+    }
+
+    @Test
+    public void testWarmUpPingsUpToThePoolSize() throws Exception {
+        final AtomicInteger pings = new AtomicInteger();
+        Gateway beanstream = getGateway(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                Assert.assertEquals(HttpMethod.get, request.getMethod());
+                Assert.assertEquals("https://www.beanstream.com/api", request.getUrl());
+                pings.incrementAndGet();
+                return LoopbackTransport.json(404, "{}");
+            }
+        });
+        Assert.assertFalse(beanstream.isReady());
+
+        beanstream.warmUp(10).get(5, TimeUnit.SECONDS);
+
+        Assert.assertTrue(beanstream.isReady());
+        Assert.assertEquals(4, pings.get());
+    }
+
+    @Test
+    public void testWarmUpLeavesTheRateLimitToPayments() throws Exception {
+        Gateway beanstream = getGateway(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                if (request.getMethod() == HttpMethod.get)
+                    return LoopbackTransport.json(404, "{}");
+                return LoopbackTransport.json(200, "{\"id\":\"10000123\",\"approved\":\"1\"}");
+            }
+        });
+        beanstream.getConfiguration().setRateLimit(ApiType.Payments, 1);
+
+        beanstream.warmUp(4).get(5, TimeUnit.SECONDS);
+
+        Assert.assertTrue(beanstream.isReady());
+        Assert.assertEquals("10000123", beanstream.payments().makePayment(new CardPaymentRequest()).id);
+        try {
+            beanstream.payments().makePayment(new CardPaymentRequest());
+            Assert.fail("the payment took the only permit");
+        } catch (TooManyRequestsException expected) {
+        }
+    }
+
+    @Test
+    public void testWarmUpReportsConnectionFailures() throws Exception {
+        Gateway beanstream = getGateway(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws IOException {
+                throw new IOException("connection refused");
+            }
+        });
+
+        try {
+            beanstream.warmUp(2).get(5, TimeUnit.SECONDS);
+            Assert.fail("expected the warm up to fail");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof BeanstreamApiException);
+        }
+        Assert.assertFalse(beanstream.isReady());
+    }
+
+    @Test
+    public void testWarmUpOpensSeparatePooledConnections() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        final List<Socket> accepted = new ArrayList<Socket>();
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = server.accept();
+                        synchronized (accepted) {
+                            accepted.add(socket);
+                        }
+                    }
+                } catch (IOException closed) {
+                }
+            }
+        };
+        acceptor.start();
+        try {
+            Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+            config.setMaxConnections(4);
+            config.setEndpoints("http://127.0.0.1:" + server.getLocalPort());
+            Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+            beanstream.setConfiguration(config);
+
+            beanstream.warmUp(3).get(5, TimeUnit.SECONDS);
+
+            Assert.assertTrue(beanstream.isReady());
+            // connected sockets can still be waiting in the backlog for accept
+            long deadline = System.currentTimeMillis() + 5000;
+            while (acceptedCount(accepted) < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            Assert.assertEquals(3, acceptedCount(accepted));
+            config.getConnectionPool().close();
+        } finally {
+            server.close();
+            acceptor.join(1000);
+            synchronized (accepted) {
+                for (Socket socket : accepted)
+                    socket.close();
+            }
+        }
+    }
+
+    private static int acceptedCount(List<Socket> accepted) {
+        synchronized (accepted) {
+            return accepted.size();
+        }
+    }
+}
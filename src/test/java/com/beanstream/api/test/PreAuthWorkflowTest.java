@@ -0,0 +1,372 @@
+package com.beanstream.api.test;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.api.PreAuthWorkflow;
+import com.beanstream.connection.HttpMethod;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.requests.CardPaymentRequest;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PreAuthWorkflowTest {
+
+    private final AtomicInteger nextId = new AtomicInteger(10000000);
+    private final AtomicInteger voids = new AtomicInteger();
+    private final AtomicInteger completions = new AtomicInteger();
+    private volatile int voidStatus = 200;
+    private volatile boolean completionTimesOut;
+    private volatile String lookup = "{\"id\":\"10000200\",\"adjustments\":[]}";
+    private volatile CountDownLatch sending;
+    private volatile CountDownLatch release;
+
+    private Gateway getGateway() {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws IOException {
+                String url = request.getUrl();
+                if (request.getMethod() == HttpMethod.get)
+                    return LoopbackTransport.json(200, lookup);
+                if (release != null) {
+                    sending.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (url.endsWith("/void")) {
+                    voids.incrementAndGet();
+                    if (voidStatus != 200)
+                        return LoopbackTransport.json(voidStatus, "{\"code\":7,\"category\":1,\"message\":\"DECLINE\"}");
+                }
+                if (url.contains("/completions")) {
+                    completions.incrementAndGet();
+                    if (completionTimesOut)
+                        throw new SocketTimeoutException("Read timed out");
+                }
+                if (url.contains("/10000001/completions"))
+                    return LoopbackTransport.json(402, "{\"code\":7,\"category\":1,\"message\":\"DECLINE\"}");
+                return LoopbackTransport.json(200, "{\"id\":\"" + nextId.getAndIncrement() + "\",\"approved\":\"1\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+        return beanstream;
+    }
+
+    private static CardPaymentRequest order(String orderNumber) {
+        CardPaymentRequest request = new CardPaymentRequest();
+        request.setAmount("25.00");
+        request.setOrderNumber(orderNumber);
+        request.getCard().setName("John Doe").setNumber("5100000010001004")
+                .setExpiryMonth("12").setExpiryYear("18").setCvd("123");
+        return request;
+    }
+
+    @Test
+    public void testCompletionsAreTrackedAcrossRestarts() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        journal.delete();
+        try {
+            Gateway beanstream = getGateway();
+            PreAuthWorkflow workflow = new PreAuthWorkflow(beanstream.payments(), journal);
+            workflow.preAuth(order("A"));
+            workflow.preAuth(order("B"));
+            workflow.preAuth(order("C"));
+
+            PreAuthWorkflow.Summary summary = workflow.completeAll(Arrays.asList("A", "B", "X"));
+            Assert.assertEquals(1, summary.getCompleted());
+            Assert.assertEquals(1, summary.getFailed());
+            Assert.assertEquals(1, summary.getSkipped());
+            Assert.assertEquals(PreAuthWorkflow.Status.Completed, workflow.getStatus("A"));
+            Assert.assertEquals(PreAuthWorkflow.Status.CompletionFailed, workflow.getStatus("B"));
+            Assert.assertEquals(PreAuthWorkflow.Status.Authorized, workflow.getStatus("C"));
+            workflow.close();
+
+            workflow = new PreAuthWorkflow(beanstream.payments(), journal);
+            Assert.assertEquals(PreAuthWorkflow.Status.Completed, workflow.getStatus("A"));
+            Assert.assertEquals("DECLINE", workflow.getEntry("B").getMessage().substring(0, 7));
+            Assert.assertEquals(25.0, workflow.getEntry("C").getAmount(), 0.001);
+
+            Assert.assertEquals(1, workflow.cancel(Collections.singleton("C")).getVoided());
+            Assert.assertEquals(PreAuthWorkflow.Status.Voided, workflow.getStatus("C"));
+            Assert.assertEquals(1, workflow.cancel(Collections.singleton("A")).getSkipped());
+
+            workflow.compact(Long.MAX_VALUE);
+            workflow.close();
+            workflow = new PreAuthWorkflow(beanstream.payments(), journal);
+            Assert.assertNull(workflow.getStatus("A"));
+            Assert.assertEquals(PreAuthWorkflow.Status.CompletionFailed, workflow.getStatus("B"));
+            workflow.close();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void testExpiredPreAuthsAreVoided() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        try {
+            PreAuthWorkflow workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            workflow.track("A", "10000100", 10.0);
+            workflow.setExpiryMillis(60000);
+            Assert.assertEquals(0, workflow.voidExpired().getVoided());
+
+            workflow.setExpiryMillis(1);
+            Thread.sleep(5);
+            Assert.assertEquals(1, workflow.voidExpired().getVoided());
+            Assert.assertEquals(1, voids.get());
+            Assert.assertEquals(PreAuthWorkflow.Status.Voided, workflow.getStatus("A"));
+            workflow.close();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void testFailedVoidIsNotCompleted() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        try {
+            PreAuthWorkflow workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            workflow.track("A", "10000100", 10.0);
+            voidStatus = 402;
+            Assert.assertEquals(1, workflow.cancel(Collections.singleton("A")).getFailed());
+            Assert.assertEquals(PreAuthWorkflow.Status.VoidFailed, workflow.getStatus("A"));
+
+            Assert.assertEquals(1, workflow.completeAll(Arrays.asList("A")).getSkipped());
+            Assert.assertEquals(0, completions.get());
+            Assert.assertEquals(PreAuthWorkflow.Status.VoidFailed, workflow.getStatus("A"));
+
+            voidStatus = 200;
+            workflow.setExpiryMillis(1);
+            Thread.sleep(5);
+            Assert.assertEquals(1, workflow.voidExpired().getVoided());
+            Assert.assertEquals(PreAuthWorkflow.Status.Voided, workflow.getStatus("A"));
+            workflow.close();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void testFailedCompletionIsNotVoided() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        try {
+            PreAuthWorkflow workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            workflow.track("B", "10000001", 10.0);
+            Assert.assertEquals(1, workflow.completeAll(Arrays.asList("B")).getFailed());
+            Assert.assertEquals(PreAuthWorkflow.Status.CompletionFailed, workflow.getStatus("B"));
+
+            workflow.setExpiryMillis(1);
+            Thread.sleep(5);
+            Assert.assertEquals(0, workflow.voidExpired().getVoided());
+            Assert.assertEquals(1, workflow.cancel(Collections.singleton("B")).getSkipped());
+            Assert.assertEquals(0, voids.get());
+
+            Assert.assertEquals(1, workflow.completeAll(Arrays.asList("B")).getFailed());
+            Assert.assertEquals(2, completions.get());
+            workflow.close();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void testUnansweredCompletionIsLookedUpBeforeRetrying() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        try {
+            Gateway beanstream = getGateway();
+            PreAuthWorkflow workflow = new PreAuthWorkflow(beanstream.payments(), beanstream.reports(), journal);
+            workflow.track("A", "10000200", 10.0);
+            workflow.track("C", "10000300", 10.0);
+            completionTimesOut = true;
+            Assert.assertEquals(2, workflow.completeAll(Arrays.asList("A", "C")).getUnknown());
+            Assert.assertEquals(PreAuthWorkflow.Status.CompletionUnknown, workflow.getStatus("A"));
+
+            // an unknown completion is not voided either
+            workflow.setExpiryMillis(1);
+            Thread.sleep(5);
+            Assert.assertEquals(0, workflow.voidExpired().getVoided());
+            Assert.assertEquals(0, voids.get());
+
+            // the completion went through after all, it is not sent again
+            completionTimesOut = false;
+            lookup = "{\"id\":\"10000200\",\"adjustments\":[{\"id\":\"10000201\",\"type\":\"PAC\","
+                    + "\"approval\":\"1\"}]}";
+            Assert.assertEquals(1, workflow.completeAll(Arrays.asList("A")).getCompleted());
+            Assert.assertEquals(PreAuthWorkflow.Status.Completed, workflow.getStatus("A"));
+            Assert.assertEquals(2, completions.get());
+
+            // nothing was applied, so the completion is tried again
+            lookup = "{\"id\":\"10000300\",\"adjustments\":[]}";
+            Assert.assertEquals(1, workflow.completeAll(Arrays.asList("C")).getCompleted());
+            Assert.assertEquals(PreAuthWorkflow.Status.Completed, workflow.getStatus("C"));
+            Assert.assertEquals(3, completions.get());
+            workflow.close();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void testUnansweredCompletionStaysUnknownWithoutReports() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        try {
+            PreAuthWorkflow workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            workflow.track("A", "10000200", 10.0);
+            completionTimesOut = true;
+            Assert.assertEquals(1, workflow.completeAll(Arrays.asList("A")).getUnknown());
+            completionTimesOut = false;
+            Assert.assertEquals(1, workflow.completeAll(Arrays.asList("A")).getUnknown());
+            Assert.assertEquals(PreAuthWorkflow.Status.CompletionUnknown, workflow.getStatus("A"));
+            Assert.assertEquals(1, completions.get());
+            workflow.close();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void testInterruptedCompactionIsRecovered() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        File backup = new File(journal.getPath() + ".bak");
+        try {
+            PreAuthWorkflow workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            workflow.track("A", "10000100", 10.0);
+            workflow.compact(0);
+            Assert.assertFalse(backup.exists());
+            workflow.close();
+
+            // stopped after moving the journal aside, before the new one was in place
+            Assert.assertTrue(journal.renameTo(backup));
+            workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            Assert.assertEquals(PreAuthWorkflow.Status.Authorized, workflow.getStatus("A"));
+            Assert.assertFalse(backup.exists());
+            workflow.close();
+        } finally {
+            journal.delete();
+            backup.delete();
+        }
+    }
+
+    @Test
+    public void testOverlappingCallsSendOnlyOneRequestPerOrder() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            final PreAuthWorkflow workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            workflow.track("A", "10000100", 10.0);
+            workflow.track("B", "10000200", 10.0);
+            sending = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+
+            Future<PreAuthWorkflow.Summary> completing = caller.submit(new Callable<PreAuthWorkflow.Summary>() {
+                @Override
+                public PreAuthWorkflow.Summary call() throws Exception {
+                    return workflow.completeAll(Arrays.asList("A"));
+                }
+            });
+            Assert.assertTrue(sending.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(PreAuthWorkflow.Status.Completing, workflow.getStatus("A"));
+
+            // the completion of A is in flight, so cancelling it sends nothing
+            Assert.assertEquals(1, workflow.cancel(Collections.singleton("A")).getSkipped());
+            Assert.assertEquals(0, voids.get());
+            release.countDown();
+            Assert.assertEquals(1, completing.get(5, TimeUnit.SECONDS).getCompleted());
+            Assert.assertEquals(1, completions.get());
+            Assert.assertEquals(PreAuthWorkflow.Status.Completed, workflow.getStatus("A"));
+
+            // an order given twice is voided once
+            release = null;
+            PreAuthWorkflow.Summary summary = workflow.cancel(Arrays.asList("B", "B"));
+            Assert.assertEquals(1, summary.getVoided());
+            Assert.assertEquals(1, summary.getSkipped());
+            Assert.assertEquals(1, voids.get());
+            workflow.close();
+        } finally {
+            if (release != null)
+                release.countDown();
+            caller.shutdownNow();
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void testOrderBeingSentWhenStoppedIsReadBackAsUnknown() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            final PreAuthWorkflow workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            workflow.track("A", "10000100", 10.0);
+            sending = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+            caller.submit(new Callable<PreAuthWorkflow.Summary>() {
+                @Override
+                public PreAuthWorkflow.Summary call() throws Exception {
+                    return workflow.completeAll(Arrays.asList("A"));
+                }
+            });
+            Assert.assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+            PreAuthWorkflow restarted = new PreAuthWorkflow(getGateway().payments(), journal);
+            Assert.assertEquals(PreAuthWorkflow.Status.CompletionUnknown, restarted.getStatus("A"));
+            restarted.close();
+            release.countDown();
+            caller.shutdown();
+            Assert.assertTrue(caller.awaitTermination(5, TimeUnit.SECONDS));
+            workflow.close();
+        } finally {
+            release.countDown();
+            caller.shutdownNow();
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void testJournalStartedOverIsMergedWithTheBackup() throws Exception {
+        File journal = File.createTempFile("preauths", ".tsv");
+        File backup = new File(journal.getPath() + ".bak");
+        try {
+            PreAuthWorkflow workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            workflow.track("A", "10000100", 10.0);
+            workflow.track("B", "10000200", 10.0);
+            workflow.close();
+
+            // the swap failed both ways and records went on into a new journal
+            File old = new File(journal.getPath() + ".old");
+            Assert.assertTrue(journal.renameTo(old));
+            workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            workflow.track("C", "10000300", 10.0);
+            workflow.close();
+            Assert.assertTrue(old.renameTo(backup));
+
+            workflow = new PreAuthWorkflow(getGateway().payments(), journal);
+            Assert.assertEquals(PreAuthWorkflow.Status.Authorized, workflow.getStatus("A"));
+            Assert.assertEquals(PreAuthWorkflow.Status.Authorized, workflow.getStatus("B"));
+            Assert.assertEquals(PreAuthWorkflow.Status.Authorized, workflow.getStatus("C"));
+            Assert.assertFalse(backup.exists());
+            workflow.close();
+        } finally {
+            journal.delete();
+            backup.delete();
+        }
+    }
+}
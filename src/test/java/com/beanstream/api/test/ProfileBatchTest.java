@@ -0,0 +1,122 @@
+package com.beanstream.api.test;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.domain.PaymentProfile;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.responses.BatchResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProfileBatchTest {
+
+    @Test
+    public void testGetProfilesReportsEachFailure() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setProfilesApiPasscode("D97D3BE1EE964A6193D17A571D9FBC80");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                int now = inFlight.incrementAndGet();
+                while (true) {
+                    int max = maxInFlight.get();
+                    if (now <= max || maxInFlight.compareAndSet(max, now))
+                        break;
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                String id = request.getUrl().substring(request.getUrl().lastIndexOf('/') + 1);
+                if (id.startsWith("MISSING"))
+                    return LoopbackTransport.json(404, "{\"code\":19,\"category\":3,\"message\":\"Profile not found\"}");
+                return LoopbackTransport.json(200, "{\"customer_code\":\"" + id + "\",\"language\":\"en\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(i == 7 ? "MISSING7" : "PROFILE" + i);
+        }
+        BatchResult<PaymentProfile> result = beanstream.profiles().getProfiles(ids, 4);
+
+        Assert.assertEquals(19, result.getResults().size());
+        Assert.assertEquals("PROFILE0", result.getResults().keySet().iterator().next());
+        Assert.assertEquals("PROFILE3", result.get("PROFILE3").getId());
+        Assert.assertTrue(result.hasErrors());
+        Assert.assertTrue(result.getError("MISSING7") instanceof BeanstreamApiException);
+        Assert.assertTrue(maxInFlight.get() <= 4);
+        Assert.assertTrue(maxInFlight.get() > 1);
+    }
+
+    @Test
+    public void testDuplicateIdsAreFetchedOnce() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setProfilesApiPasscode("D97D3BE1EE964A6193D17A571D9FBC80");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                requests.incrementAndGet();
+                return LoopbackTransport.json(200, "{\"customer_code\":\"ABC\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        BatchResult<PaymentProfile> result = beanstream.profiles().getProfiles(Arrays.asList("ABC", "ABC"));
+
+        Assert.assertEquals(1, result.getResults().size());
+        Assert.assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testGetProfilesFromATaskOnTheSameExecutor() throws Exception {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setProfilesApiPasscode("D97D3BE1EE964A6193D17A571D9FBC80");
+        config.setExecutor(Executors.newSingleThreadExecutor());
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                String id = request.getUrl().substring(request.getUrl().lastIndexOf('/') + 1);
+                return LoopbackTransport.json(200, "{\"customer_code\":\"" + id + "\"}");
+            }
+        }));
+        final Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        // the only thread of the executor waits on the batch, so no helper can start
+        Future<BatchResult<PaymentProfile>> batch = config.getExecutor().submit(
+                new Callable<BatchResult<PaymentProfile>>() {
+                    @Override
+                    public BatchResult<PaymentProfile> call() throws BeanstreamApiException {
+                        return beanstream.profiles().getProfiles(Arrays.asList("A", "B", "C", "D"), 4);
+                    }
+                });
+        try {
+            BatchResult<PaymentProfile> result = batch.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(4, result.getResults().size());
+            Assert.assertFalse(result.hasErrors());
+        } finally {
+            config.getExecutor().shutdownNow();
+        }
+    }
+}
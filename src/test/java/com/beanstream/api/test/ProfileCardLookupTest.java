@@ -0,0 +1,127 @@
+package com.beanstream.api.test;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.domain.Card;
+import com.beanstream.exceptions.BeanstreamApiException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProfileCardLookupTest {
+
+    private static final String CARDS = "{\"code\":1,\"message\":\"Operation Successful\",\"card\":["
+            + "{\"name\":\"John Doe\",\"number\":\"510000XXXXXX1004\",\"expiry_month\":\"12\",\"expiry_year\":\"18\",\"card_type\":\"MC\"},"
+            + "{\"name\":\"Jane Doe\",\"number\":\"403000XXXXXX1234\",\"expiry_month\":\"01\",\"expiry_year\":\"19\",\"card_type\":\"VI\"},"
+            + "{\"name\":\"Jim Doe\",\"number\":\"371100XXXXX0004\",\"expiry_month\":\"06\",\"expiry_year\":\"20\",\"card_type\":\"AM\"}]}";
+
+    private final AtomicInteger requests = new AtomicInteger();
+    // when set, card downloads wait for release after counting down sending
+    private volatile CountDownLatch sending;
+    private volatile CountDownLatch release;
+
+    private Gateway getGateway(Configuration config) {
+        config.setProfilesApiPasscode("D97D3BE1EE964A6193D17A571D9FBC80");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws InterruptedIOException {
+                requests.incrementAndGet();
+                if (request.getUrl().endsWith("/cards/1") && request.getBody() != null)
+                    return LoopbackTransport.json(200, "{\"code\":1,\"message\":\"Operation Successful\"}");
+                CountDownLatch wait = release;
+                if (wait != null) {
+                    sending.countDown();
+                    try {
+                        wait.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return LoopbackTransport.json(200, CARDS);
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+        return beanstream;
+    }
+
+    @Test
+    public void testGetCardReadsOnlyTheWantedCard() throws BeanstreamApiException {
+        Gateway beanstream = getGateway(new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70"));
+
+        Card card = beanstream.profiles().getCard("ABC123", "2");
+        Assert.assertEquals("Jane Doe", card.getName());
+        Assert.assertEquals("2", card.getId());
+        Assert.assertEquals("Jim Doe", beanstream.profiles().getCard("ABC123", "3").getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCardIdPastTheLastCardIsRejected() throws BeanstreamApiException {
+        Gateway beanstream = getGateway(new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70"));
+        beanstream.profiles().getCard("ABC123", "4");
+    }
+
+    @Test
+    public void testCachedCardsAreInvalidatedByChanges() throws BeanstreamApiException {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setProfileCache(100, 60000);
+        Gateway beanstream = getGateway(config);
+
+        Assert.assertEquals("John Doe", beanstream.profiles().getCard("ABC123", "1").getName());
+        Card card = beanstream.profiles().getCard("ABC123", "2");
+        card.setName("Changed");
+        Assert.assertEquals("Jane Doe", beanstream.profiles().getCard("ABC123", "2").getName());
+        Assert.assertEquals(1, requests.get());
+
+        Card update = beanstream.profiles().getCard("ABC123", "1").setNumber("5100000010001004");
+        beanstream.profiles().updateCard("ABC123", update);
+        Assert.assertFalse(config.getProfileCache().contains("ABC123"));
+        beanstream.profiles().getCard("ABC123", "1");
+        Assert.assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testCardsDownloadedAcrossAChangeAreNotCached() throws Exception {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setProfileCache(100, 60000);
+        final Gateway beanstream = getGateway(config);
+        sending = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+
+        final Throwable[] failure = new Throwable[1];
+        Thread lookup = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    List<Card> cards = beanstream.profiles().getCards("ABC123");
+                    Assert.assertEquals(3, cards.size());
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        lookup.start();
+        Assert.assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+        Card update = new Card().setName("John Doe").setNumber("5100000010001004");
+        update.setId("1");
+        CountDownLatch blocked = release;
+        release = null;
+        beanstream.profiles().updateCard("ABC123", update);
+        blocked.countDown();
+        lookup.join(5000);
+        Assert.assertNull(failure[0]);
+
+        Assert.assertFalse(config.getProfileCache().contains("ABC123"));
+        beanstream.profiles().getCards("ABC123");
+        Assert.assertEquals(3, requests.get());
+        Assert.assertTrue(config.getProfileCache().contains("ABC123"));
+    }
+}
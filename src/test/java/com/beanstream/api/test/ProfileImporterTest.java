@@ -0,0 +1,213 @@
+package com.beanstream.api.test;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.api.ProfileImporter;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.domain.Address;
+import com.beanstream.domain.Card;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProfileImporterTest {
+
+    private final List<String> created = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger requests = new AtomicInteger();
+    private File mappingFile;
+    private File errorFile;
+    private Gateway beanstream;
+    private volatile CountDownLatch sending;
+    private volatile CountDownLatch release;
+
+    @Before
+    public void setUp() throws IOException {
+        mappingFile = File.createTempFile("customer_codes", ".tsv");
+        errorFile = File.createTempFile("errors", ".tsv");
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setProfilesApiPasscode("D97D3BE1EE964A6193D17A571D9FBC80");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws IOException {
+                requests.incrementAndGet();
+                if (release != null) {
+                    sending.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                String body = new String(request.getBody());
+                if (body.contains("DECLINED"))
+                    return LoopbackTransport.json(400, "{\"code\":52,\"category\":3,\"message\":\"Invalid card\"}");
+                String name = body.substring(body.indexOf("ROW-"), body.indexOf('"', body.indexOf("ROW-")));
+                created.add(name);
+                return LoopbackTransport.json(200, "{\"code\":1,\"message\":\"Operation Successful\","
+                        + "\"customer_code\":\"CODE-" + name + "\"}");
+            }
+        }));
+        beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+    }
+
+    @After
+    public void tearDown() {
+        mappingFile.delete();
+        errorFile.delete();
+    }
+
+    private static ProfileImporter.Row row(String key, boolean declined) {
+        Card card = new Card().setName(declined ? "DECLINED " + key : key).setNumber("5100000010001004")
+                .setExpiryMonth("12").setExpiryYear("18").setCvd("123");
+        Address billing = new Address.AddressBuilder().name(key).city("VICTORIA")
+                .province("BC").country("CA").addressLine1("123 FAKE ST.")
+                .postalCode("V9T2G6").emailAddress("TEST@BEANSTREAM.COM")
+                .phoneNumber("12501234567").build();
+        return new ProfileImporter.Row(key, card, billing);
+    }
+
+    private static List<ProfileImporter.Row> rows(int count, int declinedFrom) {
+        List<ProfileImporter.Row> rows = new ArrayList<ProfileImporter.Row>();
+        for (int i = 0; i < count; i++) {
+            rows.add(row("ROW-" + i, i >= declinedFrom));
+        }
+        return rows;
+    }
+
+    private static void write(File file, String... lines) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (String line : lines) {
+                writer.write(line + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static List<String> read(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    @Test
+    public void testResumeSkipsKeysInTheMappingFile() throws Exception {
+        write(mappingFile, "ROW-0\tCODE-ROW-0", "ROW-2\tCODE-ROW-2");
+        ProfileImporter importer = new ProfileImporter(beanstream.profiles(), mappingFile, errorFile);
+
+        ProfileImporter.Summary summary = importer.run(rows(4, 4).iterator());
+        Assert.assertEquals(2, summary.getCreated());
+        Assert.assertEquals(2, summary.getSkipped());
+        Assert.assertEquals(2, requests.get());
+        Assert.assertFalse(created.contains("ROW-0"));
+        Assert.assertFalse(created.contains("ROW-2"));
+        Assert.assertEquals(4, read(mappingFile).size());
+
+        // a second run has nothing left to do
+        summary = new ProfileImporter(beanstream.profiles(), mappingFile, errorFile).run(rows(4, 4).iterator());
+        Assert.assertEquals(4, summary.getSkipped());
+        Assert.assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testErrorFileRowsAreOnlyRetriedWhenAsked() throws Exception {
+        ProfileImporter importer = new ProfileImporter(beanstream.profiles(), mappingFile, errorFile);
+        ProfileImporter.Summary summary = importer.run(rows(3, 1).iterator());
+        Assert.assertEquals(1, summary.getCreated());
+        Assert.assertEquals(2, summary.getFailed());
+        List<String> errors = read(errorFile);
+        Assert.assertEquals(2, errors.size());
+        Assert.assertTrue(errors.get(0).matches("ROW-[12]\t400\t52\t3\tInvalid card.*"));
+
+        // the failed rows are fixed, but are not tried again by default
+        summary = importer.run(rows(3, 3).iterator());
+        Assert.assertEquals(3, summary.getSkipped());
+        Assert.assertEquals(3, requests.get());
+
+        summary = importer.setRetryFailed(true).run(rows(3, 3).iterator());
+        Assert.assertEquals(2, summary.getCreated());
+        Assert.assertEquals(1, summary.getSkipped());
+        Assert.assertEquals(5, requests.get());
+        Assert.assertEquals(3, read(mappingFile).size());
+    }
+
+    @Test
+    public void testWriteFailureStopsSubmission() throws Exception {
+        // writes to /dev/full always fail with "No space left on device"
+        File full = new File("/dev/full");
+        Assume.assumeTrue(full.exists() && full.canWrite());
+        ProfileImporter importer = new ProfileImporter(beanstream.profiles(), mappingFile, full)
+                .setConcurrency(1).setRetryFailed(true);
+        try {
+            importer.run(rows(100, 0).iterator());
+            Assert.fail("the error file cannot be written");
+        } catch (IOException expected) {
+        }
+        // only the rows already queued when the first write failed were sent
+        Assert.assertTrue("sent " + requests.get(), requests.get() <= 3);
+    }
+
+    @Test
+    public void testInterruptedRunFinishesTheSubmittedRows() throws Exception {
+        sending = new CountDownLatch(2);
+        release = new CountDownLatch(1);
+        final ProfileImporter importer = new ProfileImporter(beanstream.profiles(), mappingFile, errorFile)
+                .setConcurrency(2);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread runner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    importer.run(rows(2, 2).iterator());
+                    interrupted.set(Thread.currentThread().isInterrupted());
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        runner.start();
+        try {
+            Assert.assertTrue(sending.await(5, TimeUnit.SECONDS));
+            runner.interrupt();
+            Thread.sleep(50);
+            Assert.assertTrue(runner.isAlive());
+        } finally {
+            release.countDown();
+        }
+        runner.join(5000);
+
+        // both profiles were created, so both are in the mapping for a resume to skip
+        Assert.assertEquals(2, read(mappingFile).size());
+        Assert.assertTrue(interrupted.get());
+    }
+}
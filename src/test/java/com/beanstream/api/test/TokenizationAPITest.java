@@ -0,0 +1,67 @@
+package com.beanstream.api.test;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.domain.Card;
+import com.beanstream.domain.Token;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.google.common.base.Charsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenizationAPITest {
+
+    private Gateway getGateway() {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                Assert.assertEquals("https://www.beanstream.com/scripts/tokenization/tokens", request.getUrl());
+                String body = new String(request.getBody(), Charsets.UTF_8);
+                if (body.contains("4000000000000002"))
+                    return LoopbackTransport.json(400, "{\"code\":52,\"category\":3,\"message\":\"Invalid card number\"}");
+                String number = body.replaceAll(".*\"number\":\"(\\d+)\".*", "$1");
+                return LoopbackTransport.json(200, "{\"token\":\"tok-" + number.substring(number.length() - 4)
+                        + "\",\"code\":1,\"version\":1,\"message\":\"\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+        return beanstream;
+    }
+
+    private static Card card(String number) {
+        return new Card().setName("John Doe").setNumber(number)
+                .setExpiryMonth("12").setExpiryYear("19").setCvd("123");
+    }
+
+    @Test
+    public void testTokenize() throws BeanstreamApiException {
+        Token token = getGateway().tokenization().tokenize(card("5100000010001004"));
+
+        Assert.assertEquals("tok-1004", token.getCode());
+        Assert.assertEquals("John Doe", token.getName());
+    }
+
+    @Test
+    public void testTokenizeAllKeepsOrderAndFailures() throws Exception {
+        List<Future<Token>> tokens = getGateway().tokenization().tokenizeAll(Arrays.asList(
+                card("5100000010001004"), card("4000000000000002"), card("4030000010001234")));
+
+        Assert.assertEquals("tok-1004", tokens.get(0).get().getCode());
+        try {
+            tokens.get(1).get();
+            Assert.fail("invalid card should not be tokenized");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof BeanstreamApiException);
+        }
+        Assert.assertEquals("tok-1234", tokens.get(2).get().getCode());
+    }
+}
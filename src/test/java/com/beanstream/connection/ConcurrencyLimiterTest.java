@@ -0,0 +1,196 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void testFailFastWhenAllSlotsAreTaken() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+        Assert.assertTrue(limiter.acquire());
+        Assert.assertTrue(limiter.acquire());
+        Assert.assertEquals(2, limiter.getInFlight());
+        Assert.assertFalse("All slots should be taken", limiter.acquire());
+        limiter.release();
+        Assert.assertTrue(limiter.acquire());
+    }
+
+    @Test
+    public void testWaitsForASlotToBeReleased() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1).setMaxWaitMillis(2000);
+        Assert.assertTrue(limiter.acquire());
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                }
+                limiter.release();
+            }
+        };
+        releaser.start();
+        long start = System.nanoTime();
+        Assert.assertTrue(limiter.acquire());
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 >= 30);
+        releaser.join();
+    }
+
+    @Test
+    public void testReservedSlotsAreLeftForInteractiveRequests() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(3).setReserved(1);
+        Assert.assertTrue(limiter.acquire());
+        Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS, Priority.Bulk));
+        Assert.assertFalse("The last slot is reserved", limiter.acquire());
+        Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS, Priority.Interactive));
+        Assert.assertEquals(3, limiter.getInFlight());
+    }
+
+    @Test
+    public void testFreedSlotsAreSharedByWeight() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1).setWeight(Priority.Interactive, 3);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> waiters = new ArrayList<Thread>();
+        Assert.assertTrue(limiter.acquire());
+        for (int i = 0; i < 6; i++) {
+            waiters.add(waiter(limiter, Priority.Interactive, order));
+        }
+        for (int i = 0; i < 2; i++) {
+            waiters.add(waiter(limiter, Priority.Bulk, order));
+        }
+        for (Thread waiter : waiters) {
+            waiter.start();
+        }
+        while (limiter.getWaiting(Priority.Interactive) + limiter.getWaiting(Priority.Bulk) < 8) {
+            Thread.sleep(5);
+        }
+
+        limiter.release();
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+        // three interactive for each bulk, without starving bulk
+        Assert.assertEquals(Arrays.asList("Interactive", "Bulk", "Interactive", "Interactive", "Interactive",
+                "Bulk", "Interactive", "Interactive"), order);
+    }
+
+    @Test
+    public void testLanesCanGiveUpSooner() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1).setMaxWaitMillis(5000)
+                .setMaxWaitMillis(Priority.Bulk, 0);
+        Assert.assertEquals(5000, limiter.getMaxWaitMillis(Priority.Interactive));
+        Assert.assertEquals(0, limiter.getMaxWaitMillis(Priority.Bulk));
+        Assert.assertTrue(limiter.acquire());
+        Assert.assertFalse(limiter.tryAcquire(limiter.getMaxWaitMillis(Priority.Bulk), TimeUnit.MILLISECONDS,
+                Priority.Bulk));
+        Assert.assertEquals(0, limiter.getWaiting(Priority.Bulk));
+    }
+
+    private static Thread waiter(final ConcurrencyLimiter limiter, final Priority priority, final List<String> order) {
+        return new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (limiter.tryAcquire(5, TimeUnit.SECONDS, priority)) {
+                        order.add(priority.name());
+                        limiter.release();
+                    }
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testAdaptiveLimitGrowsWhileLatencyHolds() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 50);
+        for (int i = 0; i < 50; i++) {
+            saturate(limiter, TimeUnit.MILLISECONDS.toNanos(20), false);
+        }
+        Assert.assertTrue("limit was " + limiter.getLimit(), limiter.getLimit() > 20);
+        Assert.assertEquals(20, limiter.getShortRttMillis(), 0.01);
+    }
+
+    @Test
+    public void testAdaptiveLimitShrinksWhenLatencyClimbsOrRequestsDrop() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(40, 2, 50);
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, TimeUnit.MILLISECONDS.toNanos(20), false);
+        }
+        int steady = limiter.getLimit();
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, TimeUnit.MILLISECONDS.toNanos(200), false);
+        }
+        int queued = limiter.getLimit();
+        Assert.assertTrue(steady + " then " + queued, queued < steady);
+
+        saturate(limiter, 0, true);
+        Assert.assertTrue(limiter.getLimit() < queued);
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testAdaptiveLimitDropsOncePerRoundTrip() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(40, 2, 50);
+        int taken = 0;
+        while (limiter.acquire()) {
+            taken++;
+        }
+        long sent = System.nanoTime();
+        Thread.sleep(20);
+        // every request sent together times out together
+        for (int i = 0; i < taken; i++) {
+            limiter.release(System.nanoTime() - sent, true);
+        }
+        Assert.assertEquals(36, limiter.getLimit());
+
+        // one sent after that cut cuts again
+        Assert.assertTrue(limiter.acquire());
+        sent = System.nanoTime();
+        Thread.sleep(2);
+        limiter.release(System.nanoTime() - sent, true);
+        Assert.assertEquals(32, limiter.getLimit());
+    }
+
+    /**
+     * Fill every slot, then release them all with the same latency.
+     */
+    private static void saturate(ConcurrencyLimiter limiter, long latencyNanos, boolean dropped)
+            throws InterruptedException {
+        int taken = 0;
+        while (limiter.acquire()) {
+            taken++;
+        }
+        for (int i = 0; i < taken; i++) {
+            limiter.release(latencyNanos, dropped);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.conn.DnsResolver;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DnsCacheTest {
+
+    private static class CountingResolver implements DnsResolver {
+
+        private final AtomicInteger lookups = new AtomicInteger();
+        private volatile boolean down;
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if (down)
+                throw new UnknownHostException(host);
+            return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 10, 0, 0, 1 }) };
+        }
+    }
+
+    @Test
+    public void testAddressesAreCachedForTheTtl() throws Exception {
+        CountingResolver resolver = new CountingResolver();
+        DnsCache cache = new DnsCache(resolver, 60000, 0, 0);
+
+        cache.resolve("www.beanstream.com");
+        cache.resolve("www.beanstream.com");
+        Assert.assertEquals(1, resolver.lookups.get());
+
+        cache.invalidate("www.beanstream.com");
+        cache.resolve("www.beanstream.com");
+        Assert.assertEquals(2, resolver.lookups.get());
+    }
+
+    @Test
+    public void testStaleAddressesAreUsedWhileLookupsFail() throws Exception {
+        CountingResolver resolver = new CountingResolver();
+        DnsCache cache = new DnsCache(resolver, 0, 60000, 60000);
+        cache.resolve("www.beanstream.com");
+        resolver.down = true;
+
+        InetAddress[] addresses = cache.resolve("www.beanstream.com");
+        Assert.assertEquals("10.0.0.1", addresses[0].getHostAddress());
+        // the failed lookup isn't tried again until the negative ttl is up
+        cache.resolve("www.beanstream.com");
+        Assert.assertEquals(2, resolver.lookups.get());
+
+        try {
+            cache.resolve("web.beanstream.com");
+            Assert.fail("A host that was never found should fail");
+        } catch (UnknownHostException expected) {
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import com.beanstream.exceptions.BeanstreamApiException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EndpointsTest {
+
+    private static HttpsConnector connector(Endpoints endpoints, final List<String> urls, final IOException failure,
+            final String failingHost) {
+        HttpsConnector connector = new HttpsConnector(300200578, "key");
+        connector.setEndpoints(endpoints);
+        connector.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws IOException {
+                urls.add(request.getUrl());
+                if (request.getUrl().startsWith(failingHost))
+                    throw failure;
+                return LoopbackTransport.json(200, "{\"id\":\"10000123\"}");
+            }
+        }));
+        return connector;
+    }
+
+    @Test
+    public void testConnectFailureFailsOverToTheNextEndpoint() throws BeanstreamApiException {
+        Endpoints endpoints = new Endpoints().add("https://east.example.com", 1).add("https://west.example.com", 0);
+        List<String> urls = new ArrayList<String>();
+        HttpsConnector connector = connector(endpoints, urls, new ConnectException("Connection refused"),
+                "https://east.example.com");
+
+        connector.ProcessTransaction(HttpMethod.get, "https://www.beanstream.com/api/v1/payments/1", null);
+        connector.ProcessTransaction(HttpMethod.get, "https://www.beanstream.com/api/v1/payments/2", null);
+
+        // the second request skips east while it cools down
+        Assert.assertEquals(3, urls.size());
+        Assert.assertEquals("https://east.example.com/api/v1/payments/1", urls.get(0));
+        Assert.assertEquals("https://west.example.com/api/v1/payments/1", urls.get(1));
+        Assert.assertEquals("https://west.example.com/api/v1/payments/2", urls.get(2));
+        Assert.assertTrue(endpoints.getEndpoints().get(0).getHealth() < 1);
+    }
+
+    @Test
+    public void testRequestsThatWereSentAreNotRetried() {
+        Endpoints endpoints = new Endpoints("https://east.example.com", "https://west.example.com");
+        List<String> urls = new ArrayList<String>();
+        HttpsConnector connector = connector(endpoints, urls, new IOException("Connection reset"), "https://");
+
+        try {
+            connector.ProcessTransaction(HttpMethod.post, "https://www.beanstream.com/api/v1/payments", null);
+            Assert.fail("A failure after connecting should throw");
+        } catch (BeanstreamApiException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IOException);
+        }
+        Assert.assertEquals(1, urls.size());
+    }
+
+    @Test
+    public void testPoolTimeoutIsNotFailedOver() {
+        Endpoints endpoints = new Endpoints("https://east.example.com", "https://west.example.com");
+        List<String> urls = new ArrayList<String>();
+        HttpsConnector connector = connector(endpoints, urls,
+                new ConnectionPoolTimeoutException("Timeout waiting for connection from pool"), "https://");
+
+        try {
+            connector.ProcessTransaction(HttpMethod.post, "https://www.beanstream.com/api/v1/payments", null);
+            Assert.fail("A pool timeout should throw");
+        } catch (BeanstreamApiException ex) {
+            Assert.assertTrue(ex.getCause() instanceof ConnectionPoolTimeoutException);
+        }
+        Assert.assertEquals(1, urls.size());
+        for (Endpoints.Endpoint endpoint : endpoints.getEndpoints()) {
+            Assert.assertEquals(1.0, endpoint.getHealth(), 0.0);
+        }
+    }
+
+    @Test
+    public void testCoolingDownEndpointIsUsedWhenNothingElseIs() {
+        Endpoints endpoints = new Endpoints("https://east.example.com", "https://west.example.com");
+        Endpoints.Endpoint east = endpoints.getEndpoints().get(0);
+        Endpoints.Endpoint west = endpoints.getEndpoints().get(1);
+        endpoints.failed(west);
+        endpoints.failed(east);
+        endpoints.failed(east);
+
+        // west's shorter cooldown ends first
+        Assert.assertSame(west, endpoints.select(Collections.<Endpoints.Endpoint>emptyList()));
+        Assert.assertSame(east, endpoints.select(Collections.singletonList(west)));
+    }
+}
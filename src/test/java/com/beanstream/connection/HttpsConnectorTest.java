@@ -0,0 +1,518 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.data.RecordHandler;
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.exceptions.BusinessRuleException;
+import com.beanstream.exceptions.TooManyRequestsException;
+import com.beanstream.requests.CardPaymentRequest;
+import com.beanstream.responses.PaymentResponse;
+import com.google.common.base.Charsets;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpsConnectorTest {
+
+    @Test
+    public void testPaymentRoundTripsThroughTheTransport() throws BeanstreamApiException {
+        final AtomicReference<TransportRequest> sent = new AtomicReference<TransportRequest>();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                sent.set(request);
+                return LoopbackTransport.json(200, "{\"id\":\"10000123\",\"approved\":\"1\",\"auth_code\":\"TEST\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        CardPaymentRequest paymentRequest = new CardPaymentRequest();
+        paymentRequest.setAmount("90.00");
+        paymentRequest.setOrderNumber("ORDER-1");
+        paymentRequest.getCard().setName("Zo\u00eb \u00dcnal")
+                .setNumber("5100000010001004").setExpiryMonth("12")
+                .setExpiryYear("18").setCvd("123");
+        PaymentResponse response = beanstream.payments().makePayment(paymentRequest);
+
+        Assert.assertEquals("10000123", response.id);
+        Assert.assertTrue(response.isApproved());
+        TransportRequest request = sent.get();
+        Assert.assertEquals(HttpMethod.post, request.getMethod());
+        Assert.assertTrue(request.getHeader("authorization").startsWith("Passcode "));
+        String body = new String(request.getBody(), Charsets.UTF_8);
+        Assert.assertTrue(body, body.contains("Zo\u00eb \u00dcnal"));
+    }
+
+    @Test
+    public void testErrorResponseIsMappedToException() {
+        HttpsConnector connector = new HttpsConnector(300200578, "key");
+        connector.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                return LoopbackTransport.json(402, "{\"code\":7,\"category\":1,\"message\":\"DECLINE\",\"reference\":\"\"}");
+            }
+        }));
+        try {
+            connector.ProcessTransaction(HttpMethod.get, "https://example.com/payments/1", null);
+            Assert.fail("A 402 should throw");
+        } catch (BeanstreamApiException ex) {
+            Assert.assertTrue(ex instanceof BusinessRuleException);
+            Assert.assertEquals(7, ex.getCode());
+            Assert.assertEquals(1, ex.getCategory());
+            Assert.assertEquals(402, ex.getHttpStatusCode());
+        }
+    }
+
+    @Test
+    public void testTransportFailureIsWrapped() {
+        HttpsConnector connector = new HttpsConnector(300200578, "key");
+        connector.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        }));
+        try {
+            connector.ProcessTransaction(HttpMethod.get, "https://example.com/payments/1", null);
+            Assert.fail("A transport failure should throw");
+        } catch (BeanstreamApiException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testNonJsonErrorBodyIsKept() {
+        HttpsConnector connector = new HttpsConnector(300200578, "key");
+        connector.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                return new TransportResponse(502, Collections.singletonMap("Content-Type", "text/html"),
+                        "<html>Bad Gateway</html>".getBytes(Charsets.UTF_8));
+            }
+        }));
+        try {
+            connector.ProcessTransaction(HttpMethod.get, "https://example.com/payments/1", null);
+            Assert.fail("A 502 should throw");
+        } catch (BeanstreamApiException ex) {
+            Assert.assertEquals(502, ex.getHttpStatusCode());
+        }
+    }
+
+    @Test
+    public void testReusedBodyBufferOnlySendsTheCurrentBody() throws BeanstreamApiException {
+        final List<String> bodies = new ArrayList<String>();
+        HttpsConnector connector = new HttpsConnector(300200578, "key");
+        connector.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                bodies.add(new String(request.getBody(), Charsets.UTF_8));
+                return LoopbackTransport.json(200, "{}");
+            }
+        }));
+        connector.ProcessTransaction(HttpMethod.post, "https://example.com/payments",
+                Collections.singletonMap("comments", "a much longer request body than the next one"));
+        connector.ProcessTransaction(HttpMethod.post, "https://example.com/payments",
+                Collections.singletonMap("id", "1"));
+
+        Assert.assertEquals("{\"id\":\"1\"}", bodies.get(1));
+    }
+
+    @Test
+    public void testCompressedResponsesAreDecoded() throws Exception {
+        final String json = "{\"records\":[{\"trn_id\":10000001,\"name\":\"Zo\u00eb\"}]}";
+        final List<String> acceptEncodings = new ArrayList<String>();
+        HttpsConnector connector = new HttpsConnector(300200578, "key");
+        connector.setAcceptCompressed(true);
+        connector.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws IOException {
+                acceptEncodings.add(request.getHeader("Accept-Encoding"));
+                boolean gzip = acceptEncodings.size() == 1;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                OutputStream out = gzip ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes);
+                out.write(json.getBytes(Charsets.UTF_8));
+                out.close();
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("Content-Type", "application/json; charset=utf-8");
+                headers.put("Content-Encoding", gzip ? "gzip" : "deflate");
+                return new TransportResponse(200, headers, bytes.toByteArray());
+            }
+        }));
+
+        Assert.assertEquals(json, connector.ProcessTransaction(HttpMethod.get, "https://example.com/reports", null));
+        Assert.assertEquals(json, connector.ProcessTransaction(HttpMethod.get, "https://example.com/reports", null));
+        Assert.assertEquals("gzip, deflate", acceptEncodings.get(0));
+    }
+
+    @Test
+    public void testCompressedRecordsAreParsedAsTheyAreDecoded() throws Exception {
+        final String json = "{\"records\":[{\"trn_id\":10000001},{\"trn_id\":10000002}]}";
+        final List<String> acceptEncodings = new ArrayList<String>();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws IOException {
+                acceptEncodings.add(request.getHeader("Accept-Encoding"));
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                OutputStream out = new GZIPOutputStream(bytes);
+                out.write(json.getBytes(Charsets.UTF_8));
+                out.close();
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("Content-Type", "application/json; charset=utf-8");
+                headers.put("Content-Encoding", "gzip");
+                return new TransportResponse(200, headers, bytes.toByteArray());
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        final List<Integer> ids = new ArrayList<Integer>();
+        int count = beanstream.reports().query(new Date(0), new Date(), null, new RecordHandler() {
+            @Override
+            public boolean handle(TransactionRecord record) {
+                ids.add(record.getTransactionId());
+                return true;
+            }
+        });
+
+        Assert.assertEquals(2, count);
+        Assert.assertEquals(Arrays.asList(10000001, 10000002), ids);
+        Assert.assertEquals("gzip, deflate", acceptEncodings.get(0));
+    }
+
+    @Test
+    public void testCompressionTurnedOffSendsNoAcceptEncoding() throws Exception {
+        final List<TransportRequest> sent = new ArrayList<TransportRequest>();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setCompression(ApiType.Reporting, false);
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                sent.add(request);
+                return LoopbackTransport.json(200, "{\"records\":[]}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        beanstream.reports().query(new Date(0), new Date(), 1, 10, null);
+
+        Assert.assertEquals(1, sent.size());
+        Assert.assertNull(sent.get(0).getHeader("Accept-Encoding"));
+        Assert.assertFalse(sent.get(0).getHeaders().containsKey("Accept-Encoding"));
+    }
+
+    @Test
+    public void testRequestIsTracedWithCorrelationId() throws BeanstreamApiException {
+        final AtomicReference<TransportRequest> sent = new AtomicReference<TransportRequest>();
+        RecordingTracer tracer = new RecordingTracer();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTracer(tracer);
+        config.addInterceptor(new CorrelationIdInterceptor());
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                sent.set(request);
+                return LoopbackTransport.json(200, "{\"id\":\"10000123\",\"approved\":\"1\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        CardPaymentRequest paymentRequest = new CardPaymentRequest();
+        paymentRequest.setAmount("10.00");
+        paymentRequest.setOrderNumber("ORDER-7");
+        CorrelationIdInterceptor.setCurrentId("abc-123");
+        try {
+            beanstream.payments().makePayment(paymentRequest);
+        } finally {
+            CorrelationIdInterceptor.clearCurrentId();
+        }
+
+        Assert.assertEquals("abc-123", sent.get().getHeader(CorrelationIdInterceptor.DEFAULT_HEADER));
+        RecordingTracer.RecordedSpan root = tracer.getSpans(Operation.MakePayment.name()).get(0);
+        Assert.assertTrue(root.isEnded());
+        Assert.assertNull(root.getError());
+        Assert.assertEquals("ORDER-7", root.getAttribute(RequestContext.ORDER_NUMBER));
+        Assert.assertEquals("abc-123", root.getAttribute(RequestContext.CORRELATION_ID));
+        for (String phase : new String[] {"serialize", "wait", "send", "parse"}) {
+            RecordingTracer.RecordedSpan span = tracer.getSpans(phase).get(0);
+            Assert.assertSame(root, span.getParent());
+            Assert.assertTrue(span.isEnded());
+        }
+        Assert.assertTrue(tracer.getSpans("map_error").isEmpty());
+    }
+
+    @Test
+    public void testDeclineIsRecordedOnTheSpan() {
+        RecordingTracer tracer = new RecordingTracer();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTracer(tracer);
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                return LoopbackTransport.json(402, "{\"code\":7,\"category\":1,\"message\":\"DECLINE\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        try {
+            beanstream.payments().makePayment(new CardPaymentRequest());
+            Assert.fail("decline should throw");
+        } catch (BeanstreamApiException ex) {
+            RecordingTracer.RecordedSpan root = tracer.getSpans(Operation.MakePayment.name()).get(0);
+            Assert.assertSame(ex, root.getError());
+            Assert.assertTrue(root.isEnded());
+            Assert.assertSame(root, tracer.getSpans("map_error").get(0).getParent());
+        }
+    }
+
+    @Test
+    public void testOperationTimeoutsOverrideThoseOfTheApi() throws BeanstreamApiException {
+        final List<Timeouts> sent = new ArrayList<Timeouts>();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setProfilesApiPasscode("D97D3BE1EE964A6193D17A571D9FBC80");
+        config.setTimeouts(ApiType.Profiles, Timeouts.NONE.withConnect(1000).withRead(5000));
+        config.setTimeouts(Operation.DeleteProfile, Timeouts.NONE.withConnect(500).withRead(800));
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                sent.add(request.getTimeouts());
+                return LoopbackTransport.json(200, "{\"code\":1,\"message\":\"Operation Successful\",\"customer_code\":\"ABC\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        beanstream.profiles().getProfileById("ABC");
+        beanstream.profiles().deleteProfileById("ABC");
+
+        Assert.assertEquals(Timeouts.NONE.withConnect(1000).withRead(5000), sent.get(0));
+        Assert.assertEquals(Timeouts.NONE.withConnect(500).withRead(800), sent.get(1));
+    }
+
+    @Test
+    public void testNetworkTimeoutsAreCutToTheDeadline() {
+        Timeouts timeouts = Timeouts.NONE.withConnect(2000).withRead(300).withDeadline(5000).within(1000);
+        Assert.assertEquals(1000, timeouts.getConnectMillis());
+        Assert.assertEquals(1000, timeouts.getLeaseMillis());
+        Assert.assertEquals(300, timeouts.getReadMillis());
+    }
+
+    @Test
+    public void testDeadlineBoundsTheWaitForASlot() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1).setMaxWaitMillis(10000);
+        Assert.assertTrue(limiter.acquire());
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setConcurrencyLimiter(limiter);
+        config.setTimeouts(ApiType.Payments, Timeouts.NONE.withDeadline(50));
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                return LoopbackTransport.json(200, "{\"id\":\"10000123\",\"approved\":\"1\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        long start = System.nanoTime();
+        try {
+            beanstream.payments().makePayment(new CardPaymentRequest());
+            Assert.fail("should time out waiting for the held slot");
+        } catch (BeanstreamApiException ex) {
+            Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+        } finally {
+            limiter.release();
+        }
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testDeadlineBoundsASlowDripResponse() {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTimeouts(ApiType.Payments, Timeouts.NONE.withRead(300).withDeadline(500));
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws IOException {
+                // a byte every 100 ms never trips the 300 ms read timeout
+                for (int i = 0; i < 100; i++) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException("Aborted after " + i + " reads");
+                    }
+                }
+                return LoopbackTransport.json(200, "{\"id\":\"10000123\",\"approved\":\"1\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        long start = System.nanoTime();
+        try {
+            beanstream.payments().makePayment(new CardPaymentRequest());
+            Assert.fail("should give up at the deadline");
+        } catch (BeanstreamApiException ex) {
+            Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("took " + elapsed + " ms", elapsed >= 450 && elapsed < 1500);
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void testRejectionAfterWaitingOutACutCutsAgain() throws InterruptedException {
+        final RateLimiter limiter = new RateLimiter(1);
+        limiter.setMaxWaitMillis(5000);
+        final HttpsConnector connector = new HttpsConnector(300200578, "key");
+        connector.setRateLimiter(limiter);
+        connector.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                return LoopbackTransport.json(429, "{\"code\":0,\"category\":0,\"message\":\"Slow down\"}");
+            }
+        }));
+
+        Assert.assertTrue(limiter.tryAcquire());
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connector.ProcessTransaction(HttpMethod.get, "https://example.com/payments/1", null);
+                } catch (BeanstreamApiException expected) {
+                }
+            }
+        };
+        waiting.start();
+        // cut while the request waits about a second for its permit
+        Thread.sleep(200);
+        limiter.onThrottled(limiter.getEpoch());
+        Assert.assertEquals(0.75, limiter.getRate(), 0.001);
+        waiting.join(5000);
+
+        // it was sent at the cut rate, so its rejection cuts that too
+        Assert.assertEquals(0.5625, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testReportsWithTheirOwnLimitLeavePaymentsAlone() throws Exception {
+        final CountDownLatch reportSent = new CountDownLatch(1);
+        final CountDownLatch finishReport = new CountDownLatch(1);
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setMaxConcurrentRequests(1);
+        config.setMaxConcurrentRequests(ApiType.Reporting, 1, 0);
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                if (request.getMethod() == HttpMethod.get) {
+                    reportSent.countDown();
+                    try {
+                        finishReport.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return LoopbackTransport.json(200, "{\"id\":\"10000123\"}");
+                }
+                return LoopbackTransport.json(200, "{\"id\":\"10000124\",\"approved\":\"1\"}");
+            }
+        }));
+        final Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        Thread report = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    beanstream.reports().getTransaction("10000123");
+                } catch (BeanstreamApiException ex) {
+                }
+            }
+        };
+        report.start();
+        Assert.assertTrue(reportSent.await(5, TimeUnit.SECONDS));
+        try {
+            Assert.assertEquals("10000124", beanstream.payments().makePayment(new CardPaymentRequest()).id);
+            try {
+                beanstream.reports().getTransaction("10000125");
+                Assert.fail("the report limit is taken");
+            } catch (TooManyRequestsException expected) {
+            }
+        } finally {
+            finishReport.countDown();
+            report.join();
+        }
+        Assert.assertEquals(0, config.getConcurrencyLimiter(ApiType.Reporting).getInFlight());
+        Assert.assertEquals(0, config.getConcurrencyLimiter(ApiType.Payments).getInFlight());
+    }
+
+    @Test
+    public void testCallsWaitInTheLaneOfTheirPriority() throws BeanstreamApiException {
+        RecordingTracer tracer = new RecordingTracer();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTracer(tracer);
+        config.setMaxConcurrentRequests(4);
+        config.setPriority(Operation.ReturnPayment, Priority.Bulk);
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                return LoopbackTransport.json(200, "{\"id\":\"10000123\",\"approved\":\"1\"}");
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        beanstream.payments().makePayment(new CardPaymentRequest());
+        beanstream.payments().returnPayment("10000123", 1.00);
+        beanstream.payments().withPriority(Priority.Bulk).voidPayment("10000123", 1.00);
+
+        List<RecordingTracer.RecordedSpan> waits = tracer.getSpans("wait");
+        Assert.assertEquals("Interactive", waits.get(0).getAttribute("priority"));
+        Assert.assertEquals("Bulk", waits.get(1).getAttribute("priority"));
+        Assert.assertEquals("Bulk", waits.get(2).getAttribute("priority"));
+        Assert.assertEquals("4", waits.get(2).getAttribute("concurrency_limit"));
+    }
+}
@@ -0,0 +1,119 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.connection;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testFailFastOnceBurstIsUsed() {
+        RateLimiter limiter = new RateLimiter(1, 2);
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse("Burst should be used up", limiter.tryAcquire());
+    }
+
+    @Test
+    public void testBlockingAcquireWaitsForItsTurn() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(20);
+        Assert.assertTrue(limiter.tryAcquire());
+        long start = System.nanoTime();
+        Assert.assertTrue(limiter.tryAcquire(1, TimeUnit.SECONDS));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("Waited " + waited + "ms", waited >= 30);
+    }
+
+    @Test
+    public void testTimeoutTooShortReturnsWithoutWaiting() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(0.1);
+        Assert.assertTrue(limiter.tryAcquire());
+        long start = System.nanoTime();
+        Assert.assertFalse(limiter.tryAcquire(100, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    }
+
+    @Test
+    public void testAdaptsToThrottlingAndRecoversBelowCeiling() {
+        RateLimiter limiter = new RateLimiter(100);
+        limiter.onThrottled();
+        Assert.assertEquals(75, limiter.getRate(), 0.001);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.onSuccess();
+        }
+        Assert.assertTrue(limiter.getRate() > 75);
+        Assert.assertTrue("Should stay under the rate that was throttled", limiter.getRate() < 100);
+
+        limiter.setAdaptive(false);
+        double rate = limiter.getRate();
+        limiter.onThrottled();
+        Assert.assertEquals(rate, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testBurstOfConcurrentThrottlesCutsOnce() throws InterruptedException {
+        final RateLimiter limiter = new RateLimiter(100);
+        final long epoch = limiter.getEpoch();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[20];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    limiter.onThrottled(epoch);
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(75, limiter.getRate(), 0.001);
+
+        // a request sent after the cut that is rejected too cuts again
+        Assert.assertEquals(epoch + 1, limiter.getEpoch());
+        limiter.onThrottled(limiter.getEpoch());
+        Assert.assertEquals(56.25, limiter.getRate(), 0.001);
+        limiter.onThrottled(epoch);
+        Assert.assertEquals(56.25, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testThrottlesWithoutAnEpochCutOnceASecond() {
+        RateLimiter limiter = new RateLimiter(100);
+        for (int i = 0; i < 20; i++) {
+            limiter.onThrottled();
+        }
+        Assert.assertEquals(75, limiter.getRate(), 0.001);
+    }
+}
@@ -0,0 +1,266 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.data;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.data.TransactionAggregator.GroupBy;
+import com.beanstream.data.TransactionAggregator.GroupKey;
+import com.beanstream.data.TransactionAggregator.Totals;
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionAggregatorTest {
+
+    private static final String[] CARD_TYPES = {"VI", "MC", "AM"};
+    private static final long START = 1412121600000L; // 2014-10-01T00:00:00Z
+    private static final int DAYS = 5;
+
+    private final Gson gson = new Gson();
+    private final List<TransactionRecord> records = new ArrayList<TransactionRecord>();
+    private final List<Integer> startRows = Collections.synchronizedList(new ArrayList<Integer>());
+    private Gateway beanstream;
+
+    @Before
+    public void setUp() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long step = TimeUnit.DAYS.toMillis(DAYS) / 2500;
+        for (int i = 0; i < 2500; i++) {
+            TransactionRecord record = new TransactionRecord();
+            record.setTransactionId(10000000 + i);
+            record.setDateTimeStr(format.format(new Date(START + i * step)));
+            record.setCardType(CARD_TYPES[i % CARD_TYPES.length]);
+            record.setBatchNumber(100 + i / 500);
+            record.setResponse(i % 4 == 0 ? 2 : 1);
+            record.setAmount(10.00 + (i % 10) * 0.01);
+            record.setReturns(i % 5 == 0 ? 2.50 : 0);
+            record.setCompletions(i % 7 == 0 ? 1.25 : 0);
+            records.add(record);
+        }
+
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                return search(new JsonParser().parse(new String(request.getBody())).getAsJsonObject());
+            }
+        }));
+        beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+    }
+
+    /**
+     * Answers a search like the gateway: the records in the date range,
+     * numbered from 1, and only the rows asked for.
+     */
+    private TransportResponse search(JsonObject query) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+        long start;
+        long end;
+        try {
+            start = format.parse(query.get("start_date").getAsString()).getTime();
+            end = format.parse(query.get("end_date").getAsString()).getTime();
+        } catch (ParseException ex) {
+            return LoopbackTransport.json(400, "{\"code\":1,\"category\":3,\"message\":\"Bad date\"}");
+        }
+        int startRow = query.get("start_row").getAsInt();
+        int endRow = query.get("end_row").getAsInt();
+        startRows.add(startRow);
+
+        JsonArray page = new JsonArray();
+        int row = 0;
+        for (TransactionRecord record : records) {
+            long time = START + (record.getTransactionId() - 10000000) * (TimeUnit.DAYS.toMillis(DAYS) / 2500);
+            if (time < start || time > end)
+                continue;
+            row++;
+            if (row >= startRow && row <= endRow)
+                page.add(gson.toJsonTree(record));
+        }
+        JsonObject response = new JsonObject();
+        response.add("records", page);
+        return LoopbackTransport.json(200, response.toString());
+    }
+
+    private Date end() {
+        return new Date(START + TimeUnit.DAYS.toMillis(DAYS) - 1);
+    }
+
+    @Test
+    public void testQueryPagesAcrossTheRowLimit() throws BeanstreamApiException {
+        final List<Integer> ids = new ArrayList<Integer>();
+        int count = beanstream.reports().query(new Date(START), end(), null, new RecordHandler() {
+            @Override
+            public boolean handle(TransactionRecord record) {
+                ids.add(record.getTransactionId());
+                return true;
+            }
+        });
+        Assert.assertEquals(2500, count);
+        Assert.assertEquals(2500, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Assert.assertEquals(10000000 + i, (int) ids.get(i));
+        }
+        Assert.assertEquals(Arrays.asList(1, 1001, 2001), startRows);
+    }
+
+    @Test
+    public void testQueryOfWholePagesAsksForOneMore() throws BeanstreamApiException {
+        records.subList(2000, records.size()).clear();
+        Assert.assertEquals(2000, beanstream.reports().query(new Date(START), end(), null, new TransactionAggregator()));
+        Assert.assertEquals(Arrays.asList(1, 1001, 2001), startRows);
+    }
+
+    @Test
+    public void testQueryStopsWhenTheHandlerDoes() throws BeanstreamApiException {
+        int count = beanstream.reports().query(new Date(START), end(), null, new RecordHandler() {
+            private int seen;
+
+            @Override
+            public boolean handle(TransactionRecord record) {
+                return ++seen < 1500;
+            }
+        });
+        Assert.assertEquals(1500, count);
+        Assert.assertEquals(Arrays.asList(1, 1001), startRows);
+    }
+
+    @Test
+    public void testGroupsByCardTypeBatchDayAndResponse() throws BeanstreamApiException {
+        TransactionAggregator aggregator = new TransactionAggregator(
+                GroupBy.CardType, GroupBy.BatchNumber, GroupBy.Day, GroupBy.Response);
+        beanstream.reports().query(new Date(START), end(), null, aggregator);
+
+        Map<String, long[]> expected = new HashMap<String, long[]>();
+        for (TransactionRecord record : records) {
+            String key = record.getCardType() + "/" + record.getBatchNumber() + "/"
+                    + record.getDateTimeStr().substring(0, 10) + "/" + record.getResponse();
+            long[] sums = expected.get(key);
+            if (sums == null) {
+                sums = new long[4];
+                expected.put(key, sums);
+            }
+            sums[0]++;
+            sums[1] += Math.round(record.getAmount() * 100);
+            sums[2] += Math.round(record.getReturns() * 100);
+            sums[3] += Math.round(record.getCompletions() * 100);
+        }
+
+        Map<GroupKey, Totals> totals = aggregator.getTotals();
+        Assert.assertEquals(expected.size(), totals.size());
+        for (Map.Entry<GroupKey, Totals> group : totals.entrySet()) {
+            GroupKey key = group.getKey();
+            long[] sums = expected.get(key.get(GroupBy.CardType) + "/" + key.get(GroupBy.BatchNumber) + "/"
+                    + key.get(GroupBy.Day) + "/" + key.get(GroupBy.Response));
+            Assert.assertNotNull(key.toString(), sums);
+            Assert.assertEquals(sums[0], group.getValue().getCount());
+            Assert.assertEquals(sums[1], group.getValue().getAmountInCents());
+            Assert.assertEquals(sums[2], group.getValue().getReturnsInCents());
+            Assert.assertEquals(sums[3], group.getValue().getCompletionsInCents());
+        }
+    }
+
+    @Test
+    public void testGroupsByDay() throws BeanstreamApiException {
+        TransactionAggregator aggregator = new TransactionAggregator(GroupBy.Day);
+        beanstream.reports().query(new Date(START), end(), null, aggregator);
+
+        Assert.assertEquals(DAYS, aggregator.getTotals().size());
+        for (Map.Entry<GroupKey, Totals> group : aggregator.getTotals().entrySet()) {
+            Assert.assertTrue(group.getKey().get(GroupBy.Day).startsWith("2014-10-0"));
+            Assert.assertNull(group.getKey().get(GroupBy.CardType));
+            Assert.assertEquals(500, group.getValue().getCount());
+        }
+    }
+
+    @Test
+    public void testReturnAndCompletionTotals() throws BeanstreamApiException {
+        TransactionAggregator aggregator = new TransactionAggregator();
+        beanstream.reports().query(new Date(START), end(), null, aggregator);
+
+        Assert.assertEquals(1, aggregator.getTotals().size());
+        Totals total = aggregator.getTotals().values().iterator().next();
+        Assert.assertEquals(2500, total.getCount());
+        // 10.00 plus 0 to 9 cents each, 500 returns of 2.50 and 358 completions of 1.25
+        Assert.assertEquals(2500 * 1000 + 250 * 45, total.getAmountInCents());
+        Assert.assertEquals(500 * 250, total.getReturnsInCents());
+        Assert.assertEquals(358 * 125, total.getCompletionsInCents());
+        Assert.assertEquals(447.50, total.getCompletions(), 0.001);
+    }
+
+    @Test
+    public void testDateShardsMergeToTheSameTotals() throws BeanstreamApiException {
+        TransactionAggregator single = new TransactionAggregator(GroupBy.CardType, GroupBy.Response);
+        beanstream.reports().query(new Date(START), end(), null, single);
+        startRows.clear();
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        TransactionAggregator sharded = new TransactionAggregator(GroupBy.CardType, GroupBy.Response);
+        try {
+            sharded.aggregate(beanstream.reports(), new Date(START), end(), null, 7, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        // each shard has fewer than 1000 rows, so one page each
+        Assert.assertEquals(7, startRows.size());
+        Assert.assertEquals(single.getTotals().size(), sharded.getTotals().size());
+        for (Map.Entry<GroupKey, Totals> group : single.getTotals().entrySet()) {
+            Totals merged = sharded.getTotals().get(group.getKey());
+            Assert.assertNotNull(group.getKey().toString(), merged);
+            Assert.assertEquals(group.getValue().getCount(), merged.getCount());
+            Assert.assertEquals(group.getValue().getAmountInCents(), merged.getAmountInCents());
+            Assert.assertEquals(group.getValue().getReturnsInCents(), merged.getReturnsInCents());
+            Assert.assertEquals(group.getValue().getCompletionsInCents(), merged.getCompletionsInCents());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeNeedsTheSameGrouping() {
+        new TransactionAggregator(GroupBy.Day).merge(new TransactionAggregator(GroupBy.CardType));
+    }
+}
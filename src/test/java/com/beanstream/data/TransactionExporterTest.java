@@ -0,0 +1,349 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.data;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.data.TransactionExporter.Compression;
+import com.beanstream.data.TransactionExporter.Format;
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionExporterTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // more than a row group, and more than the write buffer holds
+    private static final int RECORDS = TransactionExporter.ROW_GROUP_SIZE + 1000;
+
+    private final Gson gson = new Gson();
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("export", ".dat");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testCsvRoundTrip() throws IOException {
+        assertCsvRoundTrip(Compression.NONE);
+    }
+
+    @Test
+    public void testGzipCsvRoundTrip() throws IOException {
+        assertCsvRoundTrip(Compression.GZIP);
+    }
+
+    @Test
+    public void testNdjsonRoundTrip() throws IOException {
+        assertNdjsonRoundTrip(Compression.NONE);
+    }
+
+    @Test
+    public void testGzipNdjsonRoundTrip() throws IOException {
+        assertNdjsonRoundTrip(Compression.GZIP);
+    }
+
+    @Test
+    public void testColumnarRoundTrip() throws IOException {
+        assertColumnarRoundTrip(Compression.NONE);
+    }
+
+    @Test
+    public void testGzipColumnarRoundTrip() throws IOException {
+        assertColumnarRoundTrip(Compression.GZIP);
+    }
+
+    @Test
+    public void testFailedQueryDeletesTheFile() {
+        final AtomicInteger pages = new AtomicInteger();
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                if (pages.getAndIncrement() > 0)
+                    return LoopbackTransport.json(500, "{\"code\":1,\"category\":1,\"message\":\"Server error\"}");
+                JsonArray records = new JsonArray();
+                for (int i = 0; i < 1000; i++) {
+                    records.add(gson.toJsonTree(record(i)));
+                }
+                JsonObject page = new JsonObject();
+                page.add("records", records);
+                return LoopbackTransport.json(200, page.toString());
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+
+        try {
+            TransactionExporter.export(beanstream.reports(), new Date(0), new Date(), null,
+                    file, Format.COLUMNAR, Compression.NONE);
+            Assert.fail("the second page fails");
+        } catch (BeanstreamApiException ex) {
+            Assert.assertEquals(500, ex.getHttpStatusCode());
+        }
+        Assert.assertEquals(2, pages.get());
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testAbortedColumnarFileHasNoEndMarker() throws IOException {
+        TransactionExporter exporter = new TransactionExporter(file, Format.COLUMNAR, Compression.NONE);
+        exporter.handle(record(1));
+        exporter.abort();
+        exporter.close();
+        try {
+            readColumnar(Compression.NONE);
+            Assert.fail("an aborted file must not read as complete");
+        } catch (EOFException expected) {
+        }
+    }
+
+    private void assertCsvRoundTrip(Compression compression) throws IOException {
+        export(Format.CSV, compression);
+        List<List<String>> rows = readCsv(compression);
+        Assert.assertEquals(RECORDS + 1, rows.size());
+        List<String> names = rows.get(0);
+        for (int i = 0; i < RECORDS; i++) {
+            JsonObject expected = gson.toJsonTree(record(i)).getAsJsonObject();
+            List<String> row = rows.get(i + 1);
+            Assert.assertEquals(names.size(), row.size());
+            for (int column = 0; column < names.size(); column++) {
+                String value = expected(expected, names.get(column));
+                Assert.assertEquals(names.get(column), value != null ? value : "", row.get(column));
+            }
+        }
+    }
+
+    private void assertNdjsonRoundTrip(Compression compression) throws IOException {
+        export(Format.NDJSON, compression);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(open(compression), UTF8));
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                TransactionRecord read = gson.fromJson(reader.readLine(), TransactionRecord.class);
+                Assert.assertEquals(gson.toJson(record(i)), gson.toJson(read));
+            }
+            Assert.assertNull(reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void assertColumnarRoundTrip(Compression compression) throws IOException {
+        export(Format.COLUMNAR, compression);
+        Columnar read = readColumnar(compression);
+        Assert.assertEquals(RECORDS, read.rows.size());
+        for (int i = 0; i < RECORDS; i++) {
+            JsonObject expected = gson.toJsonTree(record(i)).getAsJsonObject();
+            Object[] row = read.rows.get(i);
+            for (int column = 0; column < read.names.size(); column++) {
+                String name = read.names.get(column);
+                Assert.assertEquals(name, expected(expected, name), row[column] != null ? row[column].toString() : null);
+            }
+        }
+    }
+
+    private void export(Format format, Compression compression) throws IOException {
+        TransactionExporter exporter = new TransactionExporter(file, format, compression);
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                Assert.assertTrue(exporter.handle(record(i)));
+            }
+        } finally {
+            exporter.close();
+        }
+        Assert.assertEquals(RECORDS, exporter.getCount());
+    }
+
+    private static String expected(JsonObject json, String name) {
+        JsonElement value = json.get(name);
+        return value != null ? value.getAsString() : null;
+    }
+
+    private InputStream open(Compression compression) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        return compression == Compression.GZIP ? new GZIPInputStream(in) : in;
+    }
+
+    private List<List<String>> readCsv(Compression compression) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(open(compression), UTF8));
+        List<List<String>> rows = new ArrayList<List<String>>();
+        try {
+            List<String> row = new ArrayList<String>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (quoted) {
+                    if (c != '"') {
+                        field.append((char) c);
+                    } else {
+                        reader.mark(1);
+                        if (reader.read() == '"') {
+                            field.append('"');
+                        } else {
+                            reader.reset();
+                            quoted = false;
+                        }
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    row.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n') {
+                    row.add(field.toString());
+                    field.setLength(0);
+                    rows.add(row);
+                    row = new ArrayList<String>();
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+            }
+            Assert.assertTrue(row.isEmpty() && field.length() == 0);
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    private static class Columnar {
+        final List<String> names = new ArrayList<String>();
+        final List<Object[]> rows = new ArrayList<Object[]>();
+    }
+
+    private Columnar readColumnar(Compression compression) throws IOException {
+        DataInputStream in = new DataInputStream(open(compression));
+        Columnar read = new Columnar();
+        try {
+            Assert.assertEquals(TransactionExporter.COLUMNAR_MAGIC, in.readInt());
+            Assert.assertEquals(TransactionExporter.COLUMNAR_VERSION, in.readInt());
+            int columns = in.readInt();
+            char[] types = new char[columns];
+            for (int column = 0; column < columns; column++) {
+                types[column] = (char) in.readByte();
+                read.names.add(readString(in));
+            }
+            int rows;
+            while ((rows = in.readInt()) > 0) {
+                Object[][] group = new Object[rows][columns];
+                for (int column = 0; column < columns; column++) {
+                    for (int row = 0; row < rows; row++) {
+                        switch (types[column]) {
+                            case 'I': {
+                                int zigzag = readVarint(in);
+                                group[row][column] = (zigzag >>> 1) ^ -(zigzag & 1);
+                                break;
+                            }
+                            case 'D':
+                                group[row][column] = in.readDouble();
+                                break;
+                            default:
+                                group[row][column] = readString(in);
+                                break;
+                        }
+                    }
+                }
+                for (Object[] row : group) {
+                    read.rows.add(row);
+                }
+            }
+            Assert.assertEquals(read.rows.size(), in.readLong());
+            Assert.assertEquals(TransactionExporter.COLUMNAR_MAGIC, in.readInt());
+            Assert.assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+        return read;
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarint(in);
+        if (length == 0)
+            return null;
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static TransactionRecord record(int i) {
+        TransactionRecord record = new TransactionRecord();
+        record.setRowId(i + 1);
+        record.setTransactionId(10000000 + i);
+        record.setDateTimeStr("2014-10-01T10:00:00");
+        record.setType(i % 5 == 0 ? "R" : "P");
+        record.setOrderNumber("ORDER-" + i);
+        // quotes, commas and line breaks have to survive CSV, and non-ASCII UTF-8
+        record.setComments(i % 7 == 0 ? null : "said \"hi\", then\r\nleft " + i);
+        record.setAmount(i * 1.25);
+        record.setReturns(i % 5 == 0 ? i * 1.25 : 0);
+        record.setResponse(i % 3 == 0 ? 2 : 1);
+        record.setCardType(i % 2 == 0 ? "VI" : "MC");
+        record.setBatchNumber(-i);
+        record.setCVDResult(i % 4);
+        record.setBillingName("Zo\u00eb \u00dcnal " + i);
+        record.setBillingCity(i % 11 == 0 ? "" : "Montr\u00e9al");
+        record.setCustomerCode(i % 2 == 0 ? null : "CUST" + i);
+        return record;
+    }
+}
@@ -0,0 +1,138 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.data;
+
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.requests.Criteria;
+import com.beanstream.requests.Operators;
+import com.beanstream.requests.QueryFields;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionStoreTest {
+
+    private File file;
+    private TransactionStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("transactions", ".db");
+        store = new TransactionStore(file);
+        store.appendAll(Arrays.asList(
+                record(1001, "ORDER-1", "4030XXXXXXXX1234", "CUST1", "TEST01", "2014-10-01T10:00:00.000-07:00", 10.00),
+                record(1002, "ORDER-2", "4030XXXXXXXX9876", "CUST2", "TEST02", "2014-10-02T10:00:00.000-07:00", 20.00),
+                record(1003, "ORDER-3", "5100XXXXXXXX1004", "CUST1", "TEST03", "2014-10-03T10:00:00.000-07:00", 30.00)));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        file.delete();
+    }
+
+    @Test
+    public void testFindByIndexedFields() throws IOException {
+        List<TransactionRecord> results = store.find(QueryFields.OrderNumber, "ORDER-2");
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(1002, results.get(0).getTransactionId());
+
+        results = store.find(QueryFields.CustCode, "CUST1");
+        Assert.assertEquals(2, results.size());
+
+        results = store.find(QueryFields.AuthorizationCode, "NOPE");
+        Assert.assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void testStartWithPrefixScan() throws IOException {
+        List<TransactionRecord> results = store.query(null, null, new Criteria[]{
+            new Criteria(QueryFields.MaskedCardNumber, Operators.StartWith, "4030")
+        });
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(1001, results.get(0).getTransactionId());
+        Assert.assertEquals(1002, results.get(1).getTransactionId());
+    }
+
+    @Test
+    public void testDateRangeAndUnindexedCriteria() throws Exception {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+        List<TransactionRecord> results = store.query(
+                sdf.parse("2014-10-02T00:00:00.000-07:00"),
+                sdf.parse("2014-10-31T00:00:00.000-07:00"),
+                new Criteria[]{new Criteria(QueryFields.Amount, Operators.GreaterThan, "25")});
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(1003, results.get(0).getTransactionId());
+    }
+
+    @Test
+    public void testLatestCopyWinsAndIndexesAreRebuilt() throws IOException {
+        TransactionRecord updated = record(1002, "ORDER-2B", "4030XXXXXXXX9876", "CUST2", "TEST02", "2014-10-02T10:00:00.000-07:00", 20.00);
+        updated.setReturns(20.00);
+        store.append(updated);
+        Assert.assertEquals(3, store.size());
+        Assert.assertTrue(store.find(QueryFields.OrderNumber, "ORDER-2").isEmpty());
+
+        store.close();
+        store = new TransactionStore(file);
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals(20.00, store.get(1002).getReturns(), 0.001);
+        Assert.assertEquals(1, store.find(QueryFields.OrderNumber, "ORDER-2B").size());
+    }
+
+    @Test
+    public void testTornRecordIsTruncated() throws IOException {
+        store.close();
+        long length = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(length);
+            raf.writeInt(500); // a length prefix with no record after it
+        } finally {
+            raf.close();
+        }
+        store = new TransactionStore(file);
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals(length, file.length());
+    }
+
+    private TransactionRecord record(int id, String orderNumber, String maskedCard, String customerCode,
+            String approvalCode, String dateTime, double amount) {
+        TransactionRecord record = new TransactionRecord();
+        record.setTransactionId(id);
+        record.setOrderNumber(orderNumber);
+        record.setMaskedCard(maskedCard);
+        record.setCustomerCode(customerCode);
+        record.setApprovalCode(approvalCode);
+        record.setDateTimeStr(dateTime);
+        record.setAmount(amount);
+        return record;
+    }
+}
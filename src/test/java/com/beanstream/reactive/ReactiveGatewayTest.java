@@ -0,0 +1,191 @@
+package com.beanstream.reactive;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.domain.TransactionRecord;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.requests.CardPaymentRequest;
+import com.beanstream.responses.PaymentResponse;
+import com.google.common.base.Charsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+public class ReactiveGatewayTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final Pattern ROWS = Pattern.compile("\"start_row\":(\\d+),\"end_row\":(\\d+)");
+
+    private final List<String> queries = new ArrayList<String>();
+
+    private ReactiveGateway getGateway() {
+        Configuration config = new Configuration(300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        config.setReportingApiPasscode("4e6Ff318bee64EA391609de89aD4CF5d");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                if (!request.getUrl().endsWith("/reports"))
+                    return LoopbackTransport.json(200, "{\"id\":\"10000123\",\"approved\":\"1\"}");
+                Matcher rows = ROWS.matcher(new String(request.getBody(), Charsets.UTF_8));
+                Assert.assertTrue(rows.find());
+                int start = Integer.parseInt(rows.group(1));
+                int end = Integer.parseInt(rows.group(2));
+                queries.add(start + "-" + end);
+                // there are 12 transactions in all
+                StringBuilder json = new StringBuilder("{\"records\":[");
+                for (int row = start; row <= Math.min(end, 12); row++) {
+                    json.append(row > start ? "," : "").append("{\"row_id\":").append(row).append("}");
+                }
+                return LoopbackTransport.json(200, json.append("]}").toString());
+            }
+        }));
+        Gateway beanstream = new Gateway("v1", 300200578, "4BaD82D9197b4cc4b70a221911eE9f70");
+        beanstream.setConfiguration(config);
+        return new ReactiveGateway(beanstream, DIRECT);
+    }
+
+    private static class Recorder<T> implements Subscriber<T> {
+        Subscription subscription;
+        final List<T> items = new ArrayList<T>();
+        Throwable error;
+        boolean complete;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+        }
+    }
+
+    @Test
+    public void testSingleCallIsMadeOnRequest() {
+        ReactiveGateway reactive = getGateway();
+        Recorder<PaymentResponse> recorder = new Recorder<PaymentResponse>();
+        reactive.makePayment(new CardPaymentRequest()).subscribe(recorder);
+        Assert.assertTrue(recorder.items.isEmpty());
+
+        recorder.subscription.request(1);
+        Assert.assertEquals("10000123", recorder.items.get(0).id);
+        Assert.assertTrue(recorder.complete);
+    }
+
+    @Test
+    public void testQueryFetchesWholePagesOnlyWhenRequested() {
+        ReactiveGateway reactive = getGateway();
+        Recorder<TransactionRecord> recorder = new Recorder<TransactionRecord>();
+        reactive.query(new Date(0), new Date(), null, 5).subscribe(recorder);
+        Assert.assertTrue(queries.isEmpty());
+
+        recorder.subscription.request(3);
+        Assert.assertEquals(3, recorder.items.size());
+        Assert.assertEquals("[1-5]", queries.toString());
+
+        recorder.subscription.request(2);
+        Assert.assertEquals(5, recorder.items.size());
+        Assert.assertEquals("[1-5]", queries.toString());
+
+        recorder.subscription.request(6);
+        Assert.assertEquals(11, recorder.items.size());
+        Assert.assertEquals("[1-5, 6-10, 11-15]", queries.toString());
+        Assert.assertFalse(recorder.complete);
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        Assert.assertEquals(12, recorder.items.size());
+        Assert.assertEquals(12, recorder.items.get(11).getRowId());
+        Assert.assertTrue(recorder.complete);
+        Assert.assertNull(recorder.error);
+    }
+
+    @Test
+    public void testNonPositiveRequestIsAnError() {
+        Recorder<TransactionRecord> recorder = new Recorder<TransactionRecord>();
+        getGateway().query(new Date(0), new Date(), null).subscribe(recorder);
+        recorder.subscription.request(0);
+        Assert.assertTrue(recorder.error instanceof IllegalArgumentException);
+        Assert.assertTrue(queries.isEmpty());
+    }
+
+    @Test
+    public void testNonPositiveRequestAfterTheFirstIsAnError() {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        SinglePublisher<String> publisher = new SinglePublisher<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                return "result";
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        Recorder<String> recorder = new Recorder<String>();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(1);
+        recorder.subscription.request(-1);
+        Assert.assertTrue(recorder.error instanceof IllegalArgumentException);
+
+        queued.get(0).run();
+        Assert.assertTrue(recorder.items.isEmpty());
+        Assert.assertFalse(recorder.complete);
+
+        // asked from onNext, the error is signalled instead of onComplete
+        recorder = new Recorder<String>() {
+            @Override
+            public void onNext(String item) {
+                super.onNext(item);
+                subscription.request(0);
+            }
+        };
+        new SinglePublisher<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                return "result";
+            }
+        }, DIRECT).subscribe(recorder);
+        recorder.subscription.request(1);
+        Assert.assertEquals("[result]", recorder.items.toString());
+        Assert.assertTrue(recorder.error instanceof IllegalArgumentException);
+        Assert.assertFalse(recorder.complete);
+    }
+
+    @Test
+    public void testFailedCallIsPublishedAsError() {
+        Recorder<PaymentResponse> recorder = new Recorder<PaymentResponse>();
+        getGateway().voidPayment("", 10).subscribe(recorder);
+        recorder.subscription.request(1);
+        Assert.assertTrue(recorder.error instanceof BeanstreamApiException);
+        Assert.assertFalse(recorder.complete);
+    }
+}
@@ -0,0 +1,115 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.responses;
+
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.exceptions.InvalidRequestException;
+import com.google.gson.JsonArray;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BeanstreamResponseTest {
+
+    private static final String JSON = "application/json; charset=utf-8";
+
+    @Test
+    public void testErrorFieldsAreRead() {
+        BeanstreamResponse response = BeanstreamResponse.fromPayload(400, JSON,
+                "{\"code\":314,\"category\":3,\"message\":\"Missing or invalid payment information - Please validate all required payment information.\","
+                + "\"reference\":\"\",\"details\":[{\"field\":\"card:number\",\"message\":\"Invalid card number\"}]}");
+
+        Assert.assertEquals(314, response.getCode());
+        Assert.assertEquals(3, response.getCategory());
+        Assert.assertEquals(400, response.getHttpStatusCode());
+        Assert.assertTrue(response.getMessage().startsWith("Missing or invalid payment information"));
+        Assert.assertEquals("", response.getReference());
+        Assert.assertEquals("[{\"field\":\"card:number\",\"message\":\"Invalid card number\"}]", response.getDetails());
+        JsonArray details = response.getDetailsAsJson().getAsJsonArray();
+        Assert.assertEquals("card:number", details.get(0).getAsJsonObject().get("field").getAsString());
+    }
+
+    @Test
+    public void testMissingAndUnknownKeysAreTolerated() {
+        BeanstreamResponse response = BeanstreamResponse.fromPayload(402, "application/json",
+                "{ \"extra\" : {\"nested\": [1, \"}\", null]}, \"message\" : \"DECLINE \\\"7\\\" \\u00e9\", \"code\" : \"7\" }");
+
+        Assert.assertEquals(7, response.getCode());
+        Assert.assertEquals(-1, response.getCategory());
+        Assert.assertEquals("DECLINE \"7\" \u00e9", response.getMessage());
+        Assert.assertEquals("", response.getDetails());
+        Assert.assertNull(response.getDetailsAsJson());
+    }
+
+    @Test
+    public void testMalformedBodyKeepsWhatWasRead() {
+        BeanstreamResponse truncated = BeanstreamResponse.fromPayload(500, JSON,
+                "{\"code\":1,\"category\":4,\"message\":\"Server err");
+        Assert.assertEquals(1, truncated.getCode());
+        Assert.assertEquals(4, truncated.getCategory());
+
+        BeanstreamResponse notAnObject = BeanstreamResponse.fromPayload(502, JSON, "[\"Bad Gateway\"]");
+        Assert.assertEquals(-1, notAnObject.getCode());
+        Assert.assertEquals("[\"Bad Gateway\"]", notAnObject.getResponseBody());
+    }
+
+    @Test
+    public void testNullDetailsAndSuccessBody() {
+        BeanstreamResponse error = BeanstreamResponse.fromPayload(401, JSON,
+                "{\"code\":21,\"category\":2,\"message\":null,\"reference\":null,\"details\":null}");
+        Assert.assertEquals(21, error.getCode());
+        Assert.assertEquals("", error.getDetails());
+
+        String body = "{\"id\":\"10000123\",\"approved\":\"1\"}";
+        BeanstreamResponse ok = BeanstreamResponse.fromPayload(200, JSON, body);
+        Assert.assertEquals(body, ok.getResponseBody());
+    }
+
+    @Test
+    public void testExceptionReadsDetailsOnlyWhenAsked() {
+        String body = "{\"code\":52,\"category\":3,\"message\":\"Invalid card\","
+                + "\"details\":[{\"field\":\"card:number\",\"message\":\"Invalid card number\"}]}";
+        final BeanstreamResponse parsed = BeanstreamResponse.fromPayload(400, JSON, body);
+        final AtomicInteger reads = new AtomicInteger();
+        BeanstreamResponse response = new BeanstreamResponse(parsed.getCode(), parsed.getCategory(),
+                parsed.getMessage(), null, null, 400, null, null) {
+            @Override
+            public String getDetails() {
+                reads.incrementAndGet();
+                return parsed.getDetails();
+            }
+        };
+
+        for (boolean stackless : new boolean[] {false, true}) {
+            reads.set(0);
+            BeanstreamApiException ex = BeanstreamApiException.getMappedException(400, response, stackless);
+            Assert.assertTrue(ex instanceof InvalidRequestException);
+            Assert.assertEquals(52, ex.getCode());
+            Assert.assertEquals(0, reads.get());
+
+            Assert.assertEquals("Invalid card, details: " + parsed.getDetails(), ex.getMessage());
+            Assert.assertEquals(parsed.getDetails(), ex.getDetails());
+            Assert.assertEquals(1, reads.get());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/* The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Beanstream Internet Commerce Corp, Digital River, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.beanstream.responses;
+
+import com.beanstream.Configuration;
+import com.beanstream.Gateway;
+import com.beanstream.connection.LoopbackTransport;
+import com.beanstream.connection.TransportRequest;
+import com.beanstream.connection.TransportResponse;
+import com.beanstream.exceptions.BeanstreamApiException;
+import com.beanstream.exceptions.BusinessRuleException;
+import com.beanstream.requests.CardPaymentRequest;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PaymentOutcomeTest {
+
+    @Test
+    public void testApprovedPayment() throws BeanstreamApiException {
+        PaymentOutcome outcome = gatewayAnswering(200,
+                "{\"id\":\"10000123\",\"approved\":\"1\",\"message_id\":\"1\",\"message\":\"Approved\"}")
+                .payments().tryMakePayment(cardPayment());
+
+        Assert.assertEquals(PaymentOutcome.Status.Approved, outcome.getStatus());
+        Assert.assertEquals("10000123", outcome.getResponse().id);
+        Assert.assertEquals(1, outcome.getCode());
+        Assert.assertEquals(200, outcome.getHttpStatusCode());
+        Assert.assertSame(outcome.getResponse(), outcome.getOrThrow());
+    }
+
+    @Test
+    public void testDeclineIsReturnedNotThrown() {
+        PaymentOutcome outcome = gatewayAnswering(402,
+                "{\"code\":7,\"category\":1,\"message\":\"DECLINE\",\"reference\":\"\",\"details\":[]}")
+                .payments().tryMakePayment(cardPayment());
+
+        Assert.assertTrue(outcome.isDeclined());
+        Assert.assertNull(outcome.getResponse());
+        Assert.assertNull(outcome.getException());
+        Assert.assertEquals(7, outcome.getCode());
+        Assert.assertEquals(1, outcome.getCategory());
+        Assert.assertEquals(402, outcome.getHttpStatusCode());
+        Assert.assertEquals("[]", outcome.getDetails());
+        try {
+            outcome.getOrThrow();
+            Assert.fail("A decline should throw when asked to");
+        } catch (BeanstreamApiException ex) {
+            Assert.assertTrue(ex instanceof BusinessRuleException);
+        }
+    }
+
+    @Test
+    public void testConnectionFailureIsAnError() {
+        Configuration config = new Configuration(300200578, "key");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) throws IOException {
+                throw new IOException("Connection refused");
+            }
+        }));
+        PaymentOutcome outcome = gateway(config).payments().tryMakePayment(cardPayment());
+
+        Assert.assertEquals(PaymentOutcome.Status.Error, outcome.getStatus());
+        Assert.assertTrue(outcome.getException().getCause() instanceof IOException);
+    }
+
+    private static Gateway gatewayAnswering(final int status, final String json) {
+        Configuration config = new Configuration(300200578, "key");
+        config.setTransport(new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(TransportRequest request) {
+                return LoopbackTransport.json(status, json);
+            }
+        }));
+        return gateway(config);
+    }
+
+    private static Gateway gateway(Configuration config) {
+        Gateway gateway = new Gateway("v1", config.getMerchantId(), config.getPaymentsApiPasscode());
+        gateway.setConfiguration(config);
+        return gateway;
+    }
+
+    private static CardPaymentRequest cardPayment() {
+        CardPaymentRequest paymentRequest = new CardPaymentRequest();
+        paymentRequest.setAmount("90.00");
+        paymentRequest.setOrderNumber("ORDER-1");
+        paymentRequest.getCard().setName("John Doe")
+                .setNumber("5100000010001004").setExpiryMonth("12")
+                .setExpiryYear("18").setCvd("123");
+        return paymentRequest;
+    }
+}